@@ -0,0 +1,205 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.io.Writer;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.IOException;
+
+/**
+ * Generates a batch of MR files in several languages at once, on a fork-join pool.
+ *
+ * Each file is parsed by a task of its own, which then forks a task for each language.
+ * The results are written in the order of the files, and for each file in the order of the
+ * languages, as soon as everything before them has been written, so the output is the same
+ * however the tasks are scheduled. Only a few files per thread are parsed ahead of the one
+ * being written, so a batch of any size takes little memory.
+ *
+ * Each result is written on a line of its own. If an MR file cannot be read, or an MR cannot
+ * be generated in a language, a "?" is written in its place, and the error is reported on
+ * stderr along with the file and the language. Rules that recurse without end fail just the
+ * result they are generating, with a StackOverflowError.
+ *
+ * If asked to, the MRs are interned as they are parsed, so that they share the subtrees
+ * they have in common. See MRInterner.
+*/
+public class BatchGenerator {
+
+	/*
+	How many files per thread may be worked on ahead of the one being written.
+	*/
+	private static final int FILES_AHEAD_PER_THREAD = 4;
+
+	private List languages;
+	private boolean trace;
+
+	/*
+	The engine all files are generated with, so they all use the same rules.
+	*/
+	private Engine engine;
+
+	/*
+	The interner the MRs are interned with, built for the same engine, or null if they are not.
+	*/
+	private MRInterner interner;
+
+	/**
+	 * Constructor. The vocabulary must have been loaded and linked first.
+	 *
+	 * @param languages the codes of the languages to generate each MR in
+	 * @param trace whether to write a debug trace before each result
+	 * @param intern whether to intern the MRs, which loads the rules of the languages first
+	*/
+	public BatchGenerator(List languages, boolean trace, boolean intern) {
+		this.languages = languages;
+		this.trace = trace;
+		engine = Engine.getDefault();
+		if (intern) {
+			interner = new MRInterner(engine, languages);
+		}
+	}
+
+	/**
+	 * Generates the MRs in the given files in all languages, and writes the results to the
+	 * given output, in order.
+	 *
+	 * @param sourceFiles the paths of the MR files
+	 * @param threads the number of threads to generate on
+	 * @param out the output to write to
+	 * @return the number of results that could not be generated
+	 * @throws IOException if writing to the output fails
+	*/
+	public int generate(List sourceFiles, int threads, Writer out) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		int failures = 0;
+		try {
+			FileTask tasks[] = new FileTask[sourceFiles.size()];
+			int ahead = threads * FILES_AHEAD_PER_THREAD;
+			int submitted = 0;
+			for (int i = 0; i < tasks.length; i++) {
+				while ((submitted < tasks.length) && (submitted <= i + ahead)) {
+					tasks[submitted] = new FileTask((String) sourceFiles.get(submitted));
+					pool.execute(tasks[submitted]);
+					submitted++;
+				}
+				tasks[i].join();
+				failures += tasks[i].write(out);
+				tasks[i] = null;
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return failures;
+	}
+
+	/**
+	 * Parses an MR file and generates it in all languages.
+	*/
+	private class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private String path;
+		private MeaningRepresentation mr;
+
+		/*
+		For each language: the text generated, or null if it failed, the error if it failed,
+		and the debug trace if one is wanted.
+		*/
+		private String results[];
+		private String errors[];
+		private String traces[];
+
+		private FileTask(String path) {
+			this.path = path;
+			results = new String[languages.size()];
+			errors = new String[languages.size()];
+			traces = new String[languages.size()];
+		}
+
+		protected void compute() {
+			try {
+				if (interner == null) {
+					mr = new MeaningRepresentation(path);
+				} else {
+					mr = interner.load(path);
+				}
+			}
+			catch (RuntimeException e) {
+				for (int i = 0; i < errors.length; i++) {
+					errors[i] = e.toString();
+				}
+				return;
+			}
+
+			LanguageTask languageTasks[] = new LanguageTask[languages.size()];
+			for (int i = 0; i < languageTasks.length; i++) {
+				languageTasks[i] = new LanguageTask(this, i);
+			}
+			ForkJoinTask.invokeAll(languageTasks);
+			mr = null;
+		}
+
+		/**
+		 * Writes the results, and reports the errors.
+		 *
+		 * @return the number of errors
+		*/
+		private int write(Writer out) throws IOException {
+			int failures = 0;
+			for (int i = 0; i < results.length; i++) {
+				if (traces[i] != null) {
+					out.write(traces[i]);
+				}
+				if (results[i] == null) {
+					System.err.println(path + ", " + languages.get(i) + ": " + errors[i]);
+					out.write("?");
+					failures++;
+				} else {
+					out.write(results[i]);
+				}
+				out.write("\n");
+			}
+			return failures;
+		}
+	}
+
+	/**
+	 * Generates a parsed MR in one language.
+	*/
+	private class LanguageTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private FileTask file;
+		private int index;
+
+		private LanguageTask(FileTask file, int index) {
+			this.file = file;
+			this.index = index;
+		}
+
+		protected void compute() {
+			StringWriter traceText = null;
+			DebugTracer tracer = null;
+			if (trace) {
+				traceText = new StringWriter();
+				tracer = new DebugTracer(new PrintWriter(traceText));
+			}
+			StringBuilder text = new StringBuilder();
+			try {
+				file.mr.generate((String) languages.get(index), new GenerationContext(engine, tracer), text);
+				file.results[index] = text.toString();
+			}
+			catch (RuntimeException e) {
+				file.errors[index] = e.toString();
+			}
+			catch (StackOverflowError e) {
+				file.errors[index] = e.toString();
+			}
+			if (trace) {
+				file.traces[index] = traceText.toString();
+			}
+		}
+	}
+}
@@ -0,0 +1,341 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The rules of a language, compiled into Java code by the GrammarCompiler.
+ *
+ * The compiler writes a subclass of this for each language, called CompiledRules_<language>,
+ * with a method for each rule, for each distinct list of rules that may be invoked for a name,
+ * and for each path. These call straight into the MRNodes instead of walking over MeaningRules,
+ * LogicNode trees and PatternInstructions. This class holds what the generated code needs at
+ * runtime: which rule set each type has, which names and tags each type has, and which field
+ * each field name stands for in each type. All of this is bound by name against the vocabulary
+ * when the compiled rules are loaded, so only a change to the rules file makes them out of date.
+ *
+ * The compiled rules produce the same text, and throw the same exceptions, as the
+ * LanguageRuleServer for the same rules file would.
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public abstract class CompiledGrammar {
+
+	/**
+	 * The compiled rules for language xx are in a class called CLASS_PREFIX + xx.
+	*/
+	public static final String CLASS_PREFIX = "CompiledRules_";
+
+	/**
+	 * The code of the language these rules are for.
+	*/
+	protected final String languageName;
+
+	/*
+	The checksum of the rules file these rules were compiled from.
+	*/
+	private long rulesChecksum;
+
+	/*
+	For each rule set: its name, the index of its super rule set or -1, its tags and where it
+	is defined. Rule sets are referred to by their index in these arrays.
+	*/
+	private String ruleSetNames[];
+	private int ruleSetSupers[];
+	private String ruleSetTags[][];
+	private String ruleSetLocations[];
+
+	/*
+	The types and tags the paths check for. The generated code refers to them by index.
+	*/
+	private String symbols[];
+
+	/*
+	The field names the paths move along. The generated code refers to them by index.
+	*/
+	private String fieldLabels[];
+
+	/*
+	For each field name, a map from every type that has a field of that name to the field.
+	Filled in by bind().
+	*/
+	private Map fields[];
+
+	/*
+	Maps each type that has a rule set to the index of the rule set as an Integer.
+	Filled in by bind().
+	*/
+	private IdentityHashMap typeToRuleSet;
+
+	/*
+	Maps each type that has a name in this language to a BitSet of the symbols it has: its name,
+	and the names and tags of its rule set and that rule set's super rule sets. Filled in by bind().
+	*/
+	private IdentityHashMap typeToSymbols;
+
+	/**
+	 * The constructor, called by the generated subclass with the tables it was compiled with.
+	 *
+	 * @param languageName the code of the language
+	 * @param rulesChecksum the checksum of the rules file the rules were compiled from
+	 * @param ruleSetNames the name of each rule set
+	 * @param ruleSetSupers the index of the super rule set of each rule set, or -1
+	 * @param ruleSetTags the tags of each rule set
+	 * @param ruleSetLocations the line and file each rule set is defined in
+	 * @param symbols the types and tags the paths check for
+	 * @param fieldLabels the field names the paths move along
+	*/
+	protected CompiledGrammar(String languageName, long rulesChecksum, String ruleSetNames[], int ruleSetSupers[], String ruleSetTags[][], String ruleSetLocations[], String symbols[], String fieldLabels[]) {
+		this.languageName = languageName;
+		this.rulesChecksum = rulesChecksum;
+		this.ruleSetNames = ruleSetNames;
+		this.ruleSetSupers = ruleSetSupers;
+		this.ruleSetTags = ruleSetTags;
+		this.ruleSetLocations = ruleSetLocations;
+		this.symbols = symbols;
+		this.fieldLabels = fieldLabels;
+	}
+
+	/**
+	 * Loads the compiled rules for the given language, if there are any.
+	 *
+	 * @param language the code of the language
+	 * @param vocabulary the vocabulary to bind the rules to, which must have been linked
+	 * @return the compiled rules, or null if there are none, or if they are out of date
+	*/
+	public static CompiledGrammar load(String language, Vocabulary vocabulary) {
+		Class grammarClass;
+		try {
+			grammarClass = Class.forName(CLASS_PREFIX + language);
+		}
+		catch (ClassNotFoundException e) {
+			return null;
+		}
+
+		CompiledGrammar grammar;
+		try {
+			grammar = (CompiledGrammar) grammarClass.getConstructor(new Class[0]).newInstance(new Object[0]);
+		}
+		catch (Exception e) {
+			System.err.println("The compiled rules for " + language + " could not be loaded, so they are interpreted instead: " + e.toString());
+			return null;
+		}
+
+		File rulesFile = LanguageRuleServer.rulesFile(language);
+		if ((rulesFile.exists() == false) || (grammar.rulesChecksum != checksum(rulesFile))) {
+			System.err.println("The compiled rules for " + language + " are out of date, so they are interpreted instead. Run GrammarCompiler to update them.");
+			return null;
+		}
+
+		grammar.bind(vocabulary);
+		return grammar;
+	}
+
+	/**
+	 * Works out the checksum of a file, for telling whether compiled rules are out of date.
+	 *
+	 * @param file the file
+	 * @return the CRC-32 of its contents
+	*/
+	public static long checksum(File file) {
+		CRC32 crc = new CRC32();
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				byte buffer[] = new byte[8192];
+				int read = in.read(buffer);
+				while (read > -1) {
+					crc.update(buffer, 0, read);
+					read = in.read(buffer);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new LanguageNotImplementedException("The rules file " + file.getPath() + " could not be read: " + e.toString());
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Binds the names in the tables to the given vocabulary.
+	*/
+	private void bind(Vocabulary vocabulary) {
+		fields = new Map[fieldLabels.length];
+		for (int i = 0; i < fieldLabels.length; i++) {
+			fields[i] = vocabulary.getFieldsLabelled(fieldLabels[i], languageName);
+			if (fields[i] == null) {
+				fields[i] = Collections.EMPTY_MAP;
+			}
+		}
+
+		HashMap symbolToIndex = new HashMap();
+		for (int i = 0; i < symbols.length; i++) {
+			symbolToIndex.put(symbols[i], Integer.valueOf(i));
+		}
+
+		/*
+		Like the LanguageRuleServer, a rule set belongs to the type with the same name, if there is one.
+		*/
+		typeToRuleSet = new IdentityHashMap();
+		for (int i = 0; i < ruleSetNames.length; i++) {
+			VocabularyMeaning type = vocabulary.lookupMeaningNullOnFail(ruleSetNames[i], languageName);
+			if (type != null) {
+				typeToRuleSet.put(type, Integer.valueOf(i));
+			}
+		}
+
+		typeToSymbols = new IdentityHashMap();
+		Iterator typeIter = vocabulary.getAllMeanings().iterator();
+		while (typeIter.hasNext()) {
+			VocabularyMeaning type = (VocabularyMeaning) typeIter.next();
+			if (type.hasName(languageName)) {
+				BitSet typeSymbols = new BitSet();
+				setSymbol(typeSymbols, symbolToIndex, type.getName(languageName));
+
+				Integer ruleSet = (Integer) typeToRuleSet.get(type);
+				HashSet visited = new HashSet();
+				while ((ruleSet != null) && visited.add(ruleSet)) {
+					int r = ruleSet.intValue();
+					setSymbol(typeSymbols, symbolToIndex, ruleSetNames[r]);
+					for (int i = 0; i < ruleSetTags[r].length; i++) {
+						setSymbol(typeSymbols, symbolToIndex, ruleSetTags[r][i]);
+					}
+					ruleSet = (ruleSetSupers[r] < 0) ? null : Integer.valueOf(ruleSetSupers[r]);
+				}
+				typeToSymbols.put(type, typeSymbols);
+			}
+		}
+	}
+
+	/**
+	 * Sets the bit of the given symbol, if any path checks for it.
+	*/
+	private static void setSymbol(BitSet bits, HashMap symbolToIndex, String symbol) {
+		Integer index = (Integer) symbolToIndex.get(symbol);
+		if (index != null) {
+			bits.set(index.intValue());
+		}
+	}
+
+	/**
+	 * Produces the text for a meaning representation, appending it to the given buffer.
+	 * If generation fails, the buffer may contain partial output.
+	 *
+	 * @param root the root node of the meaning representation
+	 * @param context the generation request this is part of
+	 * @param out the buffer the natural language text is appended to
+	*/
+	public void produce(MRNode root, GenerationContext context, StringBuilder out) {
+		produceRoot(ruleSetOf(root, "Input File, Initial Generation Request:\n"), root, context, out);
+	}
+
+	/**
+	 * Invokes the rules called * of the given rule set. Implemented by the generated code.
+	 *
+	 * @param ruleSet the index of the rule set
+	 * @param node the node to invoke the rules for
+	 * @param context the generation request this is part of
+	 * @param out the buffer the natural language text is appended to
+	*/
+	protected abstract void produceRoot(int ruleSet, MRNode node, GenerationContext context, StringBuilder out);
+
+	/**
+	 * Returns the index of the rule set of the given node's type.
+	 *
+	 * @param node the node
+	 * @param errorLocation which line and file caused the request for the rule set
+	 * @return the index of the rule set
+	 * @throws RuleSetNotFoundException
+	*/
+	protected final int ruleSetOf(MRNode node, String errorLocation) {
+		Integer ruleSet = (Integer) typeToRuleSet.get(node.getType());
+		if (ruleSet == null) {
+			throw new RuleSetNotFoundException(languageName, node.getType().getName(languageName), errorLocation);
+		}
+		return ruleSet.intValue();
+	}
+
+	/**
+	 * Returns the field with the given field name in the type of the given node, or null.
+	 *
+	 * @param fieldLabel the index of the field name
+	 * @param node the node
+	 * @return the field
+	*/
+	protected final MeaningField field(int fieldLabel, MRNode node) {
+		return (MeaningField) fields[fieldLabel].get(node.getType());
+	}
+
+	/**
+	 * Returns true if the given node has the given type or tag, or for literals, the given value.
+	 *
+	 * @param node the node
+	 * @param symbol the index of the type or tag
+	 * @return whether the node has it
+	*/
+	protected final boolean is(MRNode node, int symbol) {
+		if (node.isLiteral()) {
+			return node.literalValue().equals(symbols[symbol]);
+		}
+		BitSet typeSymbols = (BitSet) typeToSymbols.get(node.getType());
+		if (typeSymbols == null) {
+			return node.getType().getName(languageName).equals(symbols[symbol]);
+		}
+		return typeSymbols.get(symbol);
+	}
+
+	/**
+	 * Checks that a path in a production string could be followed.
+	 *
+	 * @param node the node at the end of the path, or null if it could not be followed
+	 * @param pattern the path
+	 * @param errorLocation the line and file of the production string
+	 * @return the node
+	 * @throws ProductionPatternCannotBeResolvedException
+	*/
+	protected final MRNode resolved(MRNode node, String pattern, String errorLocation) {
+		if (node == null) {
+			throw new ProductionPatternCannotBeResolvedException(pattern, errorLocation);
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the exception for when none of the rules with the given name apply. Like the
+	 * MeaningRuleSet, it names the last rule set in the chain of super rule sets.
+	 *
+	 * @param match the name of the rules
+	 * @param ruleSet the index of the rule set they were invoked on
+	 * @return the exception
+	*/
+	protected final RuntimeException noMatch(String match, int ruleSet) {
+		int last = ruleSet;
+		while (ruleSetSupers[last] > -1) {
+			last = ruleSetSupers[last];
+		}
+		return new NoMatchingProductionRuleFoundException(match, ruleSetNames[last], ruleSetLocations[last]);
+	}
+
+	/**
+	 * Capitalises the first letter written to the buffer after the given position.
+	 * If nothing has been written since, this fails with a StringIndexOutOfBoundsException,
+	 * just as capitalising an empty result always has, so that the rule fails.
+	 *
+	 * @param out the buffer
+	 * @param start the position of the letter to capitalise
+	*/
+	protected final void capitalise(StringBuilder out, int start) {
+		out.replace(start, start + 1, out.substring(start, start + 1).toUpperCase());
+	}
+}
@@ -1,59 +1,65 @@
+import java.io.PrintWriter;
+
 /**
  * The purpose of this class is to allow the generator to
  * output detailed messages detailing each step in the execution if so wished.
  *
+ * A tracer belongs to a single generation request, and is handed down with its
+ * GenerationContext, so requests running at the same time each get their own trace.
+ * Requests without a tracer are not traced.
+ *
  * @author David Stark
  * @version 2006-02-09
 */
 
 public class DebugTracer {
 
-private static boolean doDebug;
-private static int recursionLevel;
+private PrintWriter out;
+private int recursionLevel;
 
 /**
- * Static method for setting the doDebug boolean.
+ * Constructor.
  *
- * @param doDebug the value to set dDebug to
+ * @param out where to write the trace to
 */
-public static void setDoDebug(boolean doDebugValue) {
-	doDebug = doDebugValue;
+public DebugTracer(PrintWriter out) {
+	this.out = out;
 }
 
 /**
- * Static method for querying the value of doDebug.
+ * Writes a line of the trace, indented by the current recursion level.
  *
- * @return whether debug trace information should be printed
+ * @param message the line
 */
-public static boolean doDebug() {
-	return doDebug;
+public void trace(String message) {
+	out.println(getIndent() + message);
 }
 
 /**
  * Resets the current recursion level.
 */
-public static void resetRL() {
+public void resetRL() {
 	recursionLevel = 0;
 }
 
 /**
  * Increments the current recursion level.
 */
-public static void incRL() {
+public void incRL() {
 	recursionLevel++;
 }
 
 /**
  * Decrements the current recursion level.
 */
-public static void decRL() {
+public void decRL() {
 	recursionLevel--;
 }
 
 /**
  * Outputs as many space characters as the current recursion level.
 */
-public static String getIndent() {
+public String getIndent() {
 	StringBuffer indent = new StringBuffer();
 	indent.ensureCapacity(recursionLevel);
 	int i = 1;
@@ -0,0 +1,372 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.io.File;
+
+/**
+ * A generator engine: a linked vocabulary, and the rules of the languages for it.
+ *
+ * An Engine can be shared by any number of threads generating at the same time. Its
+ * vocabulary and settings never change, and the rules of a language are loaded the first
+ * time they are asked for, after which the very same LanguageRuleServer is always returned.
+ * Reloading the rules of a language makes a new Engine instead of changing this one, so a
+ * generation request that holds on to an Engine sees the same rules from start to finish.
+ *
+ * VocabularyServer and LanguageServer give static access to the default Engine, which is
+ * made by VocabularyServer.loadAndLinkVocabulary().
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public class Engine {
+
+	/*
+	The Engine the static VocabularyServer and LanguageServer use.
+	*/
+	private static volatile Engine defaultEngine;
+
+	private final Vocabulary vocabulary;
+
+	/*
+	Whether the rules loaded by this Engine get compiled into decision trees, and whether compiled
+	rules are used for the languages that have them.
+	*/
+	private final boolean compileDecisionTrees;
+	private final boolean useCompiledGrammars;
+
+	/*
+	Maps language codes to the LanguageRuleServers loaded so far. The map is never changed once
+	published: loading a language makes a new map with it added, so it can be read without locking.
+	*/
+	private volatile HashMap nameToRuleServer;
+
+	/*
+	Maps language codes to the CompiledGrammars for them. Languages without compiled rules
+	map to their own code. Like nameToRuleServer, the map is replaced rather than changed.
+	*/
+	private volatile HashMap nameToCompiledGrammar;
+
+	/**
+	 * The constructor. Makes an Engine for the given vocabulary with no languages loaded yet.
+	 *
+	 * @param vocabulary the vocabulary, which must have been linked
+	 * @param compileDecisionTrees whether the rules of languages get compiled into decision trees
+	 * @param useCompiledGrammars whether compiled rules are used for the languages that have them
+	*/
+	public Engine(Vocabulary vocabulary, boolean compileDecisionTrees, boolean useCompiledGrammars) {
+		this(vocabulary, compileDecisionTrees, useCompiledGrammars, new HashMap(), new HashMap());
+	}
+
+	/**
+	 * Makes an Engine with the given languages already loaded.
+	*/
+	private Engine(Vocabulary vocabulary, boolean compileDecisionTrees, boolean useCompiledGrammars, HashMap nameToRuleServer, HashMap nameToCompiledGrammar) {
+		this.vocabulary = vocabulary;
+		this.compileDecisionTrees = compileDecisionTrees;
+		this.useCompiledGrammars = useCompiledGrammars;
+		this.nameToRuleServer = nameToRuleServer;
+		this.nameToCompiledGrammar = nameToCompiledGrammar;
+	}
+
+	/**
+	 * Returns the default Engine.
+	 *
+	 * @return the engine
+	 * @throws VocabularyServerException if no vocabulary has been loaded yet
+	*/
+	public static Engine getDefault() {
+		Engine engine = defaultEngine;
+		if (engine == null) {
+			throw new VocabularyServerException("The vocabulary has not been loaded.");
+		}
+		return engine;
+	}
+
+	/**
+	 * Returns the default Engine, or null if no vocabulary has been loaded yet.
+	*/
+	public static Engine getDefaultNullOnFail() {
+		return defaultEngine;
+	}
+
+	/**
+	 * Makes the given Engine the default. Requests that have already started carry on with
+	 * the Engine they started with.
+	 *
+	 * @param engine the engine
+	*/
+	public static void setDefault(Engine engine) {
+		defaultEngine = engine;
+	}
+
+	/**
+	 * Returns the vocabulary.
+	*/
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Returns whether the rules of languages get compiled into decision trees.
+	*/
+	public boolean compileDecisionTrees() {
+		return compileDecisionTrees;
+	}
+
+	/**
+	 * Returns whether compiled rules are used for the languages that have them.
+	*/
+	public boolean useCompiledGrammars() {
+		return useCompiledGrammars;
+	}
+
+	/**
+	 * Returns the codes of the languages whose rules have been loaded so far.
+	 * The set cannot be modified.
+	 *
+	 * @return a set of language codes
+	*/
+	public Set getLoadedLanguages() {
+		return Collections.unmodifiableSet(nameToRuleServer.keySet());
+	}
+
+	/**
+	 * Returns the language rule server for the given language, loading it from file if
+	 * it has not been loaded yet.
+	 *
+	 * @param languageName the code of the language, such as en or de
+	 * @return the language rule server for that language
+	*/
+	public LanguageRuleServer getLanguageRuleServer(String languageName) {
+		LanguageRuleServer server = (LanguageRuleServer) nameToRuleServer.get(languageName);
+		if (server != null) {
+			return server;
+		}
+		synchronized (this) {
+			server = (LanguageRuleServer) nameToRuleServer.get(languageName);
+			if (server == null) {
+				server = new LanguageRuleServer(languageName, vocabulary, compileDecisionTrees);
+				HashMap added = new HashMap();
+				added.put(languageName, server);
+				publish(added);
+			}
+			return server;
+		}
+	}
+
+	/**
+	 * Returns the compiled rules for the given language, loading them if they have not been
+	 * loaded yet.
+	 *
+	 * @param languageName the code of the language, such as en or de
+	 * @return the compiled rules, or null if there are none that are up to date, or if they are not to be used
+	*/
+	public CompiledGrammar getCompiledGrammar(String languageName) {
+		if (useCompiledGrammars == false) {
+			return null;
+		}
+		Object grammar = nameToCompiledGrammar.get(languageName);
+		if (grammar == null) {
+			synchronized (this) {
+				grammar = nameToCompiledGrammar.get(languageName);
+				if (grammar == null) {
+					grammar = CompiledGrammar.load(languageName, vocabulary);
+					if (grammar == null) {
+						grammar = languageName;
+					}
+					HashMap updated = new HashMap(nameToCompiledGrammar);
+					updated.put(languageName, grammar);
+					nameToCompiledGrammar = updated;
+				}
+			}
+		}
+		if (grammar instanceof CompiledGrammar) {
+			return (CompiledGrammar) grammar;
+		}
+		return null;
+	}
+
+	/**
+	 * Loads the LanguageRuleServers for all the given languages that are not loaded yet, several at
+	 * once, so that no generation request has to wait for its language to be loaded.
+	 *
+	 * The servers are only made available once all of them have been loaded. If some languages
+	 * could not be loaded, the others are still made available, and then the exception of the
+	 * first language in the list that failed is thrown, as loading them one by one would have.
+	 *
+	 * @param languageNames the codes of the languages
+	 * @param threads the most languages to load at the same time
+	 * @return a map from each language loaded to how long it took in milliseconds, in the order given
+	*/
+	public LinkedHashMap preloadLanguageRuleServers(List languageNames, int threads) {
+		HashMap current = nameToRuleServer;
+		ArrayList toLoad = new ArrayList();
+		Iterator iter = languageNames.iterator();
+		while (iter.hasNext()) {
+			String languageName = (String) iter.next();
+			if ((current.containsKey(languageName) == false) && (toLoad.contains(languageName) == false)) {
+				toLoad.add(languageName);
+			}
+		}
+		LinkedHashMap loadTimes = new LinkedHashMap();
+		if (toLoad.size() == 0) {
+			return loadTimes;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, toLoad.size())));
+		ArrayList futures = new ArrayList();
+		try {
+			iter = toLoad.iterator();
+			while (iter.hasNext()) {
+				final String languageName = (String) iter.next();
+				futures.add(pool.submit(new Callable() {
+					public Object call() {
+						long start = System.nanoTime();
+						LanguageRuleServer server = new LanguageRuleServer(languageName, vocabulary, compileDecisionTrees);
+						return new Object[] {server, Long.valueOf((System.nanoTime() - start) / 1000000)};
+					}
+				}));
+			}
+
+			/*
+			Collect the results in the order of the list, so the timings and the exception thrown
+			do not depend on which language happened to finish first.
+			*/
+			HashMap loaded = new HashMap();
+			RuntimeException firstError = null;
+			for (int i = 0; i < toLoad.size(); i++) {
+				String languageName = (String) toLoad.get(i);
+				try {
+					Object result[] = (Object[]) waitFor((Future) futures.get(i));
+					loaded.put(languageName, result[0]);
+					loadTimes.put(languageName, result[1]);
+				}
+				catch (RuntimeException e) {
+					if (firstError == null) {
+						firstError = e;
+					}
+				}
+			}
+			publish(loaded);
+			if (firstError != null) {
+				throw firstError;
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return loadTimes;
+	}
+
+	/**
+	 * Waits for a language to be loaded, passing on what it threw.
+	*/
+	private static Object waitFor(Future future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LanguageNotImplementedException("Interrupted while loading the language rules.");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new LanguageNotImplementedException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Makes the given LanguageRuleServers available, all at the same time. Servers already
+	 * available for the same languages are kept.
+	*/
+	private synchronized void publish(HashMap servers) {
+		HashMap updated = new HashMap(servers);
+		updated.putAll(nameToRuleServer);
+		nameToRuleServer = updated;
+	}
+
+	/**
+	 * Returns an Engine like this one, but with the given rules for the given language.
+	 * Compiled rules for the language are looked up again, which checks whether they
+	 * match its rules file.
+	 *
+	 * @param languageName the code of the language
+	 * @param server the rules, which must have been loaded for the vocabulary of this Engine
+	 * @return the new engine
+	*/
+	public synchronized Engine withRuleServer(String languageName, LanguageRuleServer server) {
+		HashMap servers = new HashMap(nameToRuleServer);
+		servers.put(languageName, server);
+		HashMap grammars = new HashMap(nameToCompiledGrammar);
+		grammars.remove(languageName);
+		return new Engine(vocabulary, compileDecisionTrees, useCompiledGrammars, servers, grammars);
+	}
+
+	/**
+	 * Returns an Engine like this one, but with the given settings. The languages loaded
+	 * so far stay loaded as they are.
+	 *
+	 * @param compileDecisionTrees whether the rules of languages loaded from now on get compiled into decision trees
+	 * @param useCompiledGrammars whether compiled rules are used for the languages that have them
+	 * @return the new engine
+	*/
+	public synchronized Engine withSettings(boolean compileDecisionTrees, boolean useCompiledGrammars) {
+		return new Engine(vocabulary, compileDecisionTrees, useCompiledGrammars, nameToRuleServer, nameToCompiledGrammar);
+	}
+
+	/**
+	 * Writes the vocabulary and the LanguageRuleServers for the given languages to a snapshot,
+	 * loading them first if necessary. See Snapshot.
+	 *
+	 * @param out the snapshot
+	 * @param languageNames the codes of the languages, each listed once
+	*/
+	public void writeSnapshot(SnapshotOutput out, List languageNames) {
+		ArrayList servers = new ArrayList();
+		Iterator iter = languageNames.iterator();
+		while (iter.hasNext()) {
+			servers.add(getLanguageRuleServer((String) iter.next()));
+		}
+		vocabulary.writeSnapshot(out);
+		out.writeInt(servers.size());
+		iter = servers.iterator();
+		while (iter.hasNext()) {
+			((LanguageRuleServer) iter.next()).writeSnapshot(out);
+		}
+	}
+
+	/**
+	 * Reads an Engine back in from a snapshot, instead of loading the vocabulary and rules
+	 * from file. See Snapshot.
+	 *
+	 * @param in the snapshot
+	 * @param vocabularyFile the vocabulary file the snapshot was made from
+	 * @param compileDecisionTrees whether the rules of languages not in the snapshot get compiled into decision trees
+	 * @param useCompiledGrammars whether compiled rules are used for the languages that have them
+	 * @return the engine
+	*/
+	public static Engine readSnapshot(SnapshotInput in, File vocabularyFile, boolean compileDecisionTrees, boolean useCompiledGrammars) {
+		Vocabulary vocabulary = new Vocabulary(in, vocabularyFile);
+		HashMap servers = new HashMap();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			LanguageRuleServer server = new LanguageRuleServer(in, vocabulary);
+			servers.put(server.languageName, server);
+		}
+		return new Engine(vocabulary, compileDecisionTrees, useCompiledGrammars, servers, new HashMap());
+	}
+}
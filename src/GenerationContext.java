@@ -0,0 +1,156 @@
+/**
+ * Holds the state of a single generation request, such as one call to
+ * MeaningRepresentation.generate(). It is passed down through the rule sets,
+ * rules and conditions while the text is produced. It also holds the Engine the
+ * request uses, so that the request uses the same rules from start to finish, and
+ * the DebugTracer the request is traced with, if any.
+ *
+ * While a sentence is being produced, the same conditions get tested on the
+ * same nodes again and again, as every {localrule} goes back to its rule set and
+ * re-tests the conditions of the rules before it. So the context remembers the
+ * result of each path it has evaluated on each node. The MR must not be changed
+ * while a context is in use.
+*/
+public class GenerationContext {
+
+	/*
+	The cache of pattern results. It is a hash table with open addressing, keyed by a long
+	made out of the ID of a TreePattern and the ID of an MRNode, so that looking up a result
+	needs neither an object for the key nor one for the value. A key of 0 marks an empty slot,
+	which is why keys are stored plus one.
+	*/
+	private long keys[];
+	private boolean results[];
+	private int size;
+
+	private int cacheHits;
+	private int cacheMisses;
+
+	private Engine engine;
+	private DebugTracer tracer;
+
+	/**
+	 * The constructor. Creates a context with nothing cached, for generating with the default
+	 * Engine without a trace.
+	*/
+	public GenerationContext() {
+		this(Engine.getDefault(), null);
+	}
+
+	/**
+	 * Creates a context with nothing cached, for generating with the given Engine.
+	 *
+	 * @param engine the engine
+	 * @param tracer the tracer to trace the request with, or null for no trace
+	*/
+	public GenerationContext(Engine engine, DebugTracer tracer) {
+		this.engine = engine;
+		this.tracer = tracer;
+		keys = new long[64];
+		results = new boolean[64];
+	}
+
+	/**
+	 * Returns the Engine this request generates with.
+	*/
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Returns the tracer this request is traced with, or null if it is not traced.
+	*/
+	public DebugTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Returns the cached result of evaluating a pattern on a node, or null
+	 * if it has not been evaluated yet.
+	 *
+	 * @param patternID the ID the LanguageRuleServer assigned to the pattern
+	 * @param node the node the pattern was evaluated on
+	 * @return the result, or null
+	*/
+	public Boolean cachedResult(int patternID, MRNode node) {
+		long key = key(patternID, node);
+		int slot = slotFor(key, keys);
+		if (keys[slot] == 0) {
+			cacheMisses++;
+			return null;
+		}
+		cacheHits++;
+		return Boolean.valueOf(results[slot]);
+	}
+
+	/**
+	 * Remembers the result of evaluating a pattern on a node.
+	 *
+	 * @param patternID the ID the LanguageRuleServer assigned to the pattern
+	 * @param node the node the pattern was evaluated on
+	 * @param result the result
+	*/
+	public void cacheResult(int patternID, MRNode node, boolean result) {
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		long key = key(patternID, node);
+		int slot = slotFor(key, keys);
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		results[slot] = result;
+	}
+
+	/**
+	 * Returns how often a cached result was found.
+	*/
+	public int getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Returns how often a result had to be worked out because it was not cached.
+	*/
+	public int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/**
+	 * Combines the pattern and node IDs into a single key, which is never 0.
+	*/
+	private static long key(int patternID, MRNode node) {
+		return ((((long) patternID) << 32) | (node.iD & 0xFFFFFFFFL)) + 1;
+	}
+
+	/**
+	 * Finds the slot the given key is in, or the empty slot where it would go.
+	*/
+	private static int slotFor(long key, long table[]) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int mask = table.length - 1;
+		int slot = (int) (hash >>> 40) & mask;
+		while ((table[slot] != 0) && (table[slot] != key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the size of the table, moving all cached results over.
+	*/
+	private void grow() {
+		long oldKeys[] = keys;
+		boolean oldResults[] = results;
+		keys = new long[oldKeys.length * 2];
+		results = new boolean[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slotFor(oldKeys[i], keys);
+				keys[slot] = oldKeys[i];
+				results[slot] = oldResults[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,408 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Iterator;
+import java.util.EnumSet;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Writer;
+import java.io.PrintWriter;
+import java.io.IOException;
+
+/**
+ * A daemon that keeps the vocabulary and rules loaded and generates MRs for GeneratorClients,
+ * which it talks to over a Unix domain socket, so that running the generator again and again,
+ * as build tools do, does not mean loading everything again each time.
+ *
+ * A client sends its arguments, which are those of Generator.main(), and the daemon generates
+ * the MRs in the given files in the given languages, or the MR the client read from stdin if no
+ * files are given, and sends back what Generator would write, one line for each result. Without
+ * target languages, the MRs are generated in the languages the daemon was started with.
+ * --debugtrace and --inputgraph work as they do for Generator, and --stop stops the daemon.
+ *
+ * The daemon stops by itself once no client has talked to it for the idle time.
+ *
+ * Each request is generated with the Engine that is the default when it starts.
+*/
+public class GenerationDaemon {
+
+	/**
+	 * How long the daemon waits for a client before it stops, in seconds, by default.
+	*/
+	public static final int DEFAULT_IDLE_TIME = 600;
+
+	/*
+	What the parts of a response are: output, error output, and the exit code, which ends it.
+	*/
+	static final int OUT = 'o';
+	static final int ERR = 'e';
+	static final int EXIT = 'x';
+
+	/*
+	The longest piece of text sent in one part, in characters, so that it fits writeUTF().
+	*/
+	private static final int MAX_PART_LENGTH = 16384;
+
+	private List defaultLanguages;
+	private long idleTime;
+	private ServerSocketChannel server;
+	private File socketFile;
+
+	/*
+	The number of clients being served, and when the last one finished.
+	*/
+	private int clients;
+	private long lastRequest;
+
+	/**
+	 * Returns the path of the socket the daemon listens on, next to the vocabulary file.
+	*/
+	public static File socketFile() {
+		return new File(VocabularyServer.vocabularyFile().getParentFile(), "generator.sock");
+	}
+
+	/**
+	 * Constructor. Starts listening straight away. The vocabulary must have been loaded and
+	 * linked first.
+	 *
+	 * @param languages the codes of the languages to generate in when a client names none
+	 * @param idleTime how long to wait for a client before stopping, in seconds
+	 * @throws IOException if the socket cannot be listened on, or another daemon is listening on it
+	*/
+	public GenerationDaemon(List languages, int idleTime) throws IOException {
+		defaultLanguages = new ArrayList(languages);
+		this.idleTime = idleTime * 1000L;
+		socketFile = socketFile();
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socketFile.toPath());
+
+		/*
+		A socket file left behind by a daemon that did not stop cleanly is taken over.
+		*/
+		if (socketFile.exists()) {
+			if (isListening(address)) {
+				throw new IOException("Another daemon is already listening on " + socketFile.getPath());
+			}
+			socketFile.delete();
+		}
+
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(address);
+		try {
+			Files.setPosixFilePermissions(socketFile.toPath(), EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+		}
+		catch (UnsupportedOperationException e) {
+			//only users who can get at the data directory can connect then
+		}
+		lastRequest = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns whether a daemon is listening on the given socket.
+	*/
+	private static boolean isListening(UnixDomainSocketAddress address) {
+		try {
+			SocketChannel.open(address).close();
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Serves clients until the daemon has been idle for the idle time, or a client stops it.
+	 * Each client is served on a thread of its own.
+	*/
+	public void run() {
+		Thread idleWatcher = new Thread("Daemon idle watcher") {
+			public void run() {
+				watchIdleTime();
+			}
+		};
+		idleWatcher.setDaemon(true);
+		idleWatcher.start();
+
+		try {
+			while (true) {
+				final SocketChannel client = server.accept();
+				synchronized (this) {
+					clients++;
+				}
+				new Thread("Daemon client") {
+					public void run() {
+						try {
+							serve(client);
+						}
+						finally {
+							synchronized (GenerationDaemon.this) {
+								clients--;
+								lastRequest = System.currentTimeMillis();
+							}
+						}
+					}
+				}.start();
+			}
+		}
+		catch (ClosedChannelException e) {
+			//stopped
+		}
+		catch (IOException e) {
+			System.err.println("The daemon stopped listening: " + e.toString());
+		}
+		finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Stops listening for clients. The clients being served are served to the end.
+	*/
+	public void stop() {
+		try {
+			server.close();
+		}
+		catch (IOException e) {
+			//nothing left to do
+		}
+		socketFile.delete();
+	}
+
+	/**
+	 * Stops the daemon once it has been idle for the idle time.
+	*/
+	private void watchIdleTime() {
+		try {
+			while (true) {
+				long idleUntil;
+				synchronized (this) {
+					idleUntil = (clients > 0) ? System.currentTimeMillis() + idleTime : lastRequest + idleTime;
+				}
+				long wait = idleUntil - System.currentTimeMillis();
+				if (wait <= 0) {
+					stop();
+					return;
+				}
+				Thread.sleep(wait);
+			}
+		}
+		catch (InterruptedException e) {
+			//stop watching
+		}
+	}
+
+	/**
+	 * Reads a request from a client, carries it out and sends back the response.
+	*/
+	private void serve(SocketChannel client) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+			try {
+				String directory = in.readUTF();
+				String args[] = new String[in.readInt()];
+				for (int i = 0; i < args.length; i++) {
+					args[i] = in.readUTF();
+				}
+				String input = readText(in);
+
+				PartWriter outWriter = new PartWriter(out, OUT);
+				PartWriter errWriter = new PartWriter(out, ERR);
+				int exitCode = generate(new File(directory), args, input, outWriter, new PrintWriter(errWriter));
+				outWriter.flush();
+				errWriter.flush();
+				out.writeByte(EXIT);
+				out.writeInt(exitCode);
+				out.flush();
+			}
+			finally {
+				client.close();
+			}
+		}
+		catch (IOException e) {
+			//the client has gone away
+		}
+	}
+
+	/**
+	 * Carries out a request in the same way Generator.main() would.
+	 *
+	 * @param directory the client's working directory, which relative paths are relative to
+	 * @param args the arguments, as for Generator.main()
+	 * @param input the MR the client read from stdin, or null if it read none
+	 * @return the exit code for the client
+	*/
+	private int generate(File directory, String args[], String input, Writer out, PrintWriter err) throws IOException {
+		ArrayList sourceFiles = new ArrayList();
+		ArrayList targetLanguages = new ArrayList();
+		boolean trace = false;
+		boolean inputGraph = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--debugtrace")) {
+				trace = true;
+			} else if (args[i].equals("--inputgraph")) {
+				inputGraph = true;
+			} else if (args[i].equals("--stop")) {
+				stop();
+				return 0;
+			} else if (args[i].startsWith("--")) {
+				err.println("The daemon does not support " + args[i] + ".");
+				err.flush();
+				return 2;
+			} else if (args[i].startsWith("-")) {
+				targetLanguages.add(args[i].substring(1));
+			} else {
+				File file = new File(args[i]);
+				if (file.isAbsolute() == false) {
+					file = new File(directory, args[i]);
+				}
+				sourceFiles.add(file.getPath());
+			}
+		}
+		if (targetLanguages.size() == 0) {
+			targetLanguages.addAll(defaultLanguages);
+		}
+
+		/*
+		Load the input files into MRs.
+		*/
+		ArrayList mrs = new ArrayList();
+		if (sourceFiles.size() == 0) {
+			sourceFiles.add(null);
+		}
+		Iterator fileIter = sourceFiles.iterator();
+		while (fileIter.hasNext()) {
+			String path = (String) fileIter.next();
+			try {
+				if (path != null) {
+					mrs.add(new MeaningRepresentation(path));
+				} else if (input != null) {
+					mrs.add(new MeaningRepresentation(new LineTokenizer(new BufferedReader(new StringReader(input)), false, false), "stdin"));
+				} else {
+					err.println("No input files were given, and no MR was read from stdin.");
+					err.flush();
+					return 2;
+				}
+			}
+			catch (RuntimeException e) {
+				err.println(((path == null) ? "stdin" : path) + ": " + e.toString());
+				err.flush();
+				return 1;
+			}
+		}
+
+		/*
+		--inputgraph
+		*/
+		if (inputGraph) {
+			Iterator mrIter = mrs.iterator();
+			while (mrIter.hasNext()) {
+				MeaningRepresentation mr = (MeaningRepresentation) mrIter.next();
+				Iterator langIter = targetLanguages.iterator();
+				while (langIter.hasNext()) {
+					out.write(mr.graph((String) langIter.next()) + "\n");
+				}
+			}
+			return 0;
+		}
+
+		/*
+		Now generate in the required languages, with the debug trace going to the same output.
+		*/
+		Engine engine = Engine.getDefault();
+		DebugTracer tracer = trace ? new DebugTracer(new PrintWriter(out)) : null;
+		Iterator mrIter = mrs.iterator();
+		while (mrIter.hasNext()) {
+			MeaningRepresentation mr = (MeaningRepresentation) mrIter.next();
+			Iterator langIter = targetLanguages.iterator();
+			while (langIter.hasNext()) {
+				StringBuilder text = new StringBuilder();
+				try {
+					mr.generate((String) langIter.next(), new GenerationContext(engine, tracer), text);
+					out.write(text.toString());
+				}
+				catch (RuntimeException e) {
+					out.write("?");
+				}
+				out.write("\n");
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes a piece of text that may be longer than writeUTF() allows.
+	*/
+	static void writeText(DataOutputStream out, String text) throws IOException {
+		if (text == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int parts = (text.length() + MAX_PART_LENGTH - 1) / MAX_PART_LENGTH;
+		out.writeInt(parts);
+		for (int i = 0; i < parts; i++) {
+			out.writeUTF(text.substring(i * MAX_PART_LENGTH, Math.min(text.length(), (i + 1) * MAX_PART_LENGTH)));
+		}
+	}
+
+	/**
+	 * Reads a piece of text written by writeText().
+	*/
+	static String readText(DataInputStream in) throws IOException {
+		int parts = in.readInt();
+		if (parts < 0) {
+			return null;
+		}
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < parts; i++) {
+			text.append(in.readUTF());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Sends what is written to it to the client as parts of the given kind.
+	*/
+	private static class PartWriter extends Writer {
+		private DataOutputStream out;
+		private int kind;
+		private StringBuilder buffer = new StringBuilder();
+
+		private PartWriter(DataOutputStream out, int kind) {
+			this.out = out;
+			this.kind = kind;
+		}
+
+		public void write(char chars[], int offset, int length) throws IOException {
+			buffer.append(chars, offset, length);
+			if (buffer.length() >= MAX_PART_LENGTH) {
+				flush();
+			}
+		}
+
+		public void flush() throws IOException {
+			while (buffer.length() > 0) {
+				int length = Math.min(buffer.length(), MAX_PART_LENGTH);
+				out.writeByte(kind);
+				out.writeUTF(buffer.substring(0, length));
+				buffer.delete(0, length);
+			}
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
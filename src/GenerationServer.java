@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A local HTTP server that keeps the vocabulary and rules loaded and generates MRs on request,
+ * so that tools do not have to start a new generator for every sentence.
+ *
+ * POST /generate?lang=en&lang=de takes an MR in the request body, in the same format as an
+ * MR file, and answers with a JSON object that maps each language to the generated text, or to
+ * the error if the MR could not be generated in that language. The languages may also be given
+ * as lang=en,de. Without any, the MR is generated in the languages the server was started with.
+ * GET /health answers straight away, with the number of requests being worked on.
+ *
+ * Each request is handled on a virtual thread where the JVM has them, and on a pool of threads
+ * otherwise. Only a fixed number of requests are generated at the same time, and only a fixed
+ * number more may wait for their turn. Requests beyond that are turned away with 503 at once.
+ * A request that is not done within the timeout is answered with 504. Generation is not cut
+ * off in the middle of a language, so the timeout is checked before each language.
+ *
+ * Each request is generated with the Engine that is the default when it starts. Rules that
+ * recurse without end fail just the language they are generating, with a StackOverflowError.
+*/
+public class GenerationServer {
+
+	/**
+	 * The number of requests that may wait for their turn, by default.
+	*/
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/**
+	 * How long a request may take, in milliseconds, by default.
+	*/
+	public static final int DEFAULT_TIMEOUT = 10000;
+
+	/*
+	The largest MR accepted, in bytes.
+	*/
+	private static final int MAX_REQUEST_SIZE = 1 << 20;
+
+	private HttpServer server;
+	private ExecutorService workers;
+	private List defaultLanguages;
+	private long timeout;
+
+	/*
+	Permits for the requests being generated or waiting, and for the ones being generated.
+	*/
+	private Semaphore admitted;
+	private Semaphore generating;
+	private int admittedMax;
+
+	/**
+	 * Constructor. The server listens on the loopback interface only. The vocabulary must have
+	 * been loaded and linked first.
+	 *
+	 * @param port the port to listen on
+	 * @param languages the codes of the languages to generate in when a request names none
+	 * @param threads the most requests to generate at the same time
+	 * @param queueSize the most requests to let wait for their turn
+	 * @param timeout how long a request may take, in milliseconds
+	 * @throws IOException if the port cannot be listened on
+	*/
+	public GenerationServer(int port, List languages, int threads, int queueSize, long timeout) throws IOException {
+		defaultLanguages = new ArrayList(languages);
+		this.timeout = timeout;
+		admittedMax = threads + queueSize;
+		admitted = new Semaphore(admittedMax);
+		generating = new Semaphore(threads);
+		workers = newWorkers(admittedMax);
+
+		/*
+		The handlers run on the server's own thread, so they only decide whether to take a
+		request on, and leave the generating to the workers.
+		*/
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), admittedMax);
+		server.createContext("/generate", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				admit(exchange);
+			}
+		});
+		server.createContext("/health", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int busy = admittedMax - admitted.availablePermits();
+				respond(exchange, 200, "{\"status\": \"ok\", \"requests\": " + busy + ", \"languages\": " + quote(Engine.getDefault().getLoadedLanguages()) + "}\n");
+			}
+		});
+	}
+
+	/**
+	 * Makes the executor the requests are handled on: one virtual thread per request if the
+	 * JVM has virtual threads, otherwise a pool with a thread for each request that may be
+	 * taken on, so that waiting requests can time out.
+	*/
+	private static ExecutorService newWorkers(int threads) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+			return (ExecutorService) method.invoke(null, new Object[0]);
+		}
+		catch (Exception e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	/**
+	 * Starts answering requests.
+	*/
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops answering requests, giving the ones being worked on the timeout to finish.
+	*/
+	public void stop() {
+		server.stop((int) Math.max(1, timeout / 1000));
+		workers.shutdown();
+	}
+
+	/**
+	 * Takes a generation request on, or turns it away if too many are waiting already.
+	*/
+	private void admit(final HttpExchange exchange) throws IOException {
+		if ("POST".equals(exchange.getRequestMethod()) == false) {
+			respond(exchange, 405, "{\"error\": \"Send the MR with POST.\"}\n");
+			return;
+		}
+		if (admitted.tryAcquire() == false) {
+			respond(exchange, 503, "{\"error\": \"Too many requests are waiting.\"}\n");
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + timeout;
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					generate(exchange, deadline);
+				}
+				catch (IOException e) {
+					//the client has gone away
+				}
+				catch (StackOverflowError e) {
+					//generating catches this for each language, so this is a last resort that fails just this request
+					try {
+						respond(exchange, 500, "{\"error\": " + quote(e.toString()) + "}\n");
+					}
+					catch (IOException e2) {
+						//the client has gone away
+					}
+				}
+				finally {
+					exchange.close();
+					admitted.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the MR of the request, then waits for a turn and generates it. The MR is read
+	 * first so that slow clients do not keep others from generating.
+	*/
+	private void generate(HttpExchange exchange, long deadline) throws IOException {
+		byte body[] = readBody(exchange.getRequestBody());
+		if (body == null) {
+			respond(exchange, 413, "{\"error\": \"The MR is larger than " + MAX_REQUEST_SIZE + " bytes.\"}\n");
+			return;
+		}
+
+		try {
+			if (generating.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) == false) {
+				respond(exchange, 504, "{\"error\": \"Timed out waiting for a turn.\"}\n");
+				return;
+			}
+		}
+		catch (InterruptedException e) {
+			respond(exchange, 503, "{\"error\": \"The server is shutting down.\"}\n");
+			return;
+		}
+
+		try {
+			MeaningRepresentation mr;
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+				mr = new MeaningRepresentation(new LineTokenizer(reader, false, false), "request");
+			}
+			catch (RuntimeException e) {
+				respond(exchange, 400, "{\"error\": " + quote(e.toString()) + "}\n");
+				return;
+			}
+
+			Engine engine = Engine.getDefault();
+			StringBuilder json = new StringBuilder("{");
+			Iterator langIter = languages(exchange).iterator();
+			while (langIter.hasNext()) {
+				if (System.currentTimeMillis() > deadline) {
+					respond(exchange, 504, "{\"error\": \"Timed out while generating.\"}\n");
+					return;
+				}
+				String language = (String) langIter.next();
+				StringBuilder text = new StringBuilder();
+				json.append(quote(language)).append(": ");
+				try {
+					mr.generate(language, new GenerationContext(engine, null), text);
+					json.append("{\"text\": ").append(quote(text.toString())).append("}");
+				}
+				catch (RuntimeException e) {
+					json.append("{\"error\": ").append(quote(e.toString())).append("}");
+				}
+				catch (StackOverflowError e) {
+					json.append("{\"error\": ").append(quote(e.toString())).append("}");
+				}
+				if (langIter.hasNext()) {
+					json.append(", ");
+				}
+			}
+			json.append("}\n");
+			respond(exchange, 200, json.toString());
+		}
+		finally {
+			generating.release();
+		}
+	}
+
+	/**
+	 * Returns the languages named by the lang parameters of the request, or the default ones.
+	*/
+	private List languages(HttpExchange exchange) throws IOException {
+		ArrayList languages = new ArrayList();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			String parameters[] = query.split("&");
+			for (int i = 0; i < parameters.length; i++) {
+				if (parameters[i].startsWith("lang=")) {
+					String values[] = URLDecoder.decode(parameters[i].substring(5), "UTF-8").split(",");
+					for (int j = 0; j < values.length; j++) {
+						if (values[j].length() > 0) {
+							languages.add(values[j]);
+						}
+					}
+				}
+			}
+		}
+		if (languages.size() == 0) {
+			return defaultLanguages;
+		}
+		return languages;
+	}
+
+	/**
+	 * Reads the body of a request.
+	 *
+	 * @return the body, or null if it is too large
+	*/
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte buffer[] = new byte[8192];
+		int read = in.read(buffer);
+		while (read > -1) {
+			body.write(buffer, 0, read);
+			if (body.size() > MAX_REQUEST_SIZE) {
+				return null;
+			}
+			read = in.read(buffer);
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Sends a JSON response.
+	*/
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte bytes[] = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * Returns the given string as a JSON string literal.
+	*/
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				quoted.append('\\').append(c);
+			} else if (c == '\n') {
+				quoted.append("\\n");
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", new Object[] {Integer.valueOf(c)}));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * Returns the given strings as a JSON array.
+	*/
+	private static String quote(java.util.Collection strings) {
+		StringBuilder array = new StringBuilder("[");
+		Iterator iter = strings.iterator();
+		while (iter.hasNext()) {
+			array.append(quote((String) iter.next()));
+			if (iter.hasNext()) {
+				array.append(", ");
+			}
+		}
+		return array.append("]").toString();
+	}
+}
@@ -1,6 +1,18 @@
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Arrays;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.Writer;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
 import java.net.URL;
 /**
  * The main class of the generator. It receives as input a meaning representation (MR)
@@ -13,6 +25,11 @@ import java.net.URL;
 */
 public class Generator {
 
+	/*
+	The flags that are followed by a number.
+	*/
+	private static final List NUMBER_OPTIONS = Arrays.asList(new String[] {"threads", "server", "queue", "timeout", "idle"});
+	
 
 	/**
 	 * The main method of the generator.
@@ -26,15 +43,32 @@ public class Generator {
 	 * --vocabularygraph prints out a .dot file of the fields and typing of the vocabulary in the given languages and then exits
 	 * --rulesgraph prints out a .dot file of the rule typing in the given languages and then exits
 	 * --inputgraph prints out a .dot file of the input in the given languages and then exits
+	 * --nodecisiontrees tests the rules one after the other instead of compiling them into decision trees
+	 * --interpreted interprets the rules files even for languages whose rules have been compiled by the GrammarCompiler
+	 * --preload loads the rules of all the given languages at once before generating, and prints how long each took
+	 * --watch reloads the rules of a language whenever its rules file changes, for working on the rules in the GUI
+	 * --compile-snapshot writes a snapshot of the vocabulary and the rules of the given languages to data/snapshot.bin and then exits
+	 * --threads N generates all input files in all target languages on N threads, writes the results in input order, and then exits
+	 * --server PORT answers generation requests over HTTP on the given local port instead, see GenerationServer; --threads N then sets how many requests are generated at once
+	 * --queue N sets how many more requests the server lets wait for their turn
+	 * --timeout MS sets how long the server gives a request, in milliseconds
+	 * --daemon keeps running in the background and generates for GeneratorClients, which take the same arguments as this, see GenerationDaemon
+	 * --idle SECONDS sets how long the daemon waits for a client before it stops
+	 * --stream generates MRs from stdin in all target languages until it runs out, writing the results of each as soon as they are ready, see StreamGenerator
+	 * --intern makes the MRs generated with --threads N or --stream share the subtrees they have in common, see MRInterner; it cannot be used with --watch
+	 *
+	 * If there is an up to date snapshot, the vocabulary and rules are read from it instead of from their files.
 	 *
 	 * If there are no input files supplied, input is taken from stdin. Input is terminated by an empty line.
-	 * If there are no target languages supplied, all possible target languages are compiled to.
+	 * If there are no target languages supplied, all possible target languages are compiled to, and their rules are preloaded.
+	 * Otherwise, only the target languages, the languages of the input files and those of the GUI are loaded from the vocabulary.
 	*/
     public static void main (String args[]) {
 	
 		ArrayList sourceFiles = new ArrayList();
 		ArrayList targetLanguages = new ArrayList();
 		ArrayList extraFlags = new ArrayList();
+		HashMap numberOptions = new HashMap();
 		
 		extraFlags.add("gui"); //default to GUI
 
@@ -43,7 +77,23 @@ public class Generator {
 		/* loop through the arguments and sort them into their buckets */
 		int i = 0;
 		while (i < args.length) {
-			if (args[i].startsWith("--")) {
+			if (args[i].startsWith("--") && NUMBER_OPTIONS.contains(args[i].substring(2)) && (i + 1 < args.length)) {
+				//flags that take a number, like --threads 4
+				String option = args[i].substring(2);
+				i++;
+				int value = 0;
+				try {
+					value = Integer.parseInt(args[i]);
+				}
+				catch (NumberFormatException e) {
+					value = 0;
+				}
+				if (value < 1) {
+					System.err.println("--" + option + " needs a positive number, not " + args[i]);
+					return;
+				}
+				numberOptions.put(option, Integer.valueOf(value));
+			} else if (args[i].startsWith("--")) {
 				extraFlags.add(args[i].substring(2));
 			} else {
 				if (args[i].startsWith("-")) {
@@ -59,12 +109,85 @@ public class Generator {
 		/*
 		First step, if the set of output languages is empty, fill it with all possible ones!
 		*/
-		if (targetLanguages.size() == 0) {
+		boolean allLanguages = (targetLanguages.size() == 0);
+		if (allLanguages) {
 				targetLanguages = getAllLanguages();
+				extraFlags.add("preload");
+		}
+		
+		/*
+		The servers and --stream keep running, so their input may be in any language, and the rules of
+		the target languages are loaded up front, so that no input has to wait for them.
+		*/
+		boolean longRunning = numberOptions.containsKey("server") || extraFlags.contains("stream") || extraFlags.contains("daemon");
+		if (longRunning) {
+			extraFlags.add("preload");
 		}
 						
-		//Tell the VocabularyServer to load and link the MV.
-		VocabularyServer.loadAndLinkVocabulary();
+		/*
+		--nodecisiontrees
+		*/
+		if (extraFlags.contains("nodecisiontrees")) {
+			LanguageServer.setCompileDecisionTrees(false);
+		}
+		
+		/*
+		--interpreted
+		*/
+		if (extraFlags.contains("interpreted")) {
+			LanguageServer.setUseCompiledGrammars(false);
+		}
+		
+		/*
+		--intern
+		The MRs are interned for the rules as they are loaded, which --watch might change.
+		*/
+		boolean intern = extraFlags.contains("intern");
+		if (intern && extraFlags.contains("watch")) {
+			System.err.println("--intern cannot be used with --watch");
+			return;
+		}
+		
+		/*
+		--compile-snapshot
+		*/
+		if (extraFlags.contains("compile-snapshot")) {
+			VocabularyServer.loadAndLinkVocabulary();
+			try {
+				Snapshot.write(targetLanguages);
+			}
+			catch (IOException e) {
+				System.err.println("Could not write the snapshot: " + e.toString());
+				return;
+			}
+			System.out.println("Wrote a snapshot of the vocabulary and the rules of " + targetLanguages + " to " + Snapshot.snapshotFile().getPath());
+			
+			return;
+		}
+		
+		/*
+		If only some languages are wanted, only load those from the vocabulary: the target languages, the
+		languages the input files are in, and the ones the GUI shows. Input from stdin may be in any language.
+		*/
+		if ((allLanguages == false) && ((sourceFiles.size() > 0) || extraFlags.contains("gui")) && (longRunning == false)) {
+			ArrayList activeLanguages = new ArrayList(targetLanguages);
+			Iterator iter = sourceFiles.iterator();
+			while (iter.hasNext()) {
+				String language = inputLanguage((String) iter.next());
+				if (language != null) {
+					activeLanguages.add(language);
+				}
+			}
+			if (extraFlags.contains("gui")) {
+				activeLanguages.addAll(Arrays.asList(OutputPanel.getLanguages()));
+			}
+			VocabularyServer.setActiveLanguages(activeLanguages);
+		}
+		
+		//Tell the VocabularyServer to load and link the MV, unless there is a snapshot of it.
+		if (Snapshot.read() == false) {
+			VocabularyServer.loadAndLinkVocabulary();
+		}
 		
 		/*
 		--vocabularygraph
@@ -78,6 +201,36 @@ public class Generator {
 			return;
 		}
 		
+		/*
+		--preload
+		*/
+		if (extraFlags.contains("preload")) {
+			try {
+				Map loadTimes = LanguageServer.preloadLanguageRuleServers(targetLanguages, Runtime.getRuntime().availableProcessors());
+				Iterator iter = loadTimes.keySet().iterator();
+				while (iter.hasNext()) {
+					String language = (String) iter.next();
+					System.err.println("Loaded the rules for " + language + " in " + loadTimes.get(language) + " ms");
+				}
+			}
+			catch (RuntimeException e) {
+				//The languages that could not be loaded fail again when generating, where the error is reported.
+				System.err.println("Could not preload all languages: " + e.toString());
+			}
+		}
+		
+		/*
+		--watch
+		*/
+		if (extraFlags.contains("watch")) {
+			try {
+				LanguageServer.watchRulesFiles();
+			}
+			catch (IOException e) {
+				System.err.println("Could not watch the rules files for changes: " + e.toString());
+			}
+		}
+		
 		/*
 		--rulesgraph
 		*/
@@ -95,8 +248,90 @@ public class Generator {
 		/*
 		--debugtrace
 		*/
+		DebugTracer tracer = null;
 		if (extraFlags.contains("debugtrace")) {
-			DebugTracer.setDoDebug(true);
+			tracer = new DebugTracer(new PrintWriter(System.out, true));
+		}
+		
+		/*
+		--daemon
+		*/
+		if (extraFlags.contains("daemon")) {
+			GenerationDaemon daemon;
+			try {
+				daemon = new GenerationDaemon(targetLanguages, numberOption(numberOptions, "idle", GenerationDaemon.DEFAULT_IDLE_TIME));
+			}
+			catch (IOException e) {
+				System.err.println("Could not start the daemon: " + e.toString());
+				return;
+			}
+			System.err.println("Generating for GeneratorClients on " + GenerationDaemon.socketFile().getPath());
+			daemon.run();
+			
+			return;
+		}
+		
+		/*
+		--server PORT
+		*/
+		if (numberOptions.containsKey("server")) {
+			try {
+				GenerationServer server = new GenerationServer(
+					numberOption(numberOptions, "server", 0),
+					targetLanguages,
+					numberOption(numberOptions, "threads", Runtime.getRuntime().availableProcessors()),
+					numberOption(numberOptions, "queue", GenerationServer.DEFAULT_QUEUE_SIZE),
+					numberOption(numberOptions, "timeout", GenerationServer.DEFAULT_TIMEOUT));
+				server.start();
+				System.err.println("Generating on http://localhost:" + numberOption(numberOptions, "server", 0) + "/generate");
+			}
+			catch (IOException e) {
+				System.err.println("Could not start the server: " + e.toString());
+			}
+			
+			return;
+		}
+		
+		/*
+		--stream
+		*/
+		if (extraFlags.contains("stream")) {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+			try {
+				int failures = new StreamGenerator(targetLanguages, tracer != null, intern).generate(new BufferedReader(new InputStreamReader(System.in)), out);
+				if (failures > 0) {
+					System.err.println(failures + " results could not be generated.");
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Could not read input or write output: " + e.toString());
+			}
+			
+			return;
+		}
+		
+		/*
+		--threads N
+		*/
+		if (numberOptions.containsKey("threads")) {
+			int threads = numberOption(numberOptions, "threads", 1);
+			//input.txt is only generated if no input files were given
+			if (sourceFiles.size() > 1) {
+				sourceFiles.remove(0);
+			}
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+			try {
+				int failures = new BatchGenerator(targetLanguages, tracer != null, intern).generate(sourceFiles, threads, out);
+				out.flush();
+				if (failures > 0) {
+					System.err.println(failures + " of " + (sourceFiles.size() * targetLanguages.size()) + " results could not be generated.");
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Could not write output: " + e.toString());
+			}
+			
+			return;
 		}
 		
 		/*
@@ -143,20 +378,33 @@ public class Generator {
 		}
 		
 		/*
-		Now generate in the required languages.
+		Now generate in the required languages, writing straight to a buffered stdout.
+		The debug trace is printed directly to System.out, so when tracing, we flush
+		after every line to keep the two in order.
 		*/
-		Iterator mrIter = mrs.iterator();
-		while (mrIter.hasNext()) {
-			MeaningRepresentation mr = (MeaningRepresentation) mrIter.next();
-			Iterator langIter = targetLanguages.iterator();
-			while (langIter.hasNext()) {
-				try {
-					System.out.println(mr.generate((String) langIter.next()));
-				}
-				catch (Exception e) {
-					System.out.println("?");
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			Iterator mrIter = mrs.iterator();
+			while (mrIter.hasNext()) {
+				MeaningRepresentation mr = (MeaningRepresentation) mrIter.next();
+				Iterator langIter = targetLanguages.iterator();
+				while (langIter.hasNext()) {
+					try {
+						mr.generate((String) langIter.next(), new GenerationContext(Engine.getDefault(), tracer), out);
+					}
+					catch (RuntimeException e) {
+						out.write("?");
+					}
+					out.write("\n");
+					if (tracer != null) {
+						out.flush();
+					}
 				}
 			}
+			out.flush();
+		}
+		catch (IOException e) {
+			System.err.println("Could not write output: " + e.toString());
 		}
 		
     }
@@ -167,7 +415,7 @@ public class Generator {
 	 *
 	 * @return an arraylist of their language codes
 	*/
-	private static ArrayList getAllLanguages() {
+	public static ArrayList getAllLanguages() {
 		//find the data file
 		File rulesFolder = new File(
 			new File(
@@ -188,4 +436,43 @@ public class Generator {
 		
 		return list;
 	}
+	
+	/*
+	 * Returns the number given with a flag, or the default if the flag was not given.
+	*/
+	private static int numberOption(Map numberOptions, String option, int defaultValue) {
+		Integer value = (Integer) numberOptions.get(option);
+		return (value == null) ? defaultValue : value.intValue();
+	}
+	
+	/*
+	 * Returns the language an MR file is in, which is its first non-empty line, without its indentation,
+	 * just as MeaningRepresentation reads it. Only that line is read, not the whole file.
+	 * Returns null if the file cannot be read, which is reported when the file is loaded.
+	*/
+	private static String inputLanguage(String path) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path)));
+			try {
+				String line = reader.readLine();
+				while ((line != null) && (line.length() == 0)) {
+					line = reader.readLine();
+				}
+				if (line == null) {
+					return null;
+				}
+				int start = 0;
+				while ((start < line.length()) && (line.charAt(start) == '\t')) {
+					start++;
+				}
+				return line.substring(start);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
 }
@@ -0,0 +1,91 @@
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A client for the GenerationDaemon, which takes the same arguments as Generator.main(), has the
+ * daemon carry them out, and writes what it sends back. As the daemon has everything loaded
+ * already, this takes a fraction of the time starting a generator would.
+ *
+ * If no input files are given, the MR is read from stdin, up to the first empty line, and sent
+ * along. The exit code is the one the daemon sends back: 0 if the request was carried out, 1 if
+ * an MR could not be read, and 2 if the request was not understood or no daemon is running.
+ *
+ * Start the daemon with Generator --daemon first.
+*/
+public class GeneratorClient {
+
+	/**
+	 * The main method of the client.
+	 *
+	 * @param args the arguments, as for Generator.main()
+	*/
+	public static void main(String args[]) {
+		boolean readStdin = true;
+		for (int i = 0; i < args.length; i++) {
+			if ((args[i].startsWith("-") == false) || args[i].equals("--stop")) {
+				readStdin = false;
+			}
+		}
+
+		File socketFile = GenerationDaemon.socketFile();
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+		}
+		catch (IOException e) {
+			System.err.println("No generator daemon is listening on " + socketFile.getPath() + ". Start one with Generator --daemon.");
+			System.exit(2);
+			return;
+		}
+
+		try {
+			String input = null;
+			if (readStdin) {
+				StringBuilder text = new StringBuilder();
+				BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+				String line = reader.readLine();
+				while ((line != null) && (line.length() > 0)) {
+					text.append(line).append('\n');
+					line = reader.readLine();
+				}
+				input = text.toString();
+			}
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeUTF(System.getProperty("user.dir"));
+			out.writeInt(args.length);
+			for (int i = 0; i < args.length; i++) {
+				out.writeUTF(args[i]);
+			}
+			GenerationDaemon.writeText(out, input);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			while (true) {
+				int kind = in.readByte();
+				if (kind == GenerationDaemon.OUT) {
+					System.out.print(in.readUTF());
+				} else if (kind == GenerationDaemon.ERR) {
+					System.err.print(in.readUTF());
+				} else {
+					int exitCode = in.readInt();
+					System.out.flush();
+					System.exit(exitCode);
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Lost the connection to the generator daemon: " + e.toString());
+			System.exit(2);
+		}
+	}
+}
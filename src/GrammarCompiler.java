@@ -0,0 +1,575 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Compiles the rules file of a language into the Java source of a CompiledGrammar.
+ *
+ * Usage: java GrammarCompiler -languagecode... [output directory]
+ *
+ * For each language given (or all of them, if none are given), the rules file is loaded
+ * and linked into a LanguageRuleServer as usual, and then written out as a class called
+ * CompiledRules_<languagecode> in the output directory, which defaults to the current one.
+ * Once that class has been compiled and is on the classpath, the LanguageServer uses it
+ * instead of interpreting the rules file, for as long as the rules file does not change.
+ *
+ * The generated class has:
+ * - a method for each rule, which outputs its production string,
+ * - a method for each distinct list of rules that may be invoked for a name, which invokes
+ *   the first rule that applies, using the same decision tree the LanguageRuleServer would,
+ * - a method for each rule name, which picks the list for the rule set it is invoked on,
+ * - a method for each distinct path, which follows it and returns the node it ends at, or null.
+ *   Like the TreePatterns, paths of more than one step have their results cached in the GenerationContext.
+ * Rules invoke each other with the index of the rule set the invocation originated in, so that
+ * {localrule} can find the rules of the originating rule set.
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public class GrammarCompiler {
+
+	private String language;
+
+	/*
+	The rule sets, sorted by name, and their indices.
+	*/
+	private ArrayList ruleSets;
+	private HashMap ruleSetIndex;
+
+	/*
+	The rule names that are defined or invoked, and their indices. * always has index 0.
+	*/
+	private ArrayList matchNames;
+	private HashMap matchIndex;
+
+	/*
+	The distinct lists of rules that may be invoked for a name, and their indices.
+	*/
+	private ArrayList ruleLists;
+	private HashMap ruleListIndex;
+
+	/*
+	The rules, and their indices.
+	*/
+	private ArrayList rules;
+	private IdentityHashMap ruleIndex;
+
+	/*
+	The distinct paths, and the indices of their pattern strings.
+	*/
+	private ArrayList patterns;
+	private HashMap patternIndex;
+
+	/*
+	The pattern strings of the paths whose results are cached.
+	*/
+	private HashSet cachedPatterns;
+
+	/*
+	The types and tags checked for, and the field names moved along, and their indices.
+	*/
+	private ArrayList symbols;
+	private HashMap symbolIndex;
+	private ArrayList fieldLabels;
+	private HashMap fieldLabelIndex;
+
+	/**
+	 * The main method of the compiler. See the class description for the arguments.
+	*/
+	public static void main(String args[]) {
+		ArrayList languages = new ArrayList();
+		File outputDirectory = new File(".");
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-")) {
+				languages.add(args[i].substring(1));
+			} else {
+				outputDirectory = new File(args[i]);
+			}
+		}
+
+		if (languages.size() > 0) {
+			VocabularyServer.setActiveLanguages(languages);
+		}
+		VocabularyServer.loadAndLinkVocabulary();
+		if (languages.size() == 0) {
+			languages = Generator.getAllLanguages();
+		}
+
+		Iterator iter = languages.iterator();
+		while (iter.hasNext()) {
+			String language = (String) iter.next();
+			File output = new File(outputDirectory, CompiledGrammar.CLASS_PREFIX + language + ".java");
+			try {
+				FileWriter writer = new FileWriter(output);
+				writer.write(new GrammarCompiler(language).compile());
+				writer.close();
+			}
+			catch (IOException e) {
+				System.err.println("Could not write " + output.getPath() + ": " + e.toString());
+				System.exit(1);
+			}
+			System.out.println("Compiled the rules for " + language + " into " + output.getPath());
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param language the code of the language to compile the rules of
+	*/
+	public GrammarCompiler(String language) {
+		this.language = language;
+	}
+
+	/**
+	 * Compiles the rules of the language. The vocabulary must have been loaded and linked first.
+	 *
+	 * @return the Java source of the compiled rules
+	*/
+	public String compile() {
+		/*
+		Load and link the rules the way the interpreter would, but without decision trees,
+		as a tree is compiled below for each distinct list of rules anyway.
+		*/
+		LanguageRuleServer server = new LanguageRuleServer(language, VocabularyServer.getVocabulary(), false);
+		long checksum = CompiledGrammar.checksum(LanguageRuleServer.rulesFile(language));
+
+		ruleSets = new ArrayList(server.getMeaningRuleSets());
+		Collections.sort(ruleSets, new Comparator() {
+			public int compare(Object a, Object b) {
+				return ((MeaningRuleSet) a).name.compareTo(((MeaningRuleSet) b).name);
+			}
+		});
+		ruleSetIndex = new HashMap();
+		for (int i = 0; i < ruleSets.size(); i++) {
+			ruleSetIndex.put(ruleSets.get(i), Integer.valueOf(i));
+		}
+		matchNames = new ArrayList();
+		matchIndex = new HashMap();
+		matchIndex("*");
+		ruleLists = new ArrayList();
+		ruleListIndex = new HashMap();
+		rules = new ArrayList();
+		ruleIndex = new IdentityHashMap();
+		patterns = new ArrayList();
+		patternIndex = new HashMap();
+		cachedPatterns = new HashSet();
+		symbols = new ArrayList();
+		symbolIndex = new HashMap();
+		fieldLabels = new ArrayList();
+		fieldLabelIndex = new HashMap();
+
+		/*
+		Number the lists of rules of each rule set. This also numbers the rules in them.
+		*/
+		Iterator ruleSetIter = ruleSets.iterator();
+		while (ruleSetIter.hasNext()) {
+			MeaningRuleSet mrs = (MeaningRuleSet) ruleSetIter.next();
+			Iterator nameIter = mrs.getRuleNames().iterator();
+			while (nameIter.hasNext()) {
+				String match = (String) nameIter.next();
+				matchIndex(match);
+				ruleListIndex(mrs.getEffectiveRules(match));
+			}
+		}
+		Collections.sort(matchNames);
+		matchIndex.clear();
+		matchNames.remove("*");
+		matchNames.add(0, "*");
+		for (int i = 0; i < matchNames.size(); i++) {
+			matchIndex.put(matchNames.get(i), Integer.valueOf(i));
+		}
+
+		/*
+		The methods are written in an order such that everything a method refers to has been
+		numbered by the time the tables are written.
+		*/
+		StringBuilder methods = new StringBuilder();
+		for (int i = 0; i < rules.size(); i++) {
+			writeRule(i, methods);
+		}
+		for (int i = 0; i < ruleLists.size(); i++) {
+			writeRuleList(i, methods);
+		}
+		for (int i = 0; i < matchNames.size(); i++) {
+			writeInvoke(i, methods);
+		}
+		for (int i = 0; i < patterns.size(); i++) {
+			writePath(i, methods);
+			if (cachedPatterns.contains(((TreePattern) patterns.get(i)).getPatternString())) {
+				writeTest(i, methods);
+			}
+		}
+
+		String className = CompiledGrammar.CLASS_PREFIX + language;
+		StringBuilder out = new StringBuilder();
+		out.append("/**\n");
+		out.append(" * The rules for the language " + language + ", compiled by the GrammarCompiler.\n");
+		out.append(" * Do not edit this file, but change the rules file and compile it again.\n");
+		out.append("*/\n");
+		out.append("public class " + className + " extends CompiledGrammar {\n\n");
+
+		out.append("\tprivate static final String RULE_SET_NAMES[] = {");
+		writeStrings(ruleSetNames(), out);
+		out.append("};\n\n");
+		out.append("\tprivate static final int RULE_SET_SUPERS[] = {");
+		for (int i = 0; i < ruleSets.size(); i++) {
+			MeaningRuleSet mySuper = ((MeaningRuleSet) ruleSets.get(i)).mySuper;
+			out.append((i == 0) ? "" : ", ").append((mySuper == null) ? -1 : ((Integer) ruleSetIndex.get(mySuper)).intValue());
+		}
+		out.append("};\n\n");
+		out.append("\tprivate static final String RULE_SET_TAGS[][] = {");
+		for (int i = 0; i < ruleSets.size(); i++) {
+			ArrayList tags = new ArrayList(((MeaningRuleSet) ruleSets.get(i)).getTags());
+			Collections.sort(tags);
+			out.append((i == 0) ? "\n\t\t{" : ",\n\t\t{");
+			writeStrings(tags, out);
+			out.append("}");
+		}
+		out.append("\n\t};\n\n");
+		out.append("\tprivate static final String RULE_SET_LOCATIONS[] = {");
+		ArrayList locations = new ArrayList();
+		for (int i = 0; i < ruleSets.size(); i++) {
+			locations.add(((MeaningRuleSet) ruleSets.get(i)).getLineAndFile());
+		}
+		writeStrings(locations, out);
+		out.append("};\n\n");
+		out.append("\tprivate static final String SYMBOLS[] = {");
+		writeStrings(symbols, out);
+		out.append("};\n\n");
+		out.append("\tprivate static final String FIELD_LABELS[] = {");
+		writeStrings(fieldLabels, out);
+		out.append("};\n\n");
+
+		out.append("\tpublic " + className + "() {\n");
+		out.append("\t\tsuper(" + javaString(language) + ", " + checksum + "L, RULE_SET_NAMES, RULE_SET_SUPERS, RULE_SET_TAGS, RULE_SET_LOCATIONS, SYMBOLS, FIELD_LABELS);\n");
+		out.append("\t}\n\n");
+		out.append("\tprotected void produceRoot(int ruleSet, MRNode node, GenerationContext context, StringBuilder out) {\n");
+		out.append("\t\tinvoke0(ruleSet, node, context, out);\n");
+		out.append("\t}\n");
+		out.append(methods);
+		out.append("}\n");
+		return out.toString();
+	}
+
+	/**
+	 * Compiles the condition that a path matches into a Java expression.
+	 * Called back by TreePattern.compile().
+	 *
+	 * Like TreePattern.evaluate(), paths of more than one step have their results cached in
+	 * the GenerationContext, with the index of the path as its ID.
+	 *
+	 * @param pattern the path
+	 * @return the expression
+	*/
+	public String compileCondition(TreePattern pattern) {
+		int index = patternIndex(pattern);
+		if (pattern.getInstructions().size() < 2) {
+			return "(path" + index + "(node) != null)";
+		}
+		cachedPatterns.add(pattern.getPatternString());
+		return "(test" + index + "(node, context))";
+	}
+
+	/**
+	 * Compiles the statement that invokes the rule selected from a list of rules.
+	 * Called back by RuleDecisionTree.compile().
+	 *
+	 * @param rule the rule selected, or null if none of the rules apply
+	 * @param match the name of the rules in the list
+	 * @return the statement
+	*/
+	public String compileSelection(MeaningRule rule, String match) {
+		if (rule == null) {
+			return "throw noMatch(" + javaString(match) + ", origin);";
+		}
+		return "rule" + ruleIndex(rule) + "(node, origin, context, out);";
+	}
+
+	/**
+	 * Writes the method for a rule. It outputs the rule's production string.
+	*/
+	private void writeRule(int index, StringBuilder out) {
+		MeaningRule rule = (MeaningRule) rules.get(index);
+		ProductionSegment segments[] = rule.getSegments();
+		out.append("\n\t/*\n\t" + comment(rule.getLineAndFile().trim()) + " " + comment(rule.name) + ", \"" + comment(rule.production) + "\"\n\t*/\n");
+		out.append("\tprivate void rule" + index + "(MRNode node, int origin, GenerationContext context, StringBuilder out) {\n");
+		for (int i = 0; i < segments.length; i++) {
+			ProductionSegment segment = segments[i];
+			if (segment.kind == ProductionSegment.LITERAL) {
+				out.append("\t\tout.append(" + javaString(segment.text) + ");\n");
+				continue;
+			}
+			if (segment.kind == ProductionSegment.ERROR) {
+				/*
+				Nothing after the error is ever reached.
+				*/
+				out.append("\t\tthrow new " + segment.error.getClass().getName() + "(" + javaString(segment.error.getMessage()) + ");\n");
+				break;
+			}
+
+			String indent = "\t\t";
+			if (segment.capitalise) {
+				out.append("\t\t{\n");
+				out.append("\t\t\tint start = out.length();\n");
+				indent = "\t\t\t";
+			}
+			if (segment.kind == ProductionSegment.LOCAL_RULE) {
+				out.append(indent + "invoke" + matchIndex(segment.text) + "(origin, node, context, out);\n");
+			} else {
+				out.append(indent + "{\n");
+				out.append(indent + "\tMRNode target = resolved(path" + patternIndex(segment.path) + "(node), "
+					+ javaString(segment.path.getPatternString()) + ", " + javaString(rule.getLineAndFile() + "(in the generation string)\n") + ");\n");
+				out.append(indent + "\tif (target.isLiteral()) {\n");
+				out.append(indent + "\t\tout.append(target.literalValue());\n");
+				out.append(indent + "\t} else {\n");
+				out.append(indent + "\t\tinvoke" + matchIndex(segment.text) + "(ruleSetOf(target, " + javaString(rule.getLineAndFile()) + "), target, context, out);\n");
+				out.append(indent + "\t}\n");
+				out.append(indent + "}\n");
+			}
+			if (segment.capitalise) {
+				out.append("\t\t\tcapitalise(out, start);\n");
+				out.append("\t\t}\n");
+			}
+		}
+		out.append("\t}\n");
+	}
+
+	/**
+	 * Writes the method for a list of rules. It invokes the first rule whose condition holds.
+	*/
+	private void writeRuleList(int index, StringBuilder out) {
+		MeaningRule list[] = (MeaningRule[]) ruleLists.get(index);
+		out.append("\n\tprivate void rules" + index + "(MRNode node, int origin, GenerationContext context, StringBuilder out) {\n");
+
+		/*
+		Like the LanguageRuleServer does, compile the list into a decision tree, so that each path is
+		only followed once. If that cannot be done, test the conditions one after the other.
+		*/
+		RuleDecisionTree tree = RuleDecisionTree.compile(list);
+		if (tree != null) {
+			tree.compile(this, "\t\t", out);
+			out.append("\t}\n");
+			return;
+		}
+		for (int i = 0; i < list.length; i++) {
+			String condition = list[i].compileCondition(this);
+			if (condition == null) {
+				/*
+				The rules after this one are never reached.
+				*/
+				out.append("\t\t" + compileSelection(list[i], list[i].name) + "\n");
+				out.append("\t}\n");
+				return;
+			}
+			out.append("\t\tif " + (condition.startsWith("(") ? condition : "(" + condition + ")") + " {\n");
+			out.append("\t\t\t" + compileSelection(list[i], list[i].name) + "\n");
+			out.append("\t\t\treturn;\n");
+			out.append("\t\t}\n");
+		}
+		out.append("\t\t" + compileSelection(null, list[0].name) + "\n");
+		out.append("\t}\n");
+	}
+
+	/**
+	 * Writes the method for a rule name. It invokes the list of rules of that name of the given rule set.
+	*/
+	private void writeInvoke(int index, StringBuilder out) {
+		String match = (String) matchNames.get(index);
+		out.append("\n\t/*\n\t" + comment(match) + "\n\t*/\n");
+		out.append("\tprivate void invoke" + index + "(int ruleSet, MRNode node, GenerationContext context, StringBuilder out) {\n");
+		out.append("\t\tswitch (ruleSet) {\n");
+		for (int i = 0; i < ruleSets.size(); i++) {
+			MeaningRule list[] = ((MeaningRuleSet) ruleSets.get(i)).getEffectiveRules(match);
+			if (list != null) {
+				out.append("\t\t\tcase " + i + ": rules" + ruleListIndex(list) + "(node, ruleSet, context, out); return;\n");
+			}
+		}
+		out.append("\t\t}\n");
+		out.append("\t\tthrow noMatch(" + javaString(match) + ", ruleSet);\n");
+		out.append("\t}\n");
+	}
+
+	/**
+	 * Writes the method for a path. It follows the path from the given node and returns the node
+	 * it ends at, or null if it cannot be followed, the way its PatternInstructions would.
+	*/
+	private void writePath(int index, StringBuilder out) {
+		TreePattern pattern = (TreePattern) patterns.get(index);
+		List instructions = pattern.getInstructions();
+		out.append("\n\t/*\n\t" + comment(pattern.getPatternString()) + "\n\t*/\n");
+		out.append("\tprivate MRNode path" + index + "(MRNode node) {\n");
+		Iterator iter = instructions.iterator();
+		while (iter.hasNext()) {
+			PatternInstruction instruction = (PatternInstruction) iter.next();
+			if (instruction.staysPut() == false) {
+				if (instruction.goesUp()) {
+					out.append("\t\t{\n");
+					out.append("\t\t\tMRNode parent = node.getParent();\n");
+					out.append("\t\t\tif (parent == null) {\n");
+					out.append("\t\t\t\treturn null;\n");
+					out.append("\t\t\t}\n");
+					if (instruction.getFieldName().length() > 0) {
+						out.append("\t\t\tif (node.getParentField() != field(" + fieldLabelIndex(instruction.getFieldName()) + ", parent)) {\n");
+						out.append("\t\t\t\treturn null;\n");
+						out.append("\t\t\t}\n");
+					}
+					out.append("\t\t\tnode = parent;\n");
+					out.append("\t\t}\n");
+				} else {
+					out.append("\t\tnode = node.getChild(field(" + fieldLabelIndex(instruction.getFieldName()) + ", node));\n");
+					out.append("\t\tif (node == null) {\n");
+					out.append("\t\t\treturn null;\n");
+					out.append("\t\t}\n");
+				}
+			}
+			if (instruction.getTypeOrTag().length() > 0) {
+				out.append("\t\tif (is(node, " + symbolIndex(instruction.getTypeOrTag()) + ") == false) {\n");
+				out.append("\t\t\treturn null;\n");
+				out.append("\t\t}\n");
+			}
+		}
+		out.append("\t\treturn node;\n");
+		out.append("\t}\n");
+	}
+
+	/**
+	 * Writes the method that tests whether a path matches, looking up and storing its result in
+	 * the GenerationContext.
+	*/
+	private void writeTest(int index, StringBuilder out) {
+		out.append("\n\tprivate boolean test" + index + "(MRNode node, GenerationContext context) {\n");
+		out.append("\t\tBoolean cached = context.cachedResult(" + index + ", node);\n");
+		out.append("\t\tif (cached != null) {\n");
+		out.append("\t\t\treturn cached.booleanValue();\n");
+		out.append("\t\t}\n");
+		out.append("\t\tboolean result = (path" + index + "(node) != null);\n");
+		out.append("\t\tcontext.cacheResult(" + index + ", node, result);\n");
+		out.append("\t\treturn result;\n");
+		out.append("\t}\n");
+	}
+
+	/**
+	 * Returns the names of the rule sets, in order.
+	*/
+	private ArrayList ruleSetNames() {
+		ArrayList names = new ArrayList();
+		Iterator iter = ruleSets.iterator();
+		while (iter.hasNext()) {
+			names.add(((MeaningRuleSet) iter.next()).name);
+		}
+		return names;
+	}
+
+	/*
+	The following methods return the index of something, numbering it if it has none yet.
+	*/
+
+	private int matchIndex(String match) {
+		return indexOf(match, match, matchNames, matchIndex);
+	}
+
+	private int ruleListIndex(MeaningRule list[]) {
+		int index = indexOf(Arrays.asList(list), list, ruleLists, ruleListIndex);
+		for (int i = 0; i < list.length; i++) {
+			ruleIndex(list[i]);
+		}
+		return index;
+	}
+
+	private int ruleIndex(MeaningRule rule) {
+		Integer index = (Integer) ruleIndex.get(rule);
+		if (index == null) {
+			index = Integer.valueOf(rules.size());
+			rules.add(rule);
+			ruleIndex.put(rule, index);
+		}
+		return index.intValue();
+	}
+
+	private int patternIndex(TreePattern pattern) {
+		return indexOf(pattern.getPatternString(), pattern, patterns, patternIndex);
+	}
+
+	private int symbolIndex(String symbol) {
+		return indexOf(symbol, symbol, symbols, symbolIndex);
+	}
+
+	private int fieldLabelIndex(String label) {
+		return indexOf(label, label, fieldLabels, fieldLabelIndex);
+	}
+
+	private static int indexOf(Object key, Object value, ArrayList values, HashMap index) {
+		Integer i = (Integer) index.get(key);
+		if (i == null) {
+			i = Integer.valueOf(values.size());
+			values.add(value);
+			index.put(key, i);
+		}
+		return i.intValue();
+	}
+
+	/**
+	 * Writes a comma-separated list of string literals.
+	*/
+	private static void writeStrings(List strings, StringBuilder out) {
+		for (int i = 0; i < strings.size(); i++) {
+			out.append((i == 0) ? "" : ", ").append(javaString((String) strings.get(i)));
+		}
+	}
+
+	/**
+	 * Returns the given string as a Java string literal. Anything that is not plain ASCII
+	 * is escaped, so the generated file can be read in any encoding.
+	*/
+	private static String javaString(String s) {
+		StringBuilder result = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"') {
+				result.append("\\\"");
+			} else if (c == '\\') {
+				result.append("\\\\");
+			} else if (c == '\n') {
+				result.append("\\n");
+			} else if (c == '\t') {
+				result.append("\\t");
+			} else if (c == '\r') {
+				result.append("\\r");
+			} else if ((c < ' ') || (c > '~')) {
+				String hex = Integer.toHexString(c);
+				result.append("\\u" + "0000".substring(hex.length()) + hex);
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append("\"").toString();
+	}
+
+	/**
+	 * Makes the given string safe to put in a comment.
+	*/
+	private static String comment(String s) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c < ' ') || (c > '~') || (c == '\\')) {
+				result.append('?');
+			} else if ((c == '/') && (i > 0) && (s.charAt(i - 1) == '*')) {
+				result.append(" /");
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An info string from the vocabulary file, such as the help text of a meaning or a field.
+ *
+ * Info strings are only ever shown by the GUI, so instead of keeping their text around, an info
+ * string just records where in the vocabulary file its text is, and a checksum of it. The text is
+ * read back in from just that part of the file when it is asked for, and the most recently used
+ * ones are kept in a small cache.
+ *
+ * If the text in the file has changed since it was loaded, so that the checksum no longer
+ * matches, the info string is empty. Changes elsewhere in the file, or just touching it, do not
+ * matter.
+*/
+public class InfoString {
+
+	/*
+	How many texts the cache holds.
+	*/
+	private static final int CACHE_SIZE = 64;
+
+	/*
+	The most recently used texts, by info string, in access order.
+	*/
+	private static final LinkedHashMap cache = new LinkedHashMap(CACHE_SIZE * 2, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private String language;
+
+	/*
+	The file the text is in, where in the file it is and how long it is, in bytes, and the
+	checksum of those bytes.
+	*/
+	private File file;
+	private long byteOffset;
+	private int byteLength;
+	private long checksum;
+
+	/*
+	The text, if it could not be recorded as a position in the file.
+	*/
+	private String text;
+
+	/**
+	 * Makes an info string of the rest of the current line of the given tokenizer, whose
+	 * keyword is of the form <language>_info.
+	 *
+	 * @param t the tokenizer
+	 * @param file the file the tokenizer is reading
+	*/
+	public InfoString(LineTokenizer t, File file) {
+		String keyword = t.getKeyword();
+		language = keyword.substring(0, keyword.length() - 5);
+		String rest = t.getRest();
+		byteOffset = t.getRestByteOffset();
+		if (byteOffset == -1) {
+			//the line is not as it is in the file, so keep the text itself
+			text = rest;
+		} else {
+			this.file = file;
+			byte bytes[] = rest.getBytes(Charset.defaultCharset());
+			byteLength = bytes.length;
+			checksum = checksum(bytes, byteLength);
+		}
+	}
+
+	/**
+	 * Reads an info string back in from a snapshot, as written by writeSnapshot().
+	 *
+	 * @param in the snapshot
+	 * @param file the vocabulary file the snapshot was made from
+	*/
+	public InfoString(SnapshotInput in, File file) {
+		language = in.readString();
+		if (in.readBoolean()) {
+			text = in.readString();
+		} else {
+			this.file = file;
+			byteOffset = in.readLong();
+			byteLength = in.readInt();
+			checksum = in.readLong();
+		}
+	}
+
+	/**
+	 * Writes this info string to a snapshot: the text itself only if it is not recorded as
+	 * a position in the file.
+	 *
+	 * @param out the snapshot
+	*/
+	public void writeSnapshot(SnapshotOutput out) {
+		out.writeString(language);
+		out.writeBoolean(text != null);
+		if (text != null) {
+			out.writeString(text);
+		} else {
+			out.writeLong(byteOffset);
+			out.writeInt(byteLength);
+			out.writeLong(checksum);
+		}
+	}
+
+	/**
+	 * Returns the language this info string is in.
+	*/
+	public String getLanguage() {
+		return language;
+	}
+
+	/**
+	 * Returns the text of this info string, reading it from the vocabulary file if it is not cached.
+	 *
+	 * @return the text, which is empty if it can no longer be read
+	*/
+	public String getText() {
+		if (text != null) {
+			return text;
+		}
+		synchronized (cache) {
+			String cached = (String) cache.get(this);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		String read;
+		try {
+			read = read();
+		}
+		catch (IOException e) {
+			read = "";
+		}
+		synchronized (cache) {
+			cache.put(this, read);
+		}
+		return read;
+	}
+
+	/**
+	 * Reads the text from its part of the file.
+	 *
+	 * @return the text, or the empty string if the file no longer has it there
+	 * @throws IOException if the file cannot be read
+	*/
+	private String read() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer bytes = ByteBuffer.allocate(byteLength);
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes, byteOffset + bytes.position()) < 0) {
+					return "";
+				}
+			}
+			if (checksum(bytes.array(), byteLength) != checksum) {
+				return "";
+			}
+			bytes.flip();
+			return Charset.defaultCharset().decode(bytes).toString();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the CRC-32 of the first length bytes of the given array.
+	*/
+	private static long checksum(byte bytes[], int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return crc.getValue();
+	}
+}
@@ -1,7 +1,11 @@
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.Iterator;
 
 /**
@@ -31,28 +35,58 @@ A HashMap for looking up the names of MeaningRuleSets.
 */
 private HashMap nameToMeaningRuleSet;
 
+/*
+Maps the names and tags of MeaningRuleSets, and the types or tags paths check for, to integer IDs.
+This way, the names and tags a node has can be stored in a BitSet.
+*/
+private HashMap symbolToId;
+
+/*
+Maps each VocabularyMeaning that has a name in this language to a BitSet of the IDs of its
+name, and of the names and tags of its MRS and that MRS's super-MRSs.
+Filled in once all rules have been linked.
+*/
+private IdentityHashMap typeToNamesAndTags;
+
+/*
+The number of TreePatterns that have been linked so far. Used to give each an ID.
+*/
+private int patternCount;
+
+/*
+Maps lists of rules to the RuleDecisionTrees compiled from them. Many MRSs inherit the very same
+list of rules from their super-MRS, and this way it only gets compiled once. Lists that could not
+be compiled map to the list itself.
+*/
+private HashMap rulesToDecisionTree;
+
+/*
+The vocabulary the rules are linked against.
+*/
+private Vocabulary vocabulary;
+
+/*
+Whether the rules get compiled into decision trees.
+*/
+private boolean compileDecisionTrees;
+
 /**
  * The constructor. It loads the data for said language from file.
  *
  * @param language the language this server is for.
+ * @param vocabulary the vocabulary to link the rules against, which must have been linked
+ * @param compileDecisionTrees whether to compile the rules into decision trees
 */
-public LanguageRuleServer(String language) {
+public LanguageRuleServer(String language, Vocabulary vocabulary, boolean compileDecisionTrees) {
 	languageName = language;
+	this.vocabulary = vocabulary;
+	this.compileDecisionTrees = compileDecisionTrees;
 	vocabularyMeaningToMeaningRuleSet = new HashMap();
 	nameToMeaningRuleSet = new HashMap();
+	symbolToId = new HashMap();
+	rulesToDecisionTree = new HashMap();
 	
-	/*
-	We find the data file relative to the jar file - at data/languages/<language>.txt
-	*/
-	File languageRulesFile = new File(
-		new File(
-			new File(
-				new File(
-					ClassLoader.getSystemResource("LanguageRuleServer.class").getPath().substring(5).replaceAll("\\%20", "\\ "))
-				.getParentFile().getParentFile()
-			, "data")
-		, "languages")
-	, language + ".txt");
+	File languageRulesFile = rulesFile(language);
 	
 	if (languageRulesFile.exists() == false) {
 		throw new LanguageNotImplementedException("The language " + language + " has no rules file.");
@@ -65,13 +99,9 @@ public LanguageRuleServer(String language) {
 	Whenever a "rules" line is encountered, we know that a new MRS definition has started.
 	*/
 	
-	PeekingLineReader r = null;
+	LineTokenizer r = null;
 	try {
-		r = new PeekingLineReader(
-			new BufferedReader(
-				new FileReader(languageRulesFile)
-			)
-		, true, false);
+		r = new LineTokenizer(languageRulesFile, true);
 	}
 	catch (java.io.FileNotFoundException e) {
 		throw new LanguageNotImplementedException("The language " + language + " has no rules file.");
@@ -90,13 +120,11 @@ public LanguageRuleServer(String language) {
 	
 	MeaningRuleSet currentRuleSet = null;
 		
-	String line = r.readLine();
-	while (line != null) {
+	while (r.hasLine()) {
 		/*
-		We split apart each line into two parts. The first part is everything leading up to the first space,
-		the second part is everything after that space.
+		The tokenizer splits each line into two parts. The keyword is everything leading up to the first space,
+		the rest is everything after that space.
 		*/
-		String lineparts[] = StringFunctions.splitLineAlongSpace(line);
 		boolean processed = false;
 		
 		/*
@@ -104,37 +132,38 @@ public LanguageRuleServer(String language) {
 		the associated VocabularyMeaning, but there may not be one, as in the case of "verb". In that case,
 		the VS will simply return null, and this is handled by the addMeaningRuleSet function.
 		*/
-		if (lineparts[0].equals("rules")) {
+		if (r.keywordEquals("rules")) {
 			String lineAndFile = "Rules file for " + language + ", line " + Integer.toString(r.getLineNumber()) + ":\n";
-			currentRuleSet = addMeaningRuleSet(VocabularyServer.lookupMeaningNullOnFail(lineparts[1], languageName), lineparts[1], lineAndFile);
+			String ruleSetName = r.getRest();
+			currentRuleSet = addMeaningRuleSet(vocabulary.lookupMeaningNullOnFail(ruleSetName, languageName), ruleSetName, lineAndFile);
 			processed = true;
 		}
 		
 		/*
 		These next three cases simply deal with storing tag/rule/super-MRS information in the current MRS.
 		*/
-		if (lineparts[0].equals("tag")) {
-			currentRuleSet.addTag(lineparts[1]);
+		if (r.keywordEquals("tag")) {
+			currentRuleSet.addTag(r.getRest());
 			processed = true;
 		}
-		if (lineparts[0].equals("rule"))  {
+		if (r.keywordEquals("rule"))  {
 			String lineAndFile = "Rules file for " + language + ", line " + Integer.toString(r.getLineNumber()) + ":\n";
-			currentRuleSet.addRule(lineparts[1], lineAndFile);
+			currentRuleSet.addRule(r.getRest(), lineAndFile);
 			processed = true;
 		}
-		if (lineparts[0].equals("super"))  {
-			currentRuleSet.setSuperName(lineparts[1]);
+		if (r.keywordEquals("super"))  {
+			currentRuleSet.setSuperName(r.getRest());
 			processed = true;
 		}
 		/*
 		Allowing for possible comments, we raise an exception if the line does not start properly.
 		*/
 		if (processed == false) {
-			if (lineparts[0].startsWith("//") == false) {
-				throw new UnexpectedLineInLanguageRulesException(languageName, line, "rules, tag, rule, super, or a comment (//)", r.getLineNumber());
+			if (r.lineStartsWith("//") == false) {
+				throw new UnexpectedLineInLanguageRulesException(languageName, r.getLine(), "rules, tag, rule, super, or a comment (//)", r.getLineNumber());
 			}
 		}
-		line = r.readLine();
+		r.next();
 	}
 	
 	/*
@@ -144,6 +173,257 @@ public LanguageRuleServer(String language) {
 	while (ruleIter.hasNext()) {
 		((MeaningRuleSet) ruleIter.next()).link();
 	}
+	
+	/*
+	Finally, with all MRSs in place, the rules themselves are linked. This binds the field names
+	in their paths to the vocabulary's fields.
+	*/
+	ruleIter = nameToMeaningRuleSet.values().iterator();
+	while (ruleIter.hasNext()) {
+		((MeaningRuleSet) ruleIter.next()).linkRules();
+	}
+	
+	/*
+	Now that all names, tags and the types or tags checked for have IDs, work out which of them
+	each MRS, and each type, has.
+	*/
+	ruleIter = nameToMeaningRuleSet.values().iterator();
+	while (ruleIter.hasNext()) {
+		((MeaningRuleSet) ruleIter.next()).linkNamesAndTags();
+	}
+	typeToNamesAndTags = new IdentityHashMap();
+	Iterator typeIter = vocabulary.getAllMeanings().iterator();
+	while (typeIter.hasNext()) {
+		VocabularyMeaning type = (VocabularyMeaning) typeIter.next();
+		if (type.hasName(languageName)) {
+			BitSet namesAndTags = new BitSet();
+			Integer nameID = (Integer) symbolToId.get(type.getName(languageName));
+			if (nameID != null) {
+				namesAndTags.set(nameID.intValue());
+			}
+			MeaningRuleSet mrs = (MeaningRuleSet) vocabularyMeaningToMeaningRuleSet.get(type);
+			if (mrs != null) {
+				namesAndTags.or(mrs.getNamesAndTags());
+			}
+			typeToNamesAndTags.put(type, namesAndTags);
+		}
+	}
+}
+
+/**
+ * Reads the rules for a language back in from a snapshot, as written by writeSnapshot(),
+ * instead of loading them from the rules file. They are already linked.
+ *
+ * @param in the snapshot
+ * @param vocabulary the vocabulary the rules are linked against, read in from the same snapshot
+*/
+public LanguageRuleServer(SnapshotInput in, Vocabulary vocabulary) {
+	this.vocabulary = vocabulary;
+	languageName = in.readString();
+	compileDecisionTrees = in.readBoolean();
+	vocabularyMeaningToMeaningRuleSet = new HashMap();
+	nameToMeaningRuleSet = new HashMap();
+	symbolToId = new HashMap();
+	rulesToDecisionTree = new HashMap();
+	int count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		symbolToId.put(in.readString(), Integer.valueOf(in.readInt()));
+	}
+	patternCount = in.readInt();
+	
+	/*
+	The MRSs and their rules come first, then the decision trees that select between the rules,
+	and then the links of the MRSs, which may refer to any of these.
+	*/
+	MeaningRuleSet ruleSets[] = new MeaningRuleSet[in.readInt()];
+	for (int i = 0; i < ruleSets.length; i++) {
+		ruleSets[i] = new MeaningRuleSet(in, this);
+		nameToMeaningRuleSet.put(ruleSets[i].name, ruleSets[i]);
+	}
+	count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		new RuleDecisionTree(in);
+	}
+	for (int i = 0; i < ruleSets.length; i++) {
+		ruleSets[i].readSnapshotLinks(in);
+	}
+	
+	count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		vocabularyMeaningToMeaningRuleSet.put(in.readReference(), in.readReference());
+	}
+	typeToNamesAndTags = new IdentityHashMap();
+	count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		typeToNamesAndTags.put(in.readReference(), in.readBitSet());
+	}
+}
+
+/**
+ * Writes the rules for this language to a snapshot. The vocabulary must have been written
+ * to the same snapshot already.
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeString(languageName);
+	out.writeBoolean(compileDecisionTrees);
+	out.writeInt(symbolToId.size());
+	Iterator iter = symbolToId.keySet().iterator();
+	while (iter.hasNext()) {
+		String symbol = (String) iter.next();
+		out.writeString(symbol);
+		out.writeInt(((Integer) symbolToId.get(symbol)).intValue());
+	}
+	out.writeInt(patternCount);
+	
+	out.writeInt(nameToMeaningRuleSet.size());
+	iter = nameToMeaningRuleSet.values().iterator();
+	while (iter.hasNext()) {
+		((MeaningRuleSet) iter.next()).writeSnapshot(out);
+	}
+	
+	/*
+	Lists of rules that could not be compiled map to themselves, so only the actual trees are written.
+	*/
+	int count = 0;
+	iter = rulesToDecisionTree.values().iterator();
+	while (iter.hasNext()) {
+		if (iter.next() instanceof RuleDecisionTree) {
+			count++;
+		}
+	}
+	out.writeInt(count);
+	iter = rulesToDecisionTree.values().iterator();
+	while (iter.hasNext()) {
+		Object tree = iter.next();
+		if (tree instanceof RuleDecisionTree) {
+			((RuleDecisionTree) tree).writeSnapshot(out);
+		}
+	}
+	
+	iter = nameToMeaningRuleSet.values().iterator();
+	while (iter.hasNext()) {
+		((MeaningRuleSet) iter.next()).writeSnapshotLinks(out);
+	}
+	
+	out.writeInt(vocabularyMeaningToMeaningRuleSet.size());
+	iter = vocabularyMeaningToMeaningRuleSet.keySet().iterator();
+	while (iter.hasNext()) {
+		Object meaning = iter.next();
+		out.writeReference(meaning);
+		out.writeReference(vocabularyMeaningToMeaningRuleSet.get(meaning));
+	}
+	out.writeInt(typeToNamesAndTags.size());
+	iter = typeToNamesAndTags.keySet().iterator();
+	while (iter.hasNext()) {
+		Object type = iter.next();
+		out.writeReference(type);
+		out.writeBitSet((BitSet) typeToNamesAndTags.get(type));
+	}
+}
+
+/**
+ * Returns the rules file for the given language. The file may not exist.
+ *
+ * @param language the code of the language
+ * @return the file
+*/
+public static File rulesFile(String language) {
+	return new File(rulesDirectory(), language + ".txt");
+}
+
+/**
+ * Returns the directory the rules files are in.
+ *
+ * @return the directory
+*/
+public static File rulesDirectory() {
+	/*
+	We find the data files relative to the jar file - at data/languages/<language>.txt
+	*/
+	return new File(
+		new File(
+			new File(
+				ClassLoader.getSystemResource("LanguageRuleServer.class").getPath().substring(5).replaceAll("\\%20", "\\ "))
+			.getParentFile().getParentFile()
+		, "data")
+	, "languages");
+}
+
+/**
+ * Returns the vocabulary the rules are linked against.
+*/
+public Vocabulary getVocabulary() {
+	return vocabulary;
+}
+
+/**
+ * Returns whether the rules are compiled into decision trees.
+*/
+public boolean compileDecisionTrees() {
+	return compileDecisionTrees;
+}
+
+/**
+ * Returns the ID of a name or tag, assigning a new one if it has none yet.
+ * IDs are only assigned while the rules are being loaded and linked.
+ *
+ * @param symbol the name or tag
+ * @return its ID
+*/
+public int symbolID(String symbol) {
+	Integer id = (Integer) symbolToId.get(symbol);
+	if (id == null) {
+		id = Integer.valueOf(symbolToId.size());
+		symbolToId.put(symbol, id);
+	}
+	return id.intValue();
+}
+
+/**
+ * Returns a new ID for a TreePattern. IDs are only handed out while the rules are being linked.
+ *
+ * @return the ID
+*/
+public int patternID() {
+	patternCount++;
+	return patternCount - 1;
+}
+
+/**
+ * Returns the decision tree for the given ordered array of rules, compiling it if this
+ * has not been done for the same rules in the same order yet.
+ *
+ * @param rules the rules
+ * @return the decision tree, or null if it could not be compiled
+*/
+public RuleDecisionTree decisionTreeFor(MeaningRule rules[]) {
+	List key = Arrays.asList(rules);
+	Object tree = rulesToDecisionTree.get(key);
+	if (tree == null) {
+		tree = RuleDecisionTree.compile(rules);
+		if (tree == null) {
+			tree = key;
+		}
+		rulesToDecisionTree.put(key, tree);
+	}
+	if (tree instanceof RuleDecisionTree) {
+		return (RuleDecisionTree) tree;
+	}
+	return null;
+}
+
+/**
+ * Returns a BitSet of the IDs of the name of the given type, and of the names and tags of its
+ * MRS and that MRS's super-MRSs. Returns null if the type has no name in this language.
+ * The BitSet must not be modified.
+ *
+ * @param type the type
+ * @return a bitset of symbol IDs, or null
+*/
+public BitSet namesAndTagsOf(VocabularyMeaning type) {
+	return (BitSet) typeToNamesAndTags.get(type);
 }
 
 /**
@@ -179,6 +459,15 @@ public MeaningRuleSet getRule(String name, String errorLocation) {
 }
 
 
+/**
+ * Returns all the MeaningRuleSets of this language. The collection cannot be modified.
+ *
+ * @return a collection of MeaningRuleSets
+*/
+public Collection getMeaningRuleSets() {
+	return Collections.unmodifiableCollection(nameToMeaningRuleSet.values());
+}
+
 /**
  * Returns true if there is a meaning rule for the given meaning.
  *
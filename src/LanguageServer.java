@@ -1,17 +1,103 @@
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchService;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchEvent;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.ClosedWatchServiceException;
+import java.io.IOException;
 
 /**
  * Serves LanguageRuleServers when given a language code.
  *
+ * The LanguageRuleServers are held by the default Engine. These methods get them from
+ * whichever Engine is the default at the time.
+ *
  * Remember:
  * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
 */
 public class LanguageServer {
 
 /*
-Hashmap of all LanguageRuleServers.
+The thread that watches the rules files for changes, once watchRulesFiles() has been called.
+*/
+private static Thread rulesWatcher;
+
+/*
+How long a rules file has to be left alone before it is reloaded, in milliseconds. Editors
+often save a file in several steps.
+*/
+private static final long RELOAD_DELAY = 250;
+
+/*
+Whether compiled rules are used for the languages that have them, and whether the rules of
+newly loaded languages get compiled into decision trees. New default Engines are made with
+these settings.
+*/
+private static boolean useCompiledGrammars = true;
+private static boolean compileDecisionTrees = true;
+
+/**
+ * Sets whether the rules of languages loaded from now on are compiled into decision trees.
+ * This is on by default. Turning it off makes the rules get tested one after the other.
+ *
+ * @param compile whether to compile decision trees
+*/
+public static synchronized void setCompileDecisionTrees(boolean compile) {
+	compileDecisionTrees = compile;
+	updateDefaultSettings();
+}
+
+/**
+ * Returns whether the rules of newly loaded languages get compiled into decision trees.
+*/
+public static boolean compileDecisionTrees() {
+	return compileDecisionTrees;
+}
+
+/**
+ * Sets whether the rules of languages that have been compiled by the GrammarCompiler are
+ * used instead of interpreting the rules files. This is on by default.
+ *
+ * @param use whether to use compiled rules
+*/
+public static synchronized void setUseCompiledGrammars(boolean use) {
+	useCompiledGrammars = use;
+	updateDefaultSettings();
+}
+
+/**
+ * Returns whether compiled rules are used for the languages that have them.
 */
-private static HashMap nameToRuleServer = new HashMap();
+public static boolean useCompiledGrammars() {
+	return useCompiledGrammars;
+}
+
+/**
+ * Replaces the default Engine, if there is one, with one with the current settings.
+*/
+private static void updateDefaultSettings() {
+	Engine engine = Engine.getDefaultNullOnFail();
+	if (engine != null) {
+		Engine.setDefault(engine.withSettings(compileDecisionTrees, useCompiledGrammars));
+	}
+}
+
+/**
+ * Returns the compiled rules for the given language. If they have not been loaded yet,
+ * attempts to load them. The vocabulary must have been loaded and linked first.
+ *
+ * @param languageName the code of the language, such as en or de
+ * @return the compiled rules, or null if there are none that are up to date, or if they are not to be used
+*/
+public static CompiledGrammar getCompiledGrammar(String languageName) {
+	return Engine.getDefault().getCompiledGrammar(languageName);
+}
 
 /**
  * Returns a language rule server for the given language identifier string. (en, de, etc.)
@@ -21,12 +107,128 @@ private static HashMap nameToRuleServer = new HashMap();
  * @return the language rule server for that language
 */
 public static LanguageRuleServer getLanguageRuleServer(String languageName) {
-	if (nameToRuleServer.containsKey(languageName)) {
-		return (LanguageRuleServer) nameToRuleServer.get(languageName);
-	} else {
-		LanguageRuleServer newServer = new LanguageRuleServer(languageName);
-		nameToRuleServer.put(languageName, newServer);
-		return newServer;
+	return Engine.getDefault().getLanguageRuleServer(languageName);
+}
+
+/**
+ * Loads the LanguageRuleServers for all the given languages that are not loaded yet, several at
+ * once, so that no generation request has to wait for its language to be loaded. The vocabulary
+ * must have been loaded and linked first. See Engine.preloadLanguageRuleServers().
+ *
+ * @param languageNames the codes of the languages
+ * @param threads the most languages to load at the same time
+ * @return a map from each language loaded to how long it took in milliseconds, in the order given
+*/
+public static LinkedHashMap preloadLanguageRuleServers(List languageNames, int threads) {
+	return Engine.getDefault().preloadLanguageRuleServers(languageNames, threads);
+}
+
+/**
+ * Loads the rules for the given language from file again, and if that works, swaps them in
+ * for the ones in use, by making a new default Engine. Generation requests that have already
+ * started finish with the old rules.
+ * If the new rules cannot be loaded, the error is reported, and the old rules stay in use.
+ * The vocabulary must have been loaded and linked first.
+ *
+ * @param languageName the code of the language
+ * @return whether the rules were reloaded
+*/
+public static boolean reloadLanguageRuleServer(String languageName) {
+	Engine engine = Engine.getDefault();
+	LanguageRuleServer server;
+	try {
+		server = new LanguageRuleServer(languageName, engine.getVocabulary(), engine.compileDecisionTrees());
+	}
+	catch (RuntimeException e) {
+		System.err.println("Could not reload the rules for " + languageName + ", so the old ones stay in use:\n" + e.toString());
+		return false;
+	}
+
+	synchronized (LanguageServer.class) {
+		/*
+		Compiled rules are made from the old rules file, so the new Engine looks them up again,
+		which checks whether they match the new one. If the vocabulary has been reloaded in the
+		meantime, the rules are for the old one, and the new Engine loads its own anyway.
+		*/
+		engine = Engine.getDefault();
+		if (engine.getVocabulary() != server.getVocabulary()) {
+			return false;
+		}
+		Engine.setDefault(engine.withRuleServer(languageName, server));
+	}
+	System.err.println("Reloaded the rules for " + languageName + ".");
+	return true;
+}
+
+/**
+ * Starts watching the rules files for changes. From then on, whenever the rules file of a
+ * language that has been loaded changes, its rules are reloaded in the background with
+ * reloadLanguageRuleServer(). Does nothing if the files are already being watched.
+ *
+ * @throws IOException if the rules directory cannot be watched
+*/
+public static synchronized void watchRulesFiles() throws IOException {
+	if (rulesWatcher != null) {
+		return;
+	}
+	final WatchService watcher = FileSystems.getDefault().newWatchService();
+	LanguageRuleServer.rulesDirectory().toPath().register(watcher, new WatchEvent.Kind[] {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY});
+	rulesWatcher = new Thread("Rules file watcher") {
+		public void run() {
+			watchRulesFiles(watcher);
+		}
+	};
+	rulesWatcher.setDaemon(true);
+	rulesWatcher.start();
+}
+
+/**
+ * Waits for changes to the rules files and reloads the rules of the languages whose files changed.
+ * Runs until the thread is interrupted.
+*/
+private static void watchRulesFiles(WatchService watcher) {
+	try {
+		while (true) {
+			/*
+			Collect the changed languages until there have been no more changes for a while.
+			*/
+			HashSet changed = new HashSet();
+			WatchKey key = watcher.take();
+			while (key != null) {
+				Iterator eventIter = key.pollEvents().iterator();
+				while (eventIter.hasNext()) {
+					WatchEvent event = (WatchEvent) eventIter.next();
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						changed.addAll(Engine.getDefault().getLoadedLanguages());
+					} else {
+						String fileName = event.context().toString();
+						if (fileName.endsWith(".txt")) {
+							changed.add(fileName.substring(0, fileName.length() - 4));
+						}
+					}
+				}
+				key.reset();
+				key = watcher.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS);
+			}
+
+			/*
+			Languages that have not been loaded yet will be loaded from the new file anyway.
+			*/
+			Set loaded = Engine.getDefault().getLoadedLanguages();
+			Iterator languageIter = changed.iterator();
+			while (languageIter.hasNext()) {
+				String languageName = (String) languageIter.next();
+				if (loaded.contains(languageName)) {
+					reloadLanguageRuleServer(languageName);
+				}
+			}
+		}
+	}
+	catch (InterruptedException e) {
+		//stop watching
+	}
+	catch (ClosedWatchServiceException e) {
+		//stop watching
 	}
 }
 
@@ -0,0 +1,436 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Splits the lines of the vocabulary, the language rules and MR files into tokens.
+ *
+ * Each non-empty line is seen as an indent level, which is the number of tabs it starts with,
+ * a keyword, which is everything up to the first space, and the rest, which is everything after
+ * that space. The tokenizer looks at one line at a time, the current line, and next() moves on.
+ *
+ * The whole file is decoded into one buffer up front, and the current line is kept as a pair of
+ * positions in that buffer. Checking the keyword or the start of the line compares against the
+ * buffer directly, so only the parts that are actually kept, like names, are made into Strings.
+*/
+public class LineTokenizer {
+
+	private char text[];
+	private int length;
+	private boolean discardTabs;
+
+	/*
+	The current line: the characters from lineStart to lineEnd of line, after the indentation.
+	This is normally text, unless tabs had to be taken out of the middle of the line.
+	*/
+	private char line[];
+	private int lineStart;
+	private int lineEnd;
+	private int indent;
+
+	/*
+	The position of the first space in the current line, or -1 if there is none.
+	*/
+	private int spaceAt;
+
+	private boolean hasLine;
+	private int lineNumber;
+
+	/*
+	Where the line after the current one starts in text, and its line number.
+	*/
+	private int position;
+	private int nextLineNumber;
+
+	/*
+	The encoding of the file the text was decoded from, or null if it was not read from a file.
+	*/
+	private Charset charset;
+
+	/*
+	How far into text getRestByteOffset() has counted bytes, and how many bytes that was.
+	*/
+	private int countedTo;
+	private long countedBytes;
+
+	/**
+	 * A constructor for reading a file, which is decoded in the platform's default encoding,
+	 * like a FileReader would.
+	 *
+	 * @param file the file to read
+	 * @param discardTabs whether to discard the tabs in the middle and at the end of lines too
+	 * @throws FileNotFoundException if the file does not exist
+	 * @throws InvalidBufferedReaderException if the file cannot be read
+	*/
+	public LineTokenizer(File file, boolean discardTabs) throws FileNotFoundException {
+		CharBuffer chars;
+		try {
+			chars = decode(file);
+		}
+		catch (FileNotFoundException e) {
+			throw e;
+		}
+		catch (IOException e) {
+			throw new InvalidBufferedReaderException(e);
+		}
+		init(chars.array(), chars.limit(), discardTabs);
+		charset = Charset.defaultCharset();
+	}
+
+	/**
+	 * Maps the given file into memory and decodes it in the platform's default encoding.
+	 *
+	 * @param file the file
+	 * @return its text
+	 * @throws IOException if it cannot be read
+	*/
+	public static CharBuffer decode(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return Charset.defaultCharset().decode(bytes);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A constructor for reading from a reader, such as one connected to stdin.
+	 *
+	 * @param reader the reader to read from
+	 * @param discardTabs whether to discard the tabs in the middle and at the end of lines too
+	 * @param stopAtEmptyLine whether the input ends at the first empty line, rather than at the end of the reader
+	 * @throws InvalidBufferedReaderException if the reader fails
+	*/
+	public LineTokenizer(BufferedReader reader, boolean discardTabs, boolean stopAtEmptyLine) {
+		StringBuilder buffer = new StringBuilder();
+		try {
+			String readLine = reader.readLine();
+			while ((readLine != null) && ((stopAtEmptyLine == false) || (readLine.length() > 0))) {
+				buffer.append(readLine).append('\n');
+				readLine = reader.readLine();
+			}
+		}
+		catch (IOException e) {
+			throw new InvalidBufferedReaderException(e);
+		}
+		char chars[] = new char[buffer.length()];
+		buffer.getChars(0, chars.length, chars, 0);
+		init(chars, chars.length, discardTabs);
+	}
+
+	/**
+	 * Sets up the tokenizer on the given text and moves to the first line.
+	*/
+	private void init(char text[], int length, boolean discardTabs) {
+		this.text = text;
+		this.length = length;
+		this.discardTabs = discardTabs;
+		position = 0;
+		nextLineNumber = 1;
+		next();
+	}
+
+	/**
+	 * Moves on to the next non-empty line.
+	*/
+	public void next() {
+		hasLine = false;
+		while (position < length) {
+			int start = position;
+			int end = start;
+			while ((end < length) && (text[end] != '\n') && (text[end] != '\r')) {
+				end++;
+			}
+
+			//skip the line break, which may be \n, \r or \r\n
+			position = end;
+			if (position < length) {
+				if ((text[position] == '\r') && (position + 1 < length) && (text[position + 1] == '\n')) {
+					position++;
+				}
+				position++;
+			}
+
+			lineNumber = nextLineNumber;
+			nextLineNumber++;
+			if (end > start) {
+				setLine(start, end);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes the given part of the text the current line.
+	*/
+	private void setLine(int start, int end) {
+		int i = start;
+		while ((i < end) && (text[i] == '\t')) {
+			i++;
+		}
+		indent = i - start;
+		line = text;
+		lineStart = i;
+		lineEnd = end;
+
+		/*
+		Tabs in the middle of a line are rare, so only then is the line copied without them.
+		*/
+		if (discardTabs) {
+			while ((i < end) && (text[i] != '\t')) {
+				i++;
+			}
+			if (i < end) {
+				char stripped[] = new char[end - lineStart];
+				int strippedLength = 0;
+				for (int j = lineStart; j < end; j++) {
+					if (text[j] != '\t') {
+						stripped[strippedLength] = text[j];
+						strippedLength++;
+					}
+				}
+				line = stripped;
+				lineStart = 0;
+				lineEnd = strippedLength;
+			}
+		}
+
+		spaceAt = -1;
+		for (int j = lineStart; j < lineEnd; j++) {
+			if (line[j] == ' ') {
+				spaceAt = j;
+				break;
+			}
+		}
+		hasLine = true;
+	}
+
+	/**
+	 * Returns whether there is a current line, that is, whether the end has not been reached yet.
+	*/
+	public boolean hasLine() {
+		return hasLine;
+	}
+
+	/**
+	 * Returns the number of tabs the current line starts with.
+	*/
+	public int getIndent() {
+		return indent;
+	}
+
+	/**
+	 * Returns the line number of the current line, counting from 1.
+	*/
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * Returns whether the current line, without its indentation, is the given string.
+	 *
+	 * @param s the string
+	 * @return false if it is not, or if there is no current line
+	*/
+	public boolean lineEquals(String s) {
+		return hasLine && (lineEnd - lineStart == s.length()) && matches(lineStart, s);
+	}
+
+	/**
+	 * Returns whether the current line, without its indentation, starts with the given string.
+	 *
+	 * @param s the string
+	 * @return false if it does not, or if there is no current line
+	*/
+	public boolean lineStartsWith(String s) {
+		return hasLine && (lineEnd - lineStart >= s.length()) && matches(lineStart, s);
+	}
+
+	/**
+	 * Returns whether the keyword of the current line is the given string.
+	 *
+	 * @param s the string
+	 * @return false if it is not, or if there is no current line
+	*/
+	public boolean keywordEquals(String s) {
+		return hasLine && (keywordEnd() - lineStart == s.length()) && matches(lineStart, s);
+	}
+
+	/**
+	 * Returns whether the keyword of the current line ends with the given string.
+	 *
+	 * @param s the string
+	 * @return false if it does not, or if there is no current line
+	*/
+	public boolean keywordEndsWith(String s) {
+		return hasLine && (keywordEnd() - lineStart >= s.length()) && matches(keywordEnd() - s.length(), s);
+	}
+
+	/**
+	 * Returns the current line without its indentation.
+	 *
+	 * @return the line, or null if there is none
+	*/
+	public String getLine() {
+		if (hasLine == false) {
+			return null;
+		}
+		return new String(line, lineStart, lineEnd - lineStart);
+	}
+
+	/**
+	 * Returns the keyword of the current line, which is everything up to the first space.
+	 *
+	 * @return the keyword, or null if there is no current line
+	*/
+	public String getKeyword() {
+		if (hasLine == false) {
+			return null;
+		}
+		return new String(line, lineStart, keywordEnd() - lineStart);
+	}
+
+	/**
+	 * Returns the rest of the current line, which is everything after the first space.
+	 *
+	 * @return the rest, which is empty if there is no space, or null if there is no current line
+	*/
+	public String getRest() {
+		if (hasLine == false) {
+			return null;
+		}
+		if (spaceAt == -1) {
+			return "";
+		}
+		return new String(line, spaceAt + 1, lineEnd - spaceAt - 1);
+	}
+
+	/**
+	 * Returns where the rest of the current line starts in the decoded file, as returned by decode(),
+	 * so that it can be read again later without keeping it.
+	 *
+	 * @return the offset, or -1 if the rest is empty, or if it is not as it is in the file because tabs were taken out
+	*/
+	public int getRestOffset() {
+		if ((hasLine == false) || (line != text) || (spaceAt == -1)) {
+			return -1;
+		}
+		return spaceAt + 1;
+	}
+
+	/**
+	 * Returns the length of the rest of the current line.
+	*/
+	public int getRestLength() {
+		if ((hasLine == false) || (spaceAt == -1)) {
+			return 0;
+		}
+		return lineEnd - spaceAt - 1;
+	}
+
+	/**
+	 * Returns where the rest of the current line starts in the file, in bytes, so that it can be
+	 * read again later without decoding the whole file. The bytes are counted on from where they
+	 * were counted to the last time, so asking for each line in turn counts through the file once.
+	 *
+	 * @return the offset in bytes, or -1 if getRestOffset() is -1, or if the text is not from a file
+	*/
+	public long getRestByteOffset() {
+		int offset = getRestOffset();
+		if ((offset == -1) || (charset == null)) {
+			return -1;
+		}
+		if (offset < countedTo) {
+			countedTo = 0;
+			countedBytes = 0;
+		}
+		countedBytes += charset.encode(CharBuffer.wrap(text, countedTo, offset - countedTo)).remaining();
+		countedTo = offset;
+		return countedBytes;
+	}
+
+	/**
+	 * Returns where the keyword of the current line ends.
+	*/
+	private int keywordEnd() {
+		return (spaceAt == -1) ? lineEnd : spaceAt;
+	}
+
+	/**
+	 * Returns whether the current line contains the given string at the given position.
+	*/
+	private boolean matches(int from, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (line[from + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the speed of the tokenizer with that of splitting the lines of a PeekingLineReader,
+	 * on the vocabulary and all the language rules files. Both look for the same keywords.
+	 *
+	 * Usage: java LineTokenizer [repetitions]
+	*/
+	public static void main(String args[]) throws IOException {
+		int repetitions = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+
+		ArrayList files = new ArrayList();
+		files.add(VocabularyServer.vocabularyFile());
+		File languageFiles[] = LanguageRuleServer.rulesFile("en").getParentFile().listFiles();
+		for (int i = 0; i < languageFiles.length; i++) {
+			if (languageFiles[i].getName().endsWith(".txt")) {
+				files.add(languageFiles[i]);
+			}
+		}
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int readerMatches = 0;
+			for (int i = 0; i < repetitions; i++) {
+				for (int f = 0; f < files.size(); f++) {
+					PeekingLineReader r = new PeekingLineReader(new BufferedReader(new FileReader((File) files.get(f))), true, false);
+					while (r.peek() != null) {
+						String lineParts[] = StringFunctions.splitLineAlongSpace(r.readLine());
+						if (lineParts[0].equals("rule") || lineParts[0].endsWith("_type")) {
+							readerMatches++;
+						}
+					}
+					r.close();
+				}
+			}
+			long readerTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int tokenizerMatches = 0;
+			for (int i = 0; i < repetitions; i++) {
+				for (int f = 0; f < files.size(); f++) {
+					LineTokenizer t = new LineTokenizer((File) files.get(f), true);
+					while (t.hasLine()) {
+						if (t.keywordEquals("rule") || t.keywordEndsWith("_type")) {
+							tokenizerMatches++;
+						}
+						t.next();
+					}
+				}
+			}
+			long tokenizerTime = System.nanoTime() - start;
+
+			System.out.println("PeekingLineReader: " + (readerTime / 1000000) + " ms, " + readerMatches + " matches");
+			System.out.println("LineTokenizer:     " + (tokenizerTime / 1000000) + " ms, " + tokenizerMatches + " matches");
+		}
+	}
+}
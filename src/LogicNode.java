@@ -1,3 +1,6 @@
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * An interface for nodes used to construct trees that represent boolean expressions.
  *
@@ -6,6 +9,16 @@
 */
 public interface LogicNode {
 
+/*
+What kind of node writeSnapshot() writes, which it writes first.
+*/
+public static final int SNAPSHOT_NONE = 0;
+public static final int SNAPSHOT_HEAD = 1;
+public static final int SNAPSHOT_AND = 2;
+public static final int SNAPSHOT_OR = 3;
+public static final int SNAPSHOT_NOT = 4;
+public static final int SNAPSHOT_PATTERN = 5;
+
 /**
  * This method fills in this node's empty field with a node.
  *
@@ -23,8 +36,49 @@ public String display();
  * MRNode as a starting point.
  * 
  * @param startNode the node the patterns should start matching from
+ * @param context the generation request this is part of, which caches the results of patterns. May be null.
  * @return true if the tree matches
 */
-public boolean evaluate(MRNode startNode);
+public boolean evaluate(MRNode startNode, GenerationContext context);
+
+/**
+ * Evaluates this node as far as possible, given the results of some of the
+ * patterns it contains, in the same order as evaluate() would.
+ * Used for compiling conditions into decision trees.
+ *
+ * @param knownResults maps the pattern strings of the patterns whose results are known to Boolean results
+ * @return Boolean.TRUE or Boolean.FALSE if the result is known, otherwise the TreePattern evaluate() would have to follow next
+*/
+public Object evaluateKnown(HashMap knownResults);
+
+/**
+ * Links the patterns in this node and its sub-nodes against the vocabulary.
+ * Called once all rules of a language have been loaded.
+*/
+public void link();
+
+/**
+ * Adds the patterns in this node and its sub-nodes to the given list.
+ *
+ * @param patterns the list to add the TreePatterns to
+*/
+public void collectPatterns(List patterns);
+
+/**
+ * Compiles this node and its sub-nodes into a Java boolean expression that evaluates
+ * the same way evaluate() does. See GrammarCompiler.
+ *
+ * @param compiler the compiler the expression is for
+ * @return the expression
+*/
+public String compile(GrammarCompiler compiler);
+
+/**
+ * Writes this node and its sub-nodes to a snapshot: first its kind, then its sub-nodes
+ * with SnapshotOutput.writeLogicNode(). See MeaningRule.readLogicNode().
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out);
 
 }
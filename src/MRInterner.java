@@ -0,0 +1,310 @@
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.Stack;
+
+/**
+ * Makes MRs share the subtrees they have in common, such as "actor you", so that a large
+ * batch of MRs takes less memory, and so that things worked out for such a subtree, like the
+ * results cached by a GenerationContext, can be keyed on the node itself.
+ *
+ * Interning an MR replaces each subtree of it by the first subtree of the same structure seen
+ * before, in any MR, if there has been one. Structure means the type or literal value of each
+ * node, and the fields its children are in. The structural hash of each node is worked out
+ * once, bottom up, so comparing subtrees is cheap.
+ *
+ * A shared node only has one parent, that of the first MR it was seen in, so a subtree may only
+ * be shared if the rules never go up from its root. The rules of the given languages are looked
+ * at once, when the interner is made, for how far up from the node they run on they go, and for
+ * the fields they go down into and back up out of. A subtree is shared only if no rule run on it
+ * or on the nodes below it goes up beyond it, and no rule goes back up out of the field it is in.
+ * Interned MRs must only be generated in those languages.
+ *
+ * Interned MRs must not be changed, as that would change all the MRs sharing the changed nodes.
+ *
+ * Once the table holds MAX_SIZE nodes, it is emptied before the next MR is interned, so that an
+ * interner that a stream of any length goes through takes bounded memory.
+*/
+public class MRInterner {
+
+	/*
+	The size the table starts out with. It must be a power of two.
+	*/
+	private static final int INITIAL_TABLE_SIZE = 1024;
+
+	/*
+	The most nodes the table holds before it is emptied.
+	*/
+	private static final int MAX_SIZE = 1 << 16;
+
+	private Engine engine;
+	private List languages;
+
+	/*
+	For each type, how many levels up from a node of that type its rules go, at most, in any of
+	the languages. Worked out when a type is first met.
+	*/
+	private IdentityHashMap typeToClimb = new IdentityHashMap();
+
+	/*
+	For each rule set, how many levels up its rules go, at most.
+	*/
+	private IdentityHashMap ruleSetToClimb = new IdentityHashMap();
+
+	/*
+	The fields that some rule goes down into and back up out of. The nodes in them cannot be
+	shared, as going up from them needs their own parent.
+	*/
+	private HashSet returnedFromFields = new HashSet();
+
+	/*
+	The nodes that are shared. It is a hash table with open addressing, in which a node is its
+	own key, so that it needs no objects besides the nodes.
+	*/
+	private MRNode table[] = new MRNode[INITIAL_TABLE_SIZE];
+	private int size;
+
+	/**
+	 * Creates an interner for MRs to be generated in the given languages with the default Engine.
+	 *
+	 * @param languages the codes of the languages
+	*/
+	public MRInterner(List languages) {
+		this(Engine.getDefault(), languages);
+	}
+
+	/**
+	 * Creates an interner for MRs to be generated in the given languages with the given Engine.
+	 * The rules of the languages are loaded if they have not been. Languages whose rules cannot
+	 * be loaded are left out.
+	 *
+	 * @param engine the engine
+	 * @param languages the codes of the languages
+	*/
+	public MRInterner(Engine engine, List languages) {
+		this.engine = engine;
+		this.languages = new ArrayList();
+		Iterator langIter = languages.iterator();
+		while (langIter.hasNext()) {
+			String language = (String) langIter.next();
+			LanguageRuleServer server;
+			try {
+				server = engine.getLanguageRuleServer(language);
+			}
+			catch (RuntimeException e) {
+				//no MR can be generated in a language whose rules do not load, so it need not be looked at
+				continue;
+			}
+			this.languages.add(language);
+			Iterator mrsIter = server.getMeaningRuleSets().iterator();
+			while (mrsIter.hasNext()) {
+				MeaningRuleSet mrs = (MeaningRuleSet) mrsIter.next();
+				ruleSetToClimb.put(mrs, Integer.valueOf(examine(mrs, server)));
+			}
+		}
+	}
+
+	/**
+	 * Returns how far up from the node they run on the rules of the given rule set and its
+	 * super-MRSs go, and notes the fields they go back up out of.
+	*/
+	private int examine(MeaningRuleSet mrs, LanguageRuleServer server) {
+		int climb = 0;
+		Iterator nameIter = mrs.getRuleNames().iterator();
+		while (nameIter.hasNext()) {
+			MeaningRule rules[] = mrs.getEffectiveRules((String) nameIter.next());
+			for (int i = 0; i < rules.length; i++) {
+				Iterator patternIter = rules[i].getPatterns().iterator();
+				while (patternIter.hasNext()) {
+					climb = Math.max(climb, examine((TreePattern) patternIter.next(), server));
+				}
+			}
+		}
+		return climb;
+	}
+
+	/**
+	 * Returns how far up from the node it starts at the given pattern goes, and notes the
+	 * fields it goes back up out of.
+	*/
+	private int examine(TreePattern pattern, LanguageRuleServer server) {
+		/*
+		The stack holds the names of the fields gone down into since the start, or since the
+		highest point reached, whichever is later.
+		*/
+		Stack fieldsDown = new Stack();
+		int up = 0;
+		Iterator instrIter = pattern.getInstructions().iterator();
+		while (instrIter.hasNext()) {
+			PatternInstruction instruction = (PatternInstruction) instrIter.next();
+			if (instruction.staysPut()) {
+				continue;
+			}
+			if (instruction.goesUp()) {
+				if (fieldsDown.isEmpty()) {
+					up++;
+				} else {
+					Map fields = server.getVocabulary().getFieldsLabelled((String) fieldsDown.pop(), server.languageName);
+					if (fields != null) {
+						returnedFromFields.addAll(fields.values());
+					}
+				}
+			} else {
+				fieldsDown.push(instruction.getFieldName());
+			}
+		}
+		return up;
+	}
+
+	/**
+	 * Returns how far up from a node of the given type its rules go, in any of the languages.
+	*/
+	private int climbOf(VocabularyMeaning type) {
+		Integer climb = (Integer) typeToClimb.get(type);
+		if (climb == null) {
+			int max = 0;
+			Iterator langIter = languages.iterator();
+			while (langIter.hasNext()) {
+				LanguageRuleServer server = engine.getLanguageRuleServer((String) langIter.next());
+				if (server.hasRuleFor(type)) {
+					Integer mrsClimb = (Integer) ruleSetToClimb.get(server.getRule(type, ""));
+					max = Math.max(max, mrsClimb.intValue());
+				}
+			}
+			climb = Integer.valueOf(max);
+			typeToClimb.put(type, climb);
+		}
+		return climb.intValue();
+	}
+
+	/**
+	 * Interns the given MR: its subtrees that can be shared are replaced by those of the same
+	 * structure already in the table, or put into the table if there are none.
+	 *
+	 * @param mr the MR, which must not be changed afterwards
+	 * @return the MR
+	*/
+	public synchronized MeaningRepresentation intern(MeaningRepresentation mr) {
+		if (size >= MAX_SIZE) {
+			clear();
+		}
+		MRNode root = mr.getRootNode();
+		if (root != null) {
+			intern(root);
+			/*
+			The root is never gone up from, so it can always be shared with other roots.
+			*/
+			mr.setRootNode(canonical(root));
+		}
+		return mr;
+	}
+
+	/**
+	 * Loads the MR in the given file and interns it.
+	 *
+	 * @param path the path of the file
+	 * @return the interned MR
+	*/
+	public MeaningRepresentation load(String path) {
+		return intern(new MeaningRepresentation(path));
+	}
+
+	/**
+	 * Interns the subtrees below the given node, bottom up, and returns how many levels above
+	 * the node the rules run on it and the nodes below it go.
+	*/
+	private int intern(MRNode node) {
+		if (node.isLiteral()) {
+			return 0;
+		}
+		VocabularyMeaning type = node.getType();
+		int escape = climbOf(type);
+		for (int i = 0; i < type.getSlotCount(); i++) {
+			MeaningField field = type.getSlotField(i);
+			MRNode child = node.getChild(field);
+			if (child == null) {
+				continue;
+			}
+			int childEscape = intern(child);
+			if ((childEscape == 0) && (returnedFromFields.contains(field) == false)) {
+				MRNode shared = canonical(child);
+				if (shared != child) {
+					node.replaceChild(field, shared);
+				}
+			}
+			escape = Math.max(escape, childEscape - 1);
+		}
+		return escape;
+	}
+
+	/**
+	 * Returns the node in the table of the same structure as the given one, in the same field,
+	 * putting the given node there if there is none.
+	*/
+	private MRNode canonical(MRNode node) {
+		if ((size + 1) * 2 > table.length) {
+			grow();
+		}
+		int slot = slotFor(node, table);
+		if (table[slot] == null) {
+			table[slot] = node;
+			size++;
+			return node;
+		}
+		return table[slot];
+	}
+
+	/**
+	 * Returns the hash of a node in the table: that of its structure and of the field it is in.
+	*/
+	private static int hash(MRNode node) {
+		MeaningField field = node.getParentField();
+		return node.structuralHash() * 31 + ((field == null) ? 0 : System.identityHashCode(field));
+	}
+
+	/**
+	 * Finds the slot of the node of the same structure as the given one, in the same field, or
+	 * the empty slot where it would go.
+	*/
+	private static int slotFor(MRNode node, MRNode table[]) {
+		int hash = hash(node) * 0x9E3779B9;
+		int mask = table.length - 1;
+		int slot = (hash >>> 8) & mask;
+		while ((table[slot] != null) && ((table[slot].getParentField() != node.getParentField()) || (table[slot].sameStructure(node) == false))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the size of the table, moving all nodes over.
+	*/
+	private void grow() {
+		MRNode oldTable[] = table;
+		table = new MRNode[oldTable.length * 2];
+		for (int i = 0; i < oldTable.length; i++) {
+			if (oldTable[i] != null) {
+				table[slotFor(oldTable[i], table)] = oldTable[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of nodes in the table.
+	*/
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the table. MRs interned before are not affected, but are no longer shared with
+	 * the ones interned after.
+	*/
+	public synchronized void clear() {
+		table = new MRNode[INITIAL_TABLE_SIZE];
+		size = 0;
+	}
+}
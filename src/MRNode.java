@@ -1,6 +1,4 @@
-import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.HashSet;
 import java.io.PrintStream;
 
@@ -14,9 +12,26 @@ import java.io.PrintStream;
 public class MRNode {
 	
 	private VocabularyMeaning myType;
-	private HashMap fields;
 	private MRNode parent;
 	
+	/*
+	The field of the parent this node is in, set when it is put there. Null for the root, and
+	for nodes that have been taken out of their parent.
+	*/
+	private MeaningField parentField;
+	
+	/*
+	The children, by the positions of their fields in the type. Literals have no fields, and
+	their children is null.
+	*/
+	private MRNode children[];
+	
+	/*
+	The structural hash of this node and the nodes below it, or 0 if it has not been worked
+	out since they last changed.
+	*/
+	private int structuralHash;
+	
 	private static int iDcounter = 0; //for unique IDs.
 	public int iD;
 	
@@ -34,11 +49,10 @@ public class MRNode {
 	*/
 	public MRNode(VocabularyMeaning type, MRNode parent) {
 		myType = type;
-		fields = new HashMap();
+		children = new MRNode[type.getSlotCount()];
 		this.parent = parent;
 		
-		iD = iDcounter;
-		iDcounter++;
+		iD = nextID();
 	}
 	
 	/**
@@ -52,10 +66,8 @@ public class MRNode {
 		isStringLiteral = true;
 		this.stringLiteral = stringLiteral.substring(1, stringLiteral.length() - 1);
 		this.parent = parent;
-		fields = new HashMap();
 		
-		iD = iDcounter;
-		iDcounter++;
+		iD = nextID();
 	}
 	
 	/**
@@ -68,10 +80,16 @@ public class MRNode {
 		isIntLiteral = true;
 		this.intLiteral = intLiteral;
 		this.parent = parent;
-		fields = new HashMap();
 		
-		iD = iDcounter;
+		iD = nextID();
+	}
+	
+	/**
+	 * Hands out the next unique ID. Nodes may be created by several threads at once.
+	*/
+	private static synchronized int nextID() {
 		iDcounter++;
+		return iDcounter - 1;
 	}
 	
 	/**
@@ -118,6 +136,7 @@ public class MRNode {
 		} else {
 			stringLiteral = value;
 		}
+		changed();
 	}
 	
 	/**
@@ -131,11 +150,10 @@ public class MRNode {
 	*/
 	public MRNode(String name, String language, MRNode parent, String errorLocation) {
 		myType = VocabularyServer.lookupMeaning(name, language, errorLocation);
-		fields = new HashMap();
+		children = new MRNode[myType.getSlotCount()];
 		this.parent = parent;
 		
-		iD = iDcounter;
-		iDcounter++;
+		iD = nextID();
 	}
 	
 	/**
@@ -165,12 +183,12 @@ public class MRNode {
 		//the special cases of it being an int or a string
 		if (childField.isString()) {
 			MRNode child = new MRNode(type, this);
-			fields.put(childField, child);
+			putChild(childField, child, label, errorLocation);
 			return child;
 		}
 		if (childField.isInt()) {
 			MRNode child = new MRNode(Integer.parseInt(type), this);
-			fields.put(childField, child);
+			putChild(childField, child, label, errorLocation);
 			return child;
 		}
 		
@@ -188,10 +206,46 @@ public class MRNode {
 			throw new TypingException(errorLocation + "'" + childType.getName("en") + "' is not the same type or a subtype of '" + childField.getType().getName("en") + "' and can hence not be put into the field '" + label + "'.");
 		}
 		
-		fields.put(childField, child);
+		putChild(childField, child, label, errorLocation);
 		return child;
 	}
 	
+	/**
+	 * Puts a child into the given field of this node.
+	*/
+	private void putChild(MeaningField field, MRNode child, String label, String errorLocation) {
+		if (hasSlot(field) == false) {
+			throw new VocabularyServerException(errorLocation + "The field labelled '" + label + "' has no place in this node, as its type's supertypes loop.");
+		}
+		children[field.getSlot()] = child;
+		child.parentField = field;
+		changed();
+	}
+	
+	/**
+	 * Replaces the child in the given field by a node of the same structure from another MR,
+	 * which is shared by both from then on. The node keeps its own parent. See MRInterner.
+	 *
+	 * @param field the field, which must hold a child
+	 * @param child the node to put there instead
+	*/
+	public void replaceChild(MeaningField field, MRNode child) {
+		if (hasSlot(field) && (children[field.getSlot()] != null)) {
+			children[field.getSlot()] = child;
+		}
+	}
+	
+	/**
+	 * Returns whether the given field is one of the fields of this node's type.
+	*/
+	private boolean hasSlot(MeaningField field) {
+		if ((children == null) || (field == null)) {
+			return false;
+		}
+		int slot = field.getSlot();
+		return (slot > -1) && (slot < children.length) && (myType.getSlotField(slot) == field);
+	}
+	
 	/**
 	 * Returns a the contents of a field. If it cannot be found, returns null.
 	 * It will not throw an error if the field referred to does not exist in
@@ -204,12 +258,14 @@ public class MRNode {
 	public MRNode getChild(String label, String language) {
 		/*
 		The way this works is that it requests the given field from its type,
-		then it uses that field as an index into its fields hashmap to retreive
-		the child looked for.
+		then it uses that field's position to retreive the child looked for.
 		For purposes of error reporting, we assume that the type would complain
 		if we were asking for a nonexistent field.
 		*/
-		return (MRNode) fields.get(myType.getFieldNullOnFail(label, language));
+		if (children == null) {
+			return null;
+		}
+		return getChild(myType.getFieldNullOnFail(label, language));
 	}
 	
 	/**
@@ -219,7 +275,10 @@ public class MRNode {
 	 * @return the MRNode of the child
 	*/
 	public MRNode getChild(MeaningField field) {
-		return (MRNode) fields.get(field);
+		if (hasSlot(field) == false) {
+			return null;
+		}
+		return children[field.getSlot()];
 	}
 	
 	/**
@@ -228,20 +287,27 @@ public class MRNode {
 	 * @return a hashset of all used fields
 	*/
 	public HashSet getUsedFields() {
-		return new HashSet(fields.keySet());
+		HashSet used = new HashSet();
+		for (int i = 0; (children != null) && (i < children.length); i++) {
+			if (children[i] != null) {
+				used.add(myType.getSlotField(i));
+			}
+		}
+		return used;
 	}
 	
 	/**
 	 * Gives the width of this bit of the meaning-representation tree.
 	*/
 	public int treeWidth(MRNode selected, String language) {
-		if (fields.size() == 0) {
-			return 1;
-		}
-		Iterator childIter = fields.values().iterator();
 		int count = 0;
-		while (childIter.hasNext()) {
-			count += ((MRNode) childIter.next()).treeWidth(selected, language);
+		for (int i = 0; (children != null) && (i < children.length); i++) {
+			if (children[i] != null) {
+				count += children[i].treeWidth(selected, language);
+			}
+		}
+		if (count == 0) {
+			return 1;
 		}
 		if (this == selected) {
 			count++;
@@ -258,22 +324,17 @@ public class MRNode {
 	 * Returns the parent's field in which this node is in. May be null if at root.
 	*/
 	public MeaningField getParentField() {
-		if (parent == null) {
-			return null;
-		}
-		return parent.getContainingField(this);
+		return parentField;
 	}
 	
 	/**
 	 * Returns the field (if any) which the passed node is in. May be null.
 	*/
 	public MeaningField getContainingField(MRNode n) {
-		//This is slow because we need to look up a hashmap the wrong way around.
-		Iterator fieldIter = fields.keySet().iterator();
-		while (fieldIter.hasNext()) {
-			MeaningField f = (MeaningField) fieldIter.next();
-			if (fields.get(f) == n) {
-				return f;
+		//This is slow because we need to look through all the children.
+		for (int i = 0; (children != null) && (i < children.length); i++) {
+			if (children[i] == n) {
+				return myType.getSlotField(i);
 			}
 		}
 		return null;
@@ -283,9 +344,81 @@ public class MRNode {
 	 * Deletes a child.
 	*/
 	public void deleteChild(MeaningField field) {
-		fields.remove(field);
+		if (hasSlot(field) && (children[field.getSlot()] != null)) {
+			children[field.getSlot()].parentField = null;
+			children[field.getSlot()] = null;
+			changed();
+		}
+	}
+
+	
+	/**
+	 * Returns a hash of the structure of this node and the nodes below it: the type or literal
+	 * value, and the children in each field. Nodes with the same structure have the same hash.
+	 * It is worked out once, and again only after the structure has changed.
+	*/
+	public int structuralHash() {
+		if (structuralHash == 0) {
+			int hash;
+			if (isStringLiteral) {
+				hash = stringLiteral.hashCode();
+			} else if (isIntLiteral) {
+				hash = 31 * intLiteral + 7;
+			} else {
+				hash = myType.hashCode();
+				for (int i = 0; i < children.length; i++) {
+					hash = 31 * hash + ((children[i] == null) ? 0 : children[i].structuralHash());
+				}
+			}
+			structuralHash = (hash == 0) ? 1 : hash;
+		}
+		return structuralHash;
+	}
+
+	/**
+	 * Returns true if the given node has the same structure as this one: the same type or
+	 * literal value, and children of the same structure in the same fields.
+	 *
+	 * @param other the node to compare with
+	*/
+	public boolean sameStructure(MRNode other) {
+		if (other == this) {
+			return true;
+		}
+		if ((isStringLiteral != other.isStringLiteral) || (isIntLiteral != other.isIntLiteral)) {
+			return false;
+		}
+		if (isStringLiteral) {
+			return stringLiteral.equals(other.stringLiteral);
+		}
+		if (isIntLiteral) {
+			return intLiteral == other.intLiteral;
+		}
+		if ((myType != other.myType) || (structuralHash() != other.structuralHash())) {
+			return false;
+		}
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] == null) {
+				if (other.children[i] != null) {
+					return false;
+				}
+			} else if ((other.children[i] == null) || (children[i].sameStructure(other.children[i]) == false)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
+	/**
+	 * Forgets the structural hashes of this node and the nodes above it, after it has changed.
+	*/
+	private void changed() {
+		MRNode n = this;
+		while ((n != null) && (n.structuralHash != 0)) {
+			n.structuralHash = 0;
+			n = n.parent;
+		}
+	}
 	
 	/**
 	 * Returns the parent.
@@ -308,10 +441,12 @@ public class MRNode {
 	 * @param language the language to print in
 	*/
 	public void writeFieldsToStream(PrintStream stream, String language, String tabs) {
-		Iterator fieldIter = fields.keySet().iterator();
-		while (fieldIter.hasNext()) {
-			MeaningField field = (MeaningField) fieldIter.next();
-			MRNode child = (MRNode) fields.get(field);
+		for (int i = 0; (children != null) && (i < children.length); i++) {
+			if (children[i] == null) {
+				continue;
+			}
+			MeaningField field = myType.getSlotField(i);
+			MRNode child = children[i];
 			if (child.isLiteral()) {
 				if (child.isIntLiteral()) {
 					stream.println(tabs + field.getName(language) + " " + child.literalValue());
@@ -350,11 +485,10 @@ public class MRNode {
 			}
 		}
 		
-		Iterator fieldIter = fields.keySet().iterator();
-		while (fieldIter.hasNext()) {
-			MeaningField field = (MeaningField) fieldIter.next();
-			MRNode child = (MRNode) fields.get(field);
-			result = result + child.graphNodes(iD, field.getName(language), language);
+		for (int i = 0; (children != null) && (i < children.length); i++) {
+			if (children[i] != null) {
+				result = result + children[i].graphNodes(iD, myType.getSlotField(i).getName(language), language);
+			}
 		}
 		return result;
 	}
@@ -0,0 +1,43 @@
+/**
+ * Is thrown when a production string cannot be compiled,
+ * for example because a { or < is never closed.
+*/
+
+public class MalformedProductionStringException extends RuntimeException {
+
+	private String message;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param production the offending production string
+	 * @param problem what is wrong with it
+	 * @param location the file and line the production string is in
+	*/
+	public MalformedProductionStringException(String production, String problem, String location) {
+		message = location + "The production string \"" + production + "\" is malformed: " + problem;
+	}
+
+	/**
+	 * Constructor for a message that has already been put together.
+	 *
+	 * @param message the message
+	*/
+	public MalformedProductionStringException(String message) {
+		this.message = message;
+	}
+	
+	/**
+	 * Returns the message in this exception.
+	*/
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the message in this exception.
+	*/
+	public String toString() {
+		return message;
+	}
+}
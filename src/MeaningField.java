@@ -1,4 +1,6 @@
 import java.util.HashMap;
+import java.util.Iterator;
+import java.io.File;
 
 /**
  * This class represents a field in a given VocabularyMeaning / type.
@@ -19,15 +21,38 @@ public class MeaningField {
 	*/
 	private int fieldDefinitionStartLine;
 	
+	/*
+	The position of this field in the nodes of the type it belongs to and of its subtypes,
+	as assigned by VocabularyMeaning.assignSlots(). -1 until then.
+	*/
+	private int slot = -1;
+	
+	/**
+	 * Sets the position of this field in the nodes that have it.
+	 *
+	 * @param slot the position
+	*/
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
+	
+	/**
+	 * Returns the position of this field in the nodes that have it, or -1 if it has none.
+	*/
+	public int getSlot() {
+		return slot;
+	}
+	
 	/**
 	 * Sets the type of this meaning. Throws an error if it
 	 * is given contradictory information.
 	 *
 	 * @param meaningName the name of the type of this field
 	 * @param nameLanguage the language that name is in
+	 * @param vocabulary the vocabulary to look the type up in
 	 * @throws VocabularyFileException
 	*/
-	public void setType(String meaningName, String nameLanguage, int lineNumber) {
+	public void setType(String meaningName, String nameLanguage, int lineNumber, Vocabulary vocabulary) {
 		VocabularyMeaning newType = null;
 	
 		if (meaningName.equals("*STRING")) {
@@ -40,7 +65,7 @@ public class MeaningField {
 					newType = IS_ANY;
 				} else {
 					String errorLine = Integer.toString(lineNumber);
-					newType = VocabularyServer.lookupMeaning(meaningName, nameLanguage, "Vocabulary file, after line " + errorLine + ":\n");
+					newType = vocabulary.lookupMeaning(meaningName, nameLanguage, "Vocabulary file, after line " + errorLine + ":\n");
 				}
 			}
 		}
@@ -87,13 +112,13 @@ public class MeaningField {
 	}
 	
 	/**
-	 * Sets the information string in the given language.
+	 * Sets the information string in the language it is in.
 	*/
-	public void setInfoString(String info, String language) {
+	public void setInfoString(InfoString info) {
 		if (languageToInfoMap == null) {
 			languageToInfoMap = new HashMap();
 		}
-		languageToInfoMap.put(language, info);
+		languageToInfoMap.put(info.getLanguage(), info);
 	}
 	
 	/**
@@ -106,7 +131,47 @@ public class MeaningField {
 		if (languageToInfoMap.get(language) == null) {
 			return "";
 		}
-		return (String) languageToInfoMap.get(language);
+		return ((InfoString) languageToInfoMap.get(language)).getText();
+	}
+	
+	/**
+	 * Writes the type, names, info strings and slot of this field to a snapshot.
+	 * Its type must have been registered with the snapshot already.
+	 *
+	 * @param out the snapshot
+	*/
+	public void writeSnapshot(SnapshotOutput out) {
+		out.writeReference(type);
+		out.writeStringMap(languageToNameMap);
+		out.writeInt(fieldDefinitionStartLine);
+		out.writeInt(slot);
+		if (languageToInfoMap == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(languageToInfoMap.size());
+			Iterator infoIter = languageToInfoMap.values().iterator();
+			while (infoIter.hasNext()) {
+				((InfoString) infoIter.next()).writeSnapshot(out);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the type, names, info strings and slot of this field back in from a snapshot,
+	 * as written by writeSnapshot().
+	 *
+	 * @param in the snapshot
+	 * @param vocabularyFile the vocabulary file the snapshot was made from
+	*/
+	public void readSnapshot(SnapshotInput in, File vocabularyFile) {
+		type = (VocabularyMeaning) in.readReference();
+		languageToNameMap = in.readStringMap();
+		fieldDefinitionStartLine = in.readInt();
+		slot = in.readInt();
+		int infoCount = in.readInt();
+		for (int i = 0; i < infoCount; i++) {
+			setInfoString(new InfoString(in, vocabularyFile));
+		}
 	}
 	
 	public boolean isString() {
@@ -1,5 +1,4 @@
 import java.io.File;
-import java.io.FileReader;
 import java.io.BufferedReader;
 import java.util.Stack;
 import java.io.InputStreamReader;
@@ -38,16 +37,12 @@ public class MeaningRepresentation {
 		//find the data file
 		File mrFile = new File(path);
 				
-		//attach a reader to it
-		PeekingLineReader r = null;
+		//attach a tokenizer to it
+		LineTokenizer r = null;
 		try {
-			r = new PeekingLineReader(
-				new BufferedReader(
-					new FileReader(mrFile)
-				)
-			, false, false); //we *want* tabs, we *need* them!
+			r = new LineTokenizer(mrFile, false); //we *want* tabs, we *need* them!
 			
-			defineFromPeekingReader(r, path);
+			defineFromTokenizer(r, path);
 		}
 		catch (java.io.FileNotFoundException e) {
 			throw new MeaningRepresentationFileNotFoundException();
@@ -60,13 +55,24 @@ public class MeaningRepresentation {
 	 * @throws MeaningRepresentationFileNotFoundException
 	*/
 	public MeaningRepresentation() {
-		PeekingLineReader r = new PeekingLineReader(
+		LineTokenizer r = new LineTokenizer(
 				new BufferedReader(
 					new InputStreamReader(System.in)
 				)
 			, false, true); //we *want* tabs, we *need* them!
 			
-			defineFromPeekingReader(r, "stdin");
+			defineFromTokenizer(r, "stdin");
+	}
+	
+	/**
+	 * Another constructor, which reads the MR from the given tokenizer, which must not
+	 * discard tabs.
+	 *
+	 * @param r the tokenizer to read the MR from
+	 * @param inputName the name of where the MR comes from, for error messages
+	*/
+	public MeaningRepresentation(LineTokenizer r, String inputName) {
+		defineFromTokenizer(r, inputName);
 	}
 	
 	/**
@@ -78,11 +84,11 @@ public class MeaningRepresentation {
 	
 	/**
 	 * A private method for actually reading in the MR from a
-	 * PeekingLineReader either connected to stdin or a file.
+	 * LineTokenizer either connected to stdin or a file.
 	 *
-	 * @param r the reader to read the MR from
+	 * @param r the tokenizer to read the MR from
 	*/
-	private void defineFromPeekingReader(PeekingLineReader r, String inputFileName) {
+	private void defineFromTokenizer(LineTokenizer r, String inputFileName) {
 		/*
 		This method loops through all the lines in an input file
 		and defines a tree structure from it. It does this by
@@ -97,17 +103,19 @@ public class MeaningRepresentation {
 		/*
 		First, determine in which language the MR is in.
 		*/
-		String language = r.readLine();
+		String language = r.getLine();
 		if (VocabularyServer.languageAvailable(language) == false) {
 			throw new LanguageNotImplementedException(language);
 		}
+		r.next();
 		
 		String errorLocation = "Input file " + inputFileName + ", line " + Integer.toString(r.getLineNumber()) + ":\n";
 				
 		/*
 		Next, create the roon node from the first line, and initialise the stack with it at the top.
 		*/
-		rootNode = new MRNode(r.readLine(), language, null, errorLocation);
+		rootNode = new MRNode(r.getLine(), language, null, errorLocation);
+		r.next();
 		Stack s = new Stack();
 		s.push(rootNode);
 		
@@ -122,25 +130,20 @@ public class MeaningRepresentation {
 				Target fish
 		Then by virtue of "Target fish" only having 2 tabs, we pop off "several" and "dog", and attach "fish" to "eat".
 		*/
-		while (r.peek() != null) {
-			String line = r.readLine();
-			int tabCount = 0;
-			while (line.startsWith("\t")) {
-				tabCount++;
-				line = line.substring(1);
-			}
+		while (r.hasLine()) {
+			int tabCount = r.getIndent();
 			
 			while (s.size() > tabCount) {
 				s.pop();
 			}
 			
 			/*
-			Having figured out which node to attach the new line to, we split it, create it as a child of the current
-			top stack node, and push it into the stack.
+			Having figured out which node to attach the new line to, we create it from the line's keyword and
+			rest as a child of the current top stack node, and push it into the stack.
 			*/
-			String lineParts[] = StringFunctions.splitLineAlongSpace(line);
 			errorLocation = "Input file " + inputFileName + ", line " + Integer.toString(r.getLineNumber()) + ":\n";
-			s.push(((MRNode) s.peek()).addChild(lineParts[0], lineParts[1], language, errorLocation));
+			s.push(((MRNode) s.peek()).addChild(r.getKeyword(), r.getRest(), language, errorLocation));
+			r.next();
 		}
 	}
 	
@@ -172,11 +175,94 @@ public class MeaningRepresentation {
 	 * Does the generation.
 	 *
 	 * @param language the language to generate this MR in
+	 * @return the generated text
 	*/
 	public String generate(String language) {
-		LanguageRuleServer lr = LanguageServer.getLanguageRuleServer(language);
+		StringBuilder out = new StringBuilder();
+		generate(language, out);
+		return out.toString();
+	}
+	
+	/**
+	 * Does the generation, appending the generated text to the given buffer.
+	 * If generation fails, the buffer is left as it was.
+	 *
+	 * @param language the language to generate this MR in
+	 * @param out the buffer to append to
+	*/
+	public void generate(String language, StringBuilder out) {
+		generate(language, new GenerationContext(), out);
+	}
+	
+	/**
+	 * Does the generation as part of the given generation request, appending the generated
+	 * text to the given buffer. If generation fails, the buffer is left as it was.
+	 *
+	 * @param language the language to generate this MR in
+	 * @param context the generation request, which must not be shared with other MRs
+	 * @param out the buffer to append to
+	*/
+	public void generate(String language, GenerationContext context, StringBuilder out) {
+		/*
+		If the rules of the language have been compiled, use them, unless a debug trace is
+		wanted, which only the interpreted rules can give.
+		*/
+		CompiledGrammar grammar = null;
+		if (context.getTracer() == null) {
+			grammar = context.getEngine().getCompiledGrammar(language);
+		}
+		int start = out.length();
+		if (grammar != null) {
+			try {
+				grammar.produce(rootNode, context, out);
+			}
+			catch (RuntimeException e) {
+				out.setLength(start);
+				throw e;
+			}
+			return;
+		}
+		
+		LanguageRuleServer lr = context.getEngine().getLanguageRuleServer(language);
 		MeaningRuleSet rootRules = lr.getRule(rootNode.getType(), "Input File, Initial Generation Request:\n");
-		return rootRules.produce("*", rootNode);
+		try {
+			rootRules.produce("*", rootNode, context, out);
+		}
+		catch (RuntimeException e) {
+			out.setLength(start);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Does the generation, writing the generated text to the given output.
+	 * Nothing is written if generation fails.
+	 *
+	 * @param language the language to generate this MR in
+	 * @param out the output to write to
+	 * @throws IOException if writing to the output fails
+	*/
+	public void generate(String language, Appendable out) throws IOException {
+		generate(language, new GenerationContext(), out);
+	}
+	
+	/**
+	 * Does the generation as part of the given generation request, writing the generated
+	 * text to the given output. Nothing is written if generation fails.
+	 *
+	 * @param language the language to generate this MR in
+	 * @param context the generation request, which must not be shared with other MRs
+	 * @param out the output to write to
+	 * @throws IOException if writing to the output fails
+	*/
+	public void generate(String language, GenerationContext context, Appendable out) throws IOException {
+		if (out instanceof StringBuilder) {
+			generate(language, context, (StringBuilder) out);
+		} else {
+			StringBuilder buffer = new StringBuilder();
+			generate(language, context, buffer);
+			out.append(buffer);
+		}
 	}
 	
 	/**
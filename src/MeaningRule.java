@@ -1,4 +1,7 @@
 import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Describes a specific production rule. Provides the ability to check whether the rule is applicable
@@ -21,7 +24,13 @@ public String name;
 */
 public String production;
 
-/** 
+/**
+ * The production string compiled into a sequence of segments when the rule is loaded.
+ * Invoking the rule walks over this array rather than re-parsing the production string.
+*/
+private ProductionSegment segments[];
+
+/**
  * The head of a LogicNode tree that specifies the conditions under which this rule should be invoked.
 */
 private TreeHead condition;
@@ -84,7 +93,9 @@ public MeaningRule(String def, String language, LanguageRuleServer languageRuleS
 	catch (StringIndexOutOfBoundsException e) {
 		throw new ConditionLogicParserException(myLineAndFile + e.toString() + "\nLine was: " + def);
 	}
-	
+
+	segments = compileProduction(production);
+
 	
 	/*
 	Now comes the hard part: parsing the condition string.
@@ -296,6 +307,113 @@ public MeaningRule(String def, String language, LanguageRuleServer languageRuleS
 	} //end check for *
 } //end method
 
+/**
+ * Reads in a rule from a snapshot, as written by writeSnapshot(), instead of from a definition string.
+ *
+ * @param in the snapshot
+ * @param languageRuleServer the rule server for this rule's language
+*/
+public MeaningRule(SnapshotInput in, LanguageRuleServer languageRuleServer) {
+	in.register(this);
+	myLanguageRuleServer = languageRuleServer;
+	myLanguage = languageRuleServer.languageName;
+	name = in.readString();
+	production = in.readString();
+	myLineAndFile = in.readString();
+	condition = (TreeHead) readLogicNode(in);
+	segments = new ProductionSegment[in.readInt()];
+	for (int i = 0; i < segments.length; i++) {
+		segments[i] = readSegment(in);
+	}
+}
+
+/**
+ * Writes this rule to a snapshot: its name, production string, condition and segments.
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.register(this);
+	out.writeString(name);
+	out.writeString(production);
+	out.writeString(myLineAndFile);
+	out.writeLogicNode(condition);
+	out.writeInt(segments.length);
+	for (int i = 0; i < segments.length; i++) {
+		ProductionSegment segment = segments[i];
+		out.writeInt(segment.kind);
+		out.writeString(segment.text);
+		out.writeBoolean(segment.capitalise);
+		if (segment.kind == ProductionSegment.NODE_REFERENCE) {
+			out.writeLogicNode(segment.path);
+		}
+		if (segment.kind == ProductionSegment.ERROR) {
+			out.writeBoolean(segment.error instanceof ConditionLogicParserException);
+			out.writeString(segment.error.getMessage());
+		}
+	}
+}
+
+/**
+ * Reads a LogicNode tree of this rule back in from a snapshot, as written by LogicNode.writeSnapshot().
+ *
+ * @param in the snapshot
+ * @return the node at the top of the tree, or null if there is none
+*/
+private LogicNode readLogicNode(SnapshotInput in) {
+	int kind = in.readInt();
+	LogicNode node;
+	switch (kind) {
+		case LogicNode.SNAPSHOT_NONE: return null;
+		case LogicNode.SNAPSHOT_PATTERN: return new TreePattern(in, myLanguageRuleServer);
+		case LogicNode.SNAPSHOT_HEAD: node = new TreeHead(); break;
+		case LogicNode.SNAPSHOT_NOT: node = new TreeNot(); break;
+		case LogicNode.SNAPSHOT_AND: node = new TreeAnd(readLogicNode(in)); break;
+		case LogicNode.SNAPSHOT_OR: node = new TreeOr(readLogicNode(in)); break;
+		default: throw new IllegalStateException("The snapshot has an unknown kind of condition: " + kind);
+	}
+	node.fill(readLogicNode(in));
+	return node;
+}
+
+/**
+ * Reads a segment of the production string of this rule back in from a snapshot.
+ *
+ * @param in the snapshot
+ * @return the segment
+*/
+private ProductionSegment readSegment(SnapshotInput in) {
+	int kind = in.readInt();
+	String text = in.readString();
+	boolean capitalise = in.readBoolean();
+	switch (kind) {
+		case ProductionSegment.LITERAL: return ProductionSegment.literal(text);
+		case ProductionSegment.LOCAL_RULE: return ProductionSegment.localRule(text, capitalise);
+		case ProductionSegment.NODE_REFERENCE: return ProductionSegment.nodeReference((TreePattern) readLogicNode(in), text, capitalise);
+		case ProductionSegment.ERROR:
+			if (in.readBoolean()) {
+				return ProductionSegment.error(new ConditionLogicParserException(in.readString()));
+			}
+			return ProductionSegment.error(new MalformedProductionStringException(in.readString()));
+		default: throw new IllegalStateException("The snapshot has an unknown kind of production segment: " + kind);
+	}
+}
+
+/**
+ * Links the paths in the condition and production string of this rule.
+ * This must be called after the vocabulary has been linked.
+*/
+public void link() {
+	if (condition != null) {
+		condition.link();
+	}
+	for (int i = 0; i < segments.length; i++) {
+		if (segments[i].path != null) {
+			segments[i].path.link();
+		}
+	}
+}
+
 /**
  * Pretty-print the condition of this generation rule.
  *
@@ -309,6 +427,53 @@ public String displayCondition() {
 	}
 }
 
+/**
+ * Compiles the condition of this rule into a Java expression. See GrammarCompiler.
+ *
+ * @param compiler the compiler the expression is for
+ * @return the expression, or null if the rule has no condition
+*/
+public String compileCondition(GrammarCompiler compiler) {
+	if (condition == null) {
+		return null;
+	}
+	return condition.compile(compiler);
+}
+
+/**
+ * Returns the segments the production string has been compiled into.
+ * The array must not be modified.
+*/
+public ProductionSegment[] getSegments() {
+	return segments;
+}
+
+/**
+ * Returns all the patterns this rule follows from the node it is invoked on: those in its
+ * condition, and the paths to the nodes its production string refers to.
+ *
+ * @return a list of TreePatterns
+*/
+public List getPatterns() {
+	ArrayList patterns = new ArrayList();
+	if (condition != null) {
+		condition.collectPatterns(patterns);
+	}
+	for (int i = 0; i < segments.length; i++) {
+		if (segments[i].path != null) {
+			patterns.add(segments[i].path);
+		}
+	}
+	return patterns;
+}
+
+/**
+ * Returns the line and file this rule is in.
+*/
+public String getLineAndFile() {
+	return myLineAndFile;
+}
+
 /**
  * Tests whether this rule applies, given a name, and the MRNode this rule is used for.
  *
@@ -320,156 +485,206 @@ public String displayCondition() {
  * @return whether the rule applies
 */
 public boolean applies(String match, MRNode node) {
-	return (name.equals(match) && ((condition == null) || condition.evaluate(node)));
+	return (name.equals(match) && conditionHolds(node, null));
 }
 
 /**
- * Capitalises the first letter of the given string.
+ * Tests whether the condition of this rule evaluates to true for the given MRNode,
+ * without checking the name.
  *
- * @param s the string
- * @return a capitalised version
+ * @param node the MRNode to use in evaluation of the rule
+ * @param context the generation request this is part of. May be null.
+ * @return whether the condition holds
 */
-private String capitalise(String s) {
-	return s.substring(0, 1).toUpperCase() + s.substring(1);
+public boolean conditionHolds(MRNode node, GenerationContext context) {
+	return ((condition == null) || condition.evaluate(node, context));
 }
 
 /**
- * Invokes the rule. The rule may in turn invoke other rules, and will return a text string of natural language.
+ * Evaluates the condition of this rule as far as possible, given the results of some of its paths.
  *
- * @param node the MRNode to invoke this rule for
- * @param originatingRuleSet the ruleset this invokation originated in. This is needed for invoking other rules for the same meaning.
- * @return a natural language string
+ * @param knownResults maps the pattern strings of the paths whose results are known to Boolean results
+ * @return Boolean.TRUE or Boolean.FALSE if the result is known, otherwise the TreePattern that has to be followed next
 */
-public String produce(MRNode node, MeaningRuleSet originatingRuleSet) {
+public Object evaluateConditionKnown(HashMap knownResults) {
+	if (condition == null) {
+		return Boolean.TRUE;
+	}
+	return condition.evaluateKnown(knownResults);
+}
+
+/**
+ * Capitalises the first letter written to the buffer after the given position.
+ * If nothing has been written since, this fails with a StringIndexOutOfBoundsException,
+ * just as capitalising an empty result always has, so that the rule fails.
+ *
+ * @param out the buffer
+ * @param start the position of the letter to capitalise
+*/
+private void capitalise(StringBuilder out, int start) {
+	out.replace(start, start + 1, out.substring(start, start + 1).toUpperCase());
+}
+
+/**
+ * Compiles a production string into an array of segments. This is done once, when the rule
+ * is loaded, so that produce() does not have to parse the string each time the rule fires.
+ *
+ * There are two special commands in generation strings:
+ * {localrule}
+ * and
+ * <path:rulename>
+ *
+ * Either may start with a + to capitalise its result. Everything else is literal text.
+ *
+ * @param production the production string
+ * @return the compiled segments
+*/
+private ProductionSegment[] compileProduction(String production) {
 	/*
-	Here we need to deal with the generation string. There are two special commands in generation strings:
-	{localrule}
-	and
-	<path:rulename>
-	
-	So we need to scan the string for
-	{
-	and
-	<
+	We scan the string for whichever of { and < comes next, emit the text in-between as a literal,
+	and then compile the bracket's contents.
+	*/
+	ArrayList result = new ArrayList();
+	int endOfLastBracket = 0;
+	while (true) {
+		int nextCurlyBracket = production.indexOf("{", endOfLastBracket);
+		int nextAngleBracket = production.indexOf("<", endOfLastBracket);
+		if ((nextCurlyBracket < 0) && (nextAngleBracket < 0)) {
+			break;
+		}
+		boolean curly = (nextCurlyBracket > -1) && ((nextCurlyBracket < nextAngleBracket) || (nextAngleBracket < 0));
+		int openingBracket = curly ? nextCurlyBracket : nextAngleBracket;
+		int closingBracket = production.indexOf(curly ? "}" : ">", openingBracket);
+		
+		if (openingBracket > endOfLastBracket) { //check if there is anything before the bracket
+			result.add(ProductionSegment.literal(production.substring(endOfLastBracket, openingBracket)));
+		}
+		
+		/*
+		An unclosed bracket means nothing after it can be compiled.
+		*/
+		if (closingBracket < 0) {
+			result.add(ProductionSegment.error(new MalformedProductionStringException(production, "the " + (curly ? "{" : "<") + " at position " + openingBracket + " is never closed.", myLineAndFile)));
+			endOfLastBracket = production.length();
+			break;
+		}
+		
+		/*
+		isolate the contents of the bracket, and chop off the + symbol if capitalisation is wanted
+		*/
+		String bracketContents = production.substring(openingBracket + 1, closingBracket);
+		if (bracketContents.length() == 0) {
+			result.add(ProductionSegment.error(new MalformedProductionStringException(production, "the brackets at position " + openingBracket + " are empty.", myLineAndFile)));
+			endOfLastBracket = closingBracket + 1;
+			continue;
+		}
+		boolean capitalise = bracketContents.startsWith("+");
+		if (capitalise) {
+			bracketContents = bracketContents.substring(1);
+		}
+		
+		if (curly) {
+			result.add(ProductionSegment.localRule(bracketContents, capitalise));
+		} else {
+			/*
+			An angle bracket is composed of a path to a node whose ruleset gets invoked, and optionally
+			a rule name after a colon.
+			*/
+			String path = bracketContents;
+			String ruleName = "*";
+			int colonIndex = bracketContents.indexOf(":");
+			if (colonIndex > -1) {
+				path = bracketContents.substring(0, colonIndex);
+				ruleName = bracketContents.substring(colonIndex + 1);
+			}
+			try {
+				TreePattern pattern = new TreePattern(path, myLanguage, myLanguageRuleServer, myLineAndFile + "(in the generation string)\n");
+				result.add(ProductionSegment.nodeReference(pattern, ruleName, capitalise));
+			}
+			catch (ConditionLogicParserException e) {
+				result.add(ProductionSegment.error(e));
+			}
+		}
+		
+		endOfLastBracket = closingBracket + 1;
+	}
 	
-	In order to do this we keep three pointers up to date:
-	endOfLastBracket, nextCurlyBracket and nextAngleBracket
-	whichever of nextCurlyBracket/nextAngleBracket is closer we evaluate
-	but first we print the text in-between
+	/*
+	Finally, add the trailing text.
 	*/
+	if (endOfLastBracket < production.length()) {
+		result.add(ProductionSegment.literal(production.substring(endOfLastBracket)));
+	}
 	
+	return (ProductionSegment[]) result.toArray(new ProductionSegment[result.size()]);
+}
+
+/**
+ * Invokes the rule. The rule may in turn invoke other rules, and will append a text string of natural language
+ * to the given buffer.
+ *
+ * @param node the MRNode to invoke this rule for
+ * @param originatingRuleSet the ruleset this invokation originated in. This is needed for invoking other rules for the same meaning.
+ * @param context the generation request this is part of
+ * @param out the buffer the natural language text is appended to
+*/
+public void produce(MRNode node, MeaningRuleSet originatingRuleSet, GenerationContext context, StringBuilder out) {
 	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
-		System.out.println(DebugTracer.getIndent() + "RULE '" + name + "' with production string '" + production + "'.");
-		DebugTracer.incRL();
+	DebugTracer tracer = context.getTracer();
+	if (tracer != null) {
+		tracer.trace("RULE '" + name + "' with production string '" + production + "'.");
+		tracer.incRL();
 	}
 	
-	String result = "";
-	int endOfLastBracket = 0;
-	int nextCurlyBracket = production.indexOf("{");
-	int nextAngleBracket = production.indexOf("<");
-	while ((nextCurlyBracket > -1) || (nextAngleBracket > -1)) {
-		if ((nextCurlyBracket > -1) && ((nextCurlyBracket < nextAngleBracket) || (nextAngleBracket < 0))) {
+	/*
+	The production string has already been compiled into segments, so all we have to do
+	is walk over them, outputting literals and invoking the rules referred to. Invoked rules
+	append straight to the buffer, so if their output needs capitalising, we remember where
+	it starts.
+	*/
+	for (int i = 0; i < segments.length; i++) {
+		ProductionSegment segment = segments[i];
+		
+		if (segment.kind == ProductionSegment.LITERAL) {
+			out.append(segment.text);
+			continue;
+		}
+		if (segment.kind == ProductionSegment.ERROR) {
+			throw segment.error;
+		}
+		
+		int segmentStart = out.length();
+		if (segment.kind == ProductionSegment.LOCAL_RULE) {
 			/*
-			curly bracket time:
-			isolate the contents of the bracket
+			invoke originating rule set
 			*/
-			String bracketContents = production.substring(nextCurlyBracket + 1, production.indexOf("}", nextCurlyBracket));
-			
-			if (nextCurlyBracket > 0) { //check if there is anything before the bracket
-				result = result + production.substring(endOfLastBracket, nextCurlyBracket);
-			}
-			
+			originatingRuleSet.produce(segment.text, node, context, out);
+		} else {
 			/*
-			invoke originating rule set, with capitalisation if needed
+			find the node the path refers to, then invoke the ruleset of the MRNode,
+			or print the literal value of the node if it is a literal
 			*/
-			if (bracketContents.substring(0, 1).equals("+")) {
-				bracketContents = bracketContents.substring(1);
-				result = result + capitalise(result = result + originatingRuleSet.produce(bracketContents, node));
+			MRNode referredToNode = segment.path.follow(node, tracer);
+			if (referredToNode.isLiteral()) {
+				out.append(referredToNode.literalValue());
 			} else {
-				result = result + originatingRuleSet.produce(bracketContents, node);
-			}
-			
-			/*
-			update bracket pointers
-			*/
-			endOfLastBracket = production.indexOf("}", nextCurlyBracket) + 1;
-			nextCurlyBracket = production.indexOf("{", endOfLastBracket);
-		} else {
-			if (nextAngleBracket > -1) {
-				/*
-				angle bracket time.
-				
-				which is composed of a path to a node whose ruleset gets invoked, and optionally
-				a rule name after a colon
-				*/
-				String bracketContents = production.substring(nextAngleBracket + 1, production.indexOf(">", nextAngleBracket));
-				
-				//capitalisation: if yes, set capitalise, chop off + symbol
-				boolean capitalise = bracketContents.substring(0, 1).equals("+");
-				if (capitalise) {
-					bracketContents = bracketContents.substring(1);
-				}
-				
-				/*
-				now find out if there is a rule name
-				*/
-				String path = bracketContents;
-				String ruleName = "*";
-				int colonIndex = bracketContents.indexOf(":");
-				if (colonIndex > -1) {
-					path = bracketContents.substring(0, colonIndex);
-					ruleName = bracketContents.substring(colonIndex + 1);
-				}
-				
-				
-				if (nextAngleBracket > 0) { //check if there is anything before the angle bracket, and if yes insert it
-					result = result + production.substring(endOfLastBracket, nextAngleBracket);
-				}
-				
-				/*
-				now find the node the path refers to
-				*/
-				MRNode referredToNode = (new TreePattern(path, myLanguage, myLanguageRuleServer, myLineAndFile + "(in the generation string)\n")).follow(node);
-				
-				/*
-				now, invoke the ruleset of the MRNode, or print the literal value of the node if it is a literal
-				*/
-				String tempResult = "";
-				if (referredToNode.isLiteral()) {
-					tempResult = referredToNode.literalValue();
-				} else {
-					MeaningRuleSet nodeMRS = myLanguageRuleServer.getRule(referredToNode.getType(), myLineAndFile);
-					tempResult = nodeMRS.produce(ruleName, referredToNode);
-				}
-				
-				/*
-				capitalise the result if necessary
-				*/
-				if (capitalise) {
-					result = result + capitalise(tempResult);
-				} else {
-					result = result + tempResult;
-				}
-				
-				/*
-				update bracket pointers
-				*/
-				endOfLastBracket = production.indexOf(">", nextAngleBracket) + 1;
-				nextAngleBracket = production.indexOf("<", endOfLastBracket);
+				MeaningRuleSet nodeMRS = myLanguageRuleServer.getRule(referredToNode.getType(), myLineAndFile);
+				nodeMRS.produce(segment.text, referredToNode, context, out);
 			}
 		}
+		
+		/*
+		capitalise the result if necessary
+		*/
+		if (segment.capitalise) {
+			capitalise(out, segmentStart);
+		}
 	}
 	
 	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
-		DebugTracer.decRL();
+	if (tracer != null) {
+		tracer.decRL();
 	}
-	
-	/*
-	Finally, add the trailing text and return the string produced.
-	*/
-	return result + production.substring(endOfLastBracket);
 }
 
 }
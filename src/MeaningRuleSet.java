@@ -1,6 +1,10 @@
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.BitSet;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.Collections;
 
 /**
  * An ordered list of generation rules associated with a given VocabularyMeaning.
@@ -33,6 +37,16 @@ The set of tags associated with this MRS. Can be tested by the condition of a Me
 */
 private HashSet tags;
 
+/*
+The IDs of the name and tags of this MRS, as assigned by the LanguageRuleServer.
+*/
+private BitSet ownNamesAndTags;
+
+/*
+The IDs of the names and tags of this MRS and all its super-MRSs. Filled in by linkNamesAndTags().
+*/
+private BitSet namesAndTags;
+
 /*
 The super-MRS. This can be null if there is no super-MRS.
 */
@@ -54,6 +68,26 @@ An ordered list of the generation rules this MRS contains.
 */
 private ArrayList rules;
 
+/*
+The same rules, grouped by name. Maps each rule name to an ordered ArrayList of the rules
+with that name.
+*/
+private HashMap nameToRules;
+
+/*
+Maps each rule name to an array of all the rules that may be invoked for that name, in the
+order they are tried: first this MRS's rules of that name, then those of the super-MRS, and
+so on up the chain. Filled in by linkRules().
+*/
+private HashMap nameToEffectiveRules;
+
+/*
+Maps each rule name to a RuleDecisionTree compiled from its array in nameToEffectiveRules.
+Only filled in if the LanguageServer asks for decision trees, and only for those arrays that
+could be compiled.
+*/
+private HashMap nameToDecisionTree;
+
 /*
 The line and file where this MRS is defined.
 */
@@ -72,10 +106,124 @@ public MeaningRuleSet(String name, VocabularyMeaning myMeaning, LanguageRuleServ
 	this.myMeaning = myMeaning;
 	this.myLanguageRuleServer = myLanguageRuleServer;
 	tags = new HashSet();
+	ownNamesAndTags = new BitSet();
+	ownNamesAndTags.set(myLanguageRuleServer.symbolID(name));
 	rules = new ArrayList();
+	nameToRules = new HashMap();
 	this.myLineAndFile = myLineAndFile;
 }
 
+/**
+ * Reads in an MRS and its rules from a snapshot, as written by writeSnapshot().
+ * Its links to other objects are read in afterwards by readSnapshotLinks().
+ *
+ * @param in the snapshot
+ * @param myLanguageRuleServer the server this rule is in
+*/
+public MeaningRuleSet(SnapshotInput in, LanguageRuleServer myLanguageRuleServer) {
+	in.register(this);
+	this.myLanguageRuleServer = myLanguageRuleServer;
+	name = in.readString();
+	myLineAndFile = in.readString();
+	rules = new ArrayList();
+	nameToRules = new HashMap();
+	int count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		addRule(new MeaningRule(in, myLanguageRuleServer));
+	}
+}
+
+/**
+ * Writes this MRS and its rules to a snapshot. Its links to other objects are written
+ * by writeSnapshotLinks(), once all the MRSs of the language have been written.
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.register(this);
+	out.writeString(name);
+	out.writeString(myLineAndFile);
+	out.writeInt(rules.size());
+	Iterator iter = rules.iterator();
+	while (iter.hasNext()) {
+		((MeaningRule) iter.next()).writeSnapshot(out);
+	}
+}
+
+/**
+ * Writes the links of this MRS to a snapshot: its meaning, tags, super-MRS, and the rules
+ * and decision trees for each rule name. This must be called after linkNamesAndTags().
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshotLinks(SnapshotOutput out) {
+	out.writeReference(myMeaning);
+	out.writeInt(tags.size());
+	Iterator iter = tags.iterator();
+	while (iter.hasNext()) {
+		out.writeString((String) iter.next());
+	}
+	out.writeBitSet(ownNamesAndTags);
+	out.writeBitSet(namesAndTags);
+	out.writeReference(mySuper);
+	out.writeString(mySuperName);
+	
+	out.writeInt(nameToEffectiveRules.size());
+	iter = nameToEffectiveRules.keySet().iterator();
+	while (iter.hasNext()) {
+		String ruleName = (String) iter.next();
+		MeaningRule effective[] = (MeaningRule[]) nameToEffectiveRules.get(ruleName);
+		out.writeString(ruleName);
+		out.writeInt(effective.length);
+		for (int i = 0; i < effective.length; i++) {
+			out.writeReference(effective[i]);
+		}
+	}
+	
+	out.writeInt(nameToDecisionTree.size());
+	iter = nameToDecisionTree.keySet().iterator();
+	while (iter.hasNext()) {
+		String ruleName = (String) iter.next();
+		out.writeString(ruleName);
+		out.writeReference(nameToDecisionTree.get(ruleName));
+	}
+}
+
+/**
+ * Reads the links of this MRS back in from a snapshot, as written by writeSnapshotLinks().
+ *
+ * @param in the snapshot
+*/
+public void readSnapshotLinks(SnapshotInput in) {
+	myMeaning = (VocabularyMeaning) in.readReference();
+	tags = new HashSet();
+	int count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		tags.add(in.readString());
+	}
+	ownNamesAndTags = in.readBitSet();
+	namesAndTags = in.readBitSet();
+	mySuper = (MeaningRuleSet) in.readReference();
+	mySuperName = in.readString();
+	
+	nameToEffectiveRules = new HashMap();
+	count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		String ruleName = in.readString();
+		MeaningRule effective[] = new MeaningRule[in.readInt()];
+		for (int j = 0; j < effective.length; j++) {
+			effective[j] = (MeaningRule) in.readReference();
+		}
+		nameToEffectiveRules.put(ruleName, effective);
+	}
+	
+	nameToDecisionTree = new HashMap();
+	count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		nameToDecisionTree.put(in.readString(), in.readReference());
+	}
+}
+
 /**
  * @return true if the given name is correct or a matching tag exists.
 */
@@ -97,6 +245,32 @@ public boolean hasNameOrTag(String match) {
 */
 public void addTag(String tag) {
 	tags.add(tag);
+	ownNamesAndTags.set(myLanguageRuleServer.symbolID(tag));
+}
+
+/**
+ * Collects the IDs of the names and tags of this MRS and all its super-MRSs into one BitSet,
+ * so that checking for a name or tag does not have to recurse. This must be called after all
+ * MeaningRuleSets have been linked.
+*/
+public void linkNamesAndTags() {
+	namesAndTags = new BitSet();
+	HashSet visited = new HashSet();
+	MeaningRuleSet mrs = this;
+	while ((mrs != null) && visited.add(mrs)) {
+		namesAndTags.or(mrs.ownNamesAndTags);
+		mrs = mrs.mySuper;
+	}
+}
+
+/**
+ * Returns the IDs of the names and tags of this MRS and all its super-MRSs.
+ * The BitSet must not be modified.
+ *
+ * @return a bitset of symbol IDs
+*/
+public BitSet getNamesAndTags() {
+	return namesAndTags;
 }
 
 /**
@@ -114,8 +288,22 @@ public void setSuperName(String mySuperName) {
  * @param ruleDefinition a string defining the rule
 */
 public void addRule(String ruleDefinition, String myLineAndFile) {
-	MeaningRule mr = new MeaningRule(ruleDefinition, myLanguageRuleServer.languageName, myLanguageRuleServer, myLineAndFile);
+	addRule(new MeaningRule(ruleDefinition, myLanguageRuleServer.languageName, myLanguageRuleServer, myLineAndFile));
+}
+
+/**
+ * Adds a MeaningRule that has already been made.
+ *
+ * @param mr the rule
+*/
+private void addRule(MeaningRule mr) {
 	rules.add(mr);
+	ArrayList sameName = (ArrayList) nameToRules.get(mr.name);
+	if (sameName == null) {
+		sameName = new ArrayList();
+		nameToRules.put(mr.name, sameName);
+	}
+	sameName.add(mr);
 }
 
 /**
@@ -127,6 +315,101 @@ public void link() {
 	}
 }
 
+/**
+ * Links the rules in this MRS, and works out which rules may be invoked for each rule name,
+ * taking the super-MRSs into account. This must be called after all MeaningRuleSets have been linked.
+*/
+public void linkRules() {
+	Iterator iter = rules.iterator();
+	while (iter.hasNext()) {
+		((MeaningRule) iter.next()).link();
+	}
+	
+	/*
+	Walk up the chain of super-MRSs, appending their rules to the lists for each name.
+	The visited set guards against a chain of supers that loops back on itself.
+	*/
+	HashMap effective = new HashMap();
+	HashSet visited = new HashSet();
+	MeaningRuleSet mrs = this;
+	while ((mrs != null) && visited.add(mrs)) {
+		Iterator nameIter = mrs.nameToRules.keySet().iterator();
+		while (nameIter.hasNext()) {
+			String ruleName = (String) nameIter.next();
+			ArrayList list = (ArrayList) effective.get(ruleName);
+			if (list == null) {
+				list = new ArrayList();
+				effective.put(ruleName, list);
+			}
+			list.addAll((ArrayList) mrs.nameToRules.get(ruleName));
+		}
+		mrs = mrs.mySuper;
+	}
+	
+	nameToEffectiveRules = new HashMap();
+	Iterator nameIter = effective.keySet().iterator();
+	while (nameIter.hasNext()) {
+		String ruleName = (String) nameIter.next();
+		ArrayList list = (ArrayList) effective.get(ruleName);
+		nameToEffectiveRules.put(ruleName, list.toArray(new MeaningRule[list.size()]));
+	}
+	
+	/*
+	If asked to, compile the arrays into decision trees, so that the paths shared by several
+	conditions are only followed once.
+	*/
+	nameToDecisionTree = new HashMap();
+	if (myLanguageRuleServer.compileDecisionTrees()) {
+		nameIter = nameToEffectiveRules.keySet().iterator();
+		while (nameIter.hasNext()) {
+			String ruleName = (String) nameIter.next();
+			RuleDecisionTree tree = myLanguageRuleServer.decisionTreeFor((MeaningRule[]) nameToEffectiveRules.get(ruleName));
+			if (tree != null) {
+				nameToDecisionTree.put(ruleName, tree);
+			}
+		}
+	}
+}
+
+/**
+ * Returns the tags of this MRS, not including those of its super-MRSs.
+ * The set cannot be modified.
+ *
+ * @return a set of tags
+*/
+public Set getTags() {
+	return Collections.unmodifiableSet(tags);
+}
+
+/**
+ * Returns the line and file where this MRS is defined.
+*/
+public String getLineAndFile() {
+	return myLineAndFile;
+}
+
+/**
+ * Returns the names of all the rules that may be invoked on this MRS, including
+ * those of its super-MRSs. This must be called after linkRules().
+ * The set cannot be modified.
+ *
+ * @return a set of rule names
+*/
+public Set getRuleNames() {
+	return Collections.unmodifiableSet(nameToEffectiveRules.keySet());
+}
+
+/**
+ * Returns the rules that may be invoked on this MRS for the given name, in the order
+ * they are tried. This must be called after linkRules(). The array must not be modified.
+ *
+ * @param match the rule name
+ * @return an array of rules, or null if there are none of that name
+*/
+public MeaningRule[] getEffectiveRules(String match) {
+	return (MeaningRule[]) nameToEffectiveRules.get(match);
+}
+
 /**
  * This function outputs the string generated for the given node.
  * It calls a private "produce" function that has this ruleset as a parameter. This indirection
@@ -139,53 +422,100 @@ public void link() {
  * @return the result of applying this MRS to the given MRNode: natural language
 */
 public String produce (String match, MRNode node) {
-	return produce(match, node, this);
+	StringBuilder out = new StringBuilder();
+	produce(match, node, new GenerationContext(), out);
+	return out.toString();
+}
+
+/**
+ * Like produce(String, MRNode), but appends the generated text to the given buffer
+ * instead of returning it. If generation fails, the buffer may contain partial output.
+ *
+ * @param match the name of the generation rule to use
+ * @param node the MRNode to apply this MRS to
+ * @param context the generation request this is part of
+ * @param out the buffer the natural language text is appended to
+*/
+public void produce (String match, MRNode node, GenerationContext context, StringBuilder out) {
+	produce(match, node, this, context, out);
 }
 
 /**
  * The private generation function.
- * It works by iterating over the set of rules, testing the name & condition of each,
- * and invoking the first one it matches. If no rule matches, it invokes produce() for
- * its super-MRS. If no super-MRS exists, generation has failed, and an exception is thrown.
+ * It works by looking up the rules that may be invoked for the name asked for, testing the
+ * condition of each, and invoking the first one it matches. These include the rules of the
+ * super-MRSs, which linkRules() has already appended, so there is no need to recurse.
+ * If the rules have been compiled into a decision tree, the tree picks the rule instead.
+ * If no rule matches, generation has failed, and an exception is thrown.
 */
-private String produce(String match, MRNode node, MeaningRuleSet originatingRuleSet) {
-	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
-		System.out.println(DebugTracer.getIndent() + "Invoking RuleSet '" + name + "' using match string '" + match + "'.");
-		DebugTracer.incRL();
+private void produce(String match, MRNode node, MeaningRuleSet originatingRuleSet, GenerationContext context, StringBuilder out) {
+	if (context.getTracer() != null) {
+		produceTraced(match, node, originatingRuleSet, context, out);
+		return;
 	}
-
-	Iterator iter = rules.iterator();
-	while (iter.hasNext()) {
-		MeaningRule r = (MeaningRule) iter.next();
-		/* DebugTrace */
-		if (DebugTracer.doDebug()) {
-			//System.out.println(DebugTracer.getIndent() + "Testing rule " + r.name + ", " + r.displayCondition() + ".");
-			DebugTracer.incRL();
+	
+	RuleDecisionTree tree = (RuleDecisionTree) nameToDecisionTree.get(match);
+	MeaningRule candidates[] = (MeaningRule[]) nameToEffectiveRules.get(match);
+	if (tree != null) {
+		MeaningRule r = tree.select(node, context);
+		if (r != null) {
+			r.produce(node, originatingRuleSet, context, out);
+			return;
 		}
-		if (r.applies(match, node)) {
-			/* DebugTrace */
-			if (DebugTracer.doDebug()) {
-				System.out.println(DebugTracer.getIndent() + "Invoking rule '" + r.name + "'.");
-				DebugTracer.decRL();
-				DebugTracer.decRL();
+	} else if (candidates != null) {
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i].conditionHolds(node, context)) {
+				candidates[i].produce(node, originatingRuleSet, context, out);
+				return;
 			}
-			return r.produce(node, originatingRuleSet);
-		}
-		/* DebugTrace */
-		if (DebugTracer.doDebug()) {
-			DebugTracer.decRL();
 		}
 	}
 	
+	/*
+	The exception names the last MRS in the chain, as that is where the search ended. If the
+	chain loops, it names the MRS whose super-MRS has already been passed.
+	*/
+	MeaningRuleSet last = this;
+	HashSet visited = new HashSet();
+	visited.add(last);
+	while ((last.mySuper != null) && visited.add(last.mySuper)) {
+		last = last.mySuper;
+	}
+	throw new NoMatchingProductionRuleFoundException(match, last.name, last.myLineAndFile);
+}
 
-	if (mySuper != null) {
-		/* DebugTrace */
-		if (DebugTracer.doDebug()) {
-			System.out.println(DebugTracer.getIndent() + "No match found, invoking super-ruleset: '" + mySuper.name + "'.");
-			DebugTracer.decRL();
+/**
+ * The generation function used when a debug trace is requested.
+ * It iterates over this MRS's rules with the name asked for, and if none matches, explicitly
+ * invokes the super-MRS, so that each step can be reported.
+*/
+private void produceTraced(String match, MRNode node, MeaningRuleSet originatingRuleSet, GenerationContext context, StringBuilder out) {
+	DebugTracer tracer = context.getTracer();
+	tracer.trace("Invoking RuleSet '" + name + "' using match string '" + match + "'.");
+	tracer.incRL();
+	
+	ArrayList sameName = (ArrayList) nameToRules.get(match);
+	if (sameName != null) {
+		Iterator iter = sameName.iterator();
+		while (iter.hasNext()) {
+			MeaningRule r = (MeaningRule) iter.next();
+			//tracer.trace("Testing rule " + r.name + ", " + r.displayCondition() + ".");
+			tracer.incRL();
+			if (r.conditionHolds(node, context)) {
+				tracer.trace("Invoking rule '" + r.name + "'.");
+				tracer.decRL();
+				tracer.decRL();
+				r.produce(node, originatingRuleSet, context, out);
+				return;
+			}
+			tracer.decRL();
 		}
-		return mySuper.produce(match, node, originatingRuleSet);
+	}
+	
+	if (mySuper != null) {
+		tracer.trace("No match found, invoking super-ruleset: '" + mySuper.name + "'.");
+		tracer.decRL();
+		mySuper.produceTraced(match, node, originatingRuleSet, context, out);
 	} else {
 		throw new NoMatchingProductionRuleFoundException(match, name, myLineAndFile);
 	}
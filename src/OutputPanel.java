@@ -12,6 +12,13 @@ public class OutputPanel extends JPanel {
 	private MeaningRepresentation mr;
 	private static final String[] languages = {"en", "de"};
 	
+	/**
+	 * Returns the codes of the languages the panel generates in.
+	*/
+	public static String[] getLanguages() {
+		return languages.clone();
+	}
+	
 	public OutputPanel(MeaningRepresentation mr) {
 		this.mr = mr;
 	}
@@ -1,3 +1,6 @@
+import java.util.Map;
+import java.util.BitSet;
+
 /**
  * A single instruction in a path.
  * Moves either up or down Meaning Representation tree structure
@@ -56,6 +59,19 @@ private String typeOrTag;
 */
 private String myLineAndFile;
 
+/**
+ * Maps each type that has a field called fieldName to that field. This is filled
+ * in by link(), so that following the instruction is an identity lookup instead
+ * of a search by name. Until then, it is null and fields are looked up by name.
+*/
+private Map candidateFields;
+
+/**
+ * The ID the LanguageRuleServer assigned to typeOrTag, or -1 if the
+ * instruction has not been linked or does not check for a type or tag.
+*/
+private int typeOrTagID = -1;
+
 /**
  * Constructor.
  *
@@ -79,24 +95,85 @@ public PatternInstruction(boolean stay, boolean goUp, String fieldName, String f
 	this.myLineAndFile = myLineAndFile;
 }
 
+/**
+ * Reads an instruction back in from a snapshot, as written by writeSnapshot().
+ * If it had been linked, its field name is bound to the fields again.
+ *
+ * @param in the snapshot
+ * @param languageRuleServer the LanguageRuleServer the instruction employs
+*/
+public PatternInstruction(SnapshotInput in, LanguageRuleServer languageRuleServer) {
+	myLanguageRuleServer = languageRuleServer;
+	stay = in.readBoolean();
+	goUp = in.readBoolean();
+	fieldName = in.readString();
+	fieldNameLanguage = in.readString();
+	typeOrTag = in.readString();
+	myLineAndFile = in.readString();
+	typeOrTagID = in.readInt();
+	if (in.readBoolean()) {
+		candidateFields = myLanguageRuleServer.getVocabulary().getFieldsLabelled(fieldName, fieldNameLanguage);
+	}
+}
+
+/**
+ * Writes this instruction to a snapshot.
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeBoolean(stay);
+	out.writeBoolean(goUp);
+	out.writeString(fieldName);
+	out.writeString(fieldNameLanguage);
+	out.writeString(typeOrTag);
+	out.writeString(myLineAndFile);
+	out.writeInt(typeOrTagID);
+	out.writeBoolean(candidateFields != null);
+}
+
+/**
+ * Binds the field name of this instruction to the fields of all the types that have
+ * a field of that name. This must be called after the vocabulary has been linked.
+*/
+public void link() {
+	if ((stay == false) && (fieldName.length() > 0)) {
+		candidateFields = myLanguageRuleServer.getVocabulary().getFieldsLabelled(fieldName, fieldNameLanguage);
+	}
+	if (typeOrTag.length() > 0) {
+		typeOrTagID = myLanguageRuleServer.symbolID(typeOrTag);
+	}
+}
+
+/**
+ * Returns the field called fieldName in the given node's type, or null if there is none.
+*/
+private MeaningField fieldIn(MRNode node) {
+	if (candidateFields == null) {
+		return node.getType().getFieldNullOnFail(fieldName, fieldNameLanguage);
+	}
+	return (MeaningField) candidateFields.get(node.getType());
+}
+
 /**
  * Executes this instruction.
  * If the instruction can be followed, returns the resulting node. If not, returns null.
  * The instruction can fail because the node does not exist, or because it failed to have the indicated type / tag.
  *
  * @param node the MRNode to execute this from
+ * @param tracer the tracer of the generation request, or null if it is not traced
  * @return the MRNode arrived at, or null if the match fails
 */
-public MRNode follow(MRNode node) {
+public MRNode follow(MRNode node, DebugTracer tracer) {
 	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
+	if (tracer != null) {
 		if (stay) {
-			System.out.println(DebugTracer.getIndent() + "=[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
+			tracer.trace("=[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
 		} else {
 			if (goUp) {
-				System.out.println(DebugTracer.getIndent() + "^" + fieldName + "[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
+				tracer.trace("^" + fieldName + "[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
 			} else {
-				System.out.println(DebugTracer.getIndent() + "." + fieldName + "[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
+				tracer.trace("." + fieldName + "[" + typeOrTag + "] for '" + node.getType().getName("en") + "'");
 			}
 		}
 	}
@@ -111,13 +188,17 @@ public MRNode follow(MRNode node) {
 			In the case of "up", acquire the new node by calling getParent();
 			*/
 			nextNode = node.getParent();
+			if (nextNode == null) {
+				return null;
+			}
 			
 			/*
 			Optionally, compare against the field name. Note that this is the name of the parent's field in which the original
-			node is in. NOT the name of the field the parent is in.
+			node is in. NOT the name of the field the parent is in. The node knows which field that is, so we just compare.
 			*/
 			if (fieldName.length() > 0) {
-				if (nextNode.getChild(fieldName, fieldNameLanguage) != node) {
+				MeaningField field = fieldIn(nextNode);
+				if ((field == null) || (node.getParentField() != field)) {
 					return null;
 				}
 			}
@@ -125,7 +206,7 @@ public MRNode follow(MRNode node) {
 			/*
 			In the case of "down", we get the node's child.
 			*/
-			nextNode = node.getChild(fieldName, fieldNameLanguage);
+			nextNode = node.getChild(fieldIn(node));
 			if (nextNode == null) {
 				return null;
 			}
@@ -152,6 +233,22 @@ public MRNode follow(MRNode node) {
 			}
 		}
 		
+		/*
+		If the instruction has been linked, the names and tags of the type and its rulesets
+		have been collected into a BitSet, so all we need to do is test a bit. This does the
+		same as the two options below.
+		*/
+		if (typeOrTagID > -1) {
+			BitSet namesAndTags = myLanguageRuleServer.namesAndTagsOf(nextNode.getType());
+			if (namesAndTags != null) {
+				if (namesAndTags.get(typeOrTagID)) {
+					return nextNode;
+				} else {
+					return null;
+				}
+			}
+		}
+		
 		/*
 		The second option: We get the type of the new node, then the name of this type,
 		and compare it against the typeOrTag field. If this fails we fall through
@@ -178,6 +275,35 @@ public MRNode follow(MRNode node) {
 	}
 }
 
+/**
+ * Returns true if this instruction stays at the current node.
+*/
+public boolean staysPut() {
+	return stay;
+}
+
+/**
+ * Returns true if this instruction moves to the parent node.
+*/
+public boolean goesUp() {
+	return goUp;
+}
+
+/**
+ * Returns the name of the field this instruction moves into, or when moving up, the field
+ * of the parent the original node must be in. May be the empty string.
+*/
+public String getFieldName() {
+	return fieldName;
+}
+
+/**
+ * Returns the type or tag the destination node is checked for, or the empty string if it is not checked.
+*/
+public String getTypeOrTag() {
+	return typeOrTag;
+}
+
 /**
  * Pretty-prints the instruction in a format
  * that can be read back in.
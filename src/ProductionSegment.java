@@ -0,0 +1,103 @@
+/**
+ * One piece of a compiled production string. A MeaningRule splits its production
+ * string into a sequence of these when it is loaded, so that invoking the rule
+ * only has to walk over the segments instead of re-scanning the string.
+ *
+ * There are four kinds of segment:
+ * LITERAL - plain text that is output as-is
+ * LOCAL_RULE - a {localrule} reference, invoking a rule of the originating rule set
+ * NODE_REFERENCE - a <path:rulename> reference, invoking the rule set of another node
+ * ERROR - a part of the string that could not be compiled. Errors in production strings
+ * have always been reported when the rule is invoked rather than when it is loaded,
+ * so the exception is kept and thrown once the rule gets to this segment.
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public class ProductionSegment {
+
+public static final int LITERAL = 0;
+public static final int LOCAL_RULE = 1;
+public static final int NODE_REFERENCE = 2;
+public static final int ERROR = 3;
+
+/**
+ * Which of the four kinds of segment this is.
+*/
+public final int kind;
+
+/**
+ * For literals, the text to output. For rule references, the name of the rule to invoke.
+*/
+public final String text;
+
+/**
+ * For node references, the pre-built path to the node whose rule set gets invoked. Otherwise null.
+*/
+public final TreePattern path;
+
+/**
+ * Whether the first letter of the output of this segment should be capitalised.
+*/
+public final boolean capitalise;
+
+/**
+ * For error segments, the exception to throw when the segment is reached. Otherwise null.
+*/
+public final RuntimeException error;
+
+/**
+ * Constructor. Use the static factory methods instead.
+*/
+private ProductionSegment(int kind, String text, TreePattern path, boolean capitalise, RuntimeException error) {
+	this.kind = kind;
+	this.text = text;
+	this.path = path;
+	this.capitalise = capitalise;
+	this.error = error;
+}
+
+/**
+ * Creates a segment of plain text.
+ *
+ * @param text the text
+ * @return the segment
+*/
+public static ProductionSegment literal(String text) {
+	return new ProductionSegment(LITERAL, text, null, false, null);
+}
+
+/**
+ * Creates a segment invoking a rule of the originating rule set.
+ *
+ * @param ruleName the name of the rule to invoke
+ * @param capitalise whether to capitalise the result
+ * @return the segment
+*/
+public static ProductionSegment localRule(String ruleName, boolean capitalise) {
+	return new ProductionSegment(LOCAL_RULE, ruleName, null, capitalise, null);
+}
+
+/**
+ * Creates a segment invoking the rule set of the node at the end of a path.
+ *
+ * @param path the path to the node
+ * @param ruleName the name of the rule to invoke, "*" if none was given
+ * @param capitalise whether to capitalise the result
+ * @return the segment
+*/
+public static ProductionSegment nodeReference(TreePattern path, String ruleName, boolean capitalise) {
+	return new ProductionSegment(NODE_REFERENCE, ruleName, path, capitalise, null);
+}
+
+/**
+ * Creates a segment that throws the given exception when reached.
+ *
+ * @param error the exception describing what is wrong with the production string
+ * @return the segment
+*/
+public static ProductionSegment error(RuntimeException error) {
+	return new ProductionSegment(ERROR, null, null, false, error);
+}
+
+}
@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An ordered list of rules compiled into a decision tree over the paths their conditions test.
+ *
+ * Normally, the rules a MeaningRuleSet may invoke for a name are tested one after the other,
+ * each evaluating its own condition, so a path that several conditions share gets followed
+ * again for every rule. The decision tree instead tests each distinct path at most once:
+ * every inner node follows one path and branches on the result, and every leaf is the first
+ * rule whose condition holds given the results on the way there, or no rule at all.
+ *
+ * The paths are tested in the same order the rules would have tested them, skipping those
+ * whose result is already known, so the rule chosen is always the one the list would have chosen.
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public class RuleDecisionTree {
+
+/*
+The most inner nodes a tree may have. Some combinations of conditions make the tree grow
+quickly, and for those it is not worth it: compile() gives up and the list is used instead.
+*/
+private static final int MAX_NODES = 512;
+
+/*
+Leaves are stored as negative numbers: NO_RULE if no rule applies, or FIRST_RULE minus
+the index of the rule in the rules array.
+*/
+private static final int NO_RULE = -1;
+private static final int FIRST_RULE = -2;
+
+/*
+The rules, in the order they would be tested.
+*/
+private MeaningRule rules[];
+
+/*
+The inner nodes. For inner node n, tests[n] is the path that is followed, and ifTrue[n] and ifFalse[n]
+are the inner nodes or leaves to go to depending on whether it could be followed.
+*/
+private TreePattern tests[];
+private int ifTrue[];
+private int ifFalse[];
+
+/*
+The inner node or leaf at the top of the tree.
+*/
+private int root;
+
+/**
+ * Constructor. Use compile() instead.
+*/
+private RuleDecisionTree(MeaningRule rules[]) {
+	this.rules = rules;
+}
+
+/**
+ * Reads a decision tree back in from a snapshot, as written by writeSnapshot().
+ * Its rules and the paths it tests must have been read in already.
+ *
+ * @param in the snapshot
+*/
+public RuleDecisionTree(SnapshotInput in) {
+	in.register(this);
+	rules = new MeaningRule[in.readInt()];
+	for (int i = 0; i < rules.length; i++) {
+		rules[i] = (MeaningRule) in.readReference();
+	}
+	tests = new TreePattern[in.readInt()];
+	ifTrue = new int[tests.length];
+	ifFalse = new int[tests.length];
+	for (int i = 0; i < tests.length; i++) {
+		tests[i] = (TreePattern) in.readReference();
+		ifTrue[i] = in.readInt();
+		ifFalse[i] = in.readInt();
+	}
+	root = in.readInt();
+}
+
+/**
+ * Compiles an ordered list of rules into a decision tree.
+ *
+ * @param rules the rules, in the order they should be tested
+ * @return the decision tree, or null if it would get too big
+*/
+public static RuleDecisionTree compile(MeaningRule rules[]) {
+	RuleDecisionTree tree = new RuleDecisionTree(rules);
+	ArrayList tests = new ArrayList();
+	ArrayList ifTrue = new ArrayList();
+	ArrayList ifFalse = new ArrayList();
+
+	tree.root = tree.build(0, new HashMap(), tests, ifTrue, ifFalse);
+	if (tree.root == MAX_NODES) {
+		return null;
+	}
+
+	tree.tests = (TreePattern[]) tests.toArray(new TreePattern[tests.size()]);
+	tree.ifTrue = new int[ifTrue.size()];
+	tree.ifFalse = new int[ifFalse.size()];
+	for (int i = 0; i < tree.ifTrue.length; i++) {
+		tree.ifTrue[i] = ((Integer) ifTrue.get(i)).intValue();
+		tree.ifFalse[i] = ((Integer) ifFalse.get(i)).intValue();
+	}
+	return tree;
+}
+
+/**
+ * Builds the part of the tree that decides between the rules from firstRule onwards,
+ * given that the paths in knownResults have already been followed.
+ * knownResults is changed while building, but is as it was when this returns.
+ *
+ * It looks for the first rule whose condition does not already evaluate to false. If the
+ * condition evaluates to true, that rule is the leaf. Otherwise, the condition needs
+ * another path followed, and an inner node is made for that path, with a subtree for each
+ * of its two possible results.
+ *
+ * @return the new inner node or leaf, or MAX_NODES if the tree has grown too big
+*/
+private int build(int firstRule, HashMap knownResults, ArrayList tests, ArrayList ifTrue, ArrayList ifFalse) {
+	for (int i = firstRule; i < rules.length; i++) {
+		Object result = rules[i].evaluateConditionKnown(knownResults);
+		if (result == Boolean.TRUE) {
+			return FIRST_RULE - i;
+		}
+		if (result != Boolean.FALSE) {
+			if (tests.size() == MAX_NODES) {
+				return MAX_NODES;
+			}
+
+			TreePattern test = (TreePattern) result;
+			int node = tests.size();
+			tests.add(test);
+			ifTrue.add(null);
+			ifFalse.add(null);
+
+			knownResults.put(test.getPatternString(), Boolean.TRUE);
+			int trueBranch = build(i, knownResults, tests, ifTrue, ifFalse);
+			knownResults.put(test.getPatternString(), Boolean.FALSE);
+			int falseBranch = build(i, knownResults, tests, ifTrue, ifFalse);
+			knownResults.remove(test.getPatternString());
+			if ((trueBranch == MAX_NODES) || (falseBranch == MAX_NODES)) {
+				return MAX_NODES;
+			}
+
+			ifTrue.set(node, Integer.valueOf(trueBranch));
+			ifFalse.set(node, Integer.valueOf(falseBranch));
+			return node;
+		}
+	}
+	return NO_RULE;
+}
+
+/**
+ * Finds the first rule whose condition holds for the given node.
+ *
+ * @param node the MRNode the rules are for
+ * @param context the generation request this is part of
+ * @return the rule, or null if no rule applies
+*/
+public MeaningRule select(MRNode node, GenerationContext context) {
+	int current = root;
+	while (current >= 0) {
+		if (tests[current].evaluate(node, context)) {
+			current = ifTrue[current];
+		} else {
+			current = ifFalse[current];
+		}
+	}
+	if (current == NO_RULE) {
+		return null;
+	}
+	return rules[FIRST_RULE - current];
+}
+
+/**
+ * Compiles this tree into nested Java if statements, each of which tests a path
+ * and ends in the selection of a rule. See GrammarCompiler.
+ *
+ * @param compiler the compiler the statements are for
+ * @param indent the indentation of the statements
+ * @param out the buffer the statements are appended to
+*/
+public void compile(GrammarCompiler compiler, String indent, StringBuilder out) {
+	compile(root, compiler, indent, out);
+}
+
+/**
+ * Compiles the given inner node or leaf.
+*/
+private void compile(int current, GrammarCompiler compiler, String indent, StringBuilder out) {
+	if (current < 0) {
+		out.append(indent + compiler.compileSelection((current == NO_RULE) ? null : rules[FIRST_RULE - current], rules[0].name) + "\n");
+		return;
+	}
+	out.append(indent + "if " + compiler.compileCondition(tests[current]) + " {\n");
+	compile(ifTrue[current], compiler, indent + "\t", out);
+	out.append(indent + "} else {\n");
+	compile(ifFalse[current], compiler, indent + "\t", out);
+	out.append(indent + "}\n");
+}
+
+/**
+ * Returns the number of inner nodes of this tree.
+*/
+public int size() {
+	return tests.length;
+}
+
+/**
+ * Writes this tree to a snapshot. Its rules and the paths it tests must have been written already.
+ *
+ * @param out the snapshot
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.register(this);
+	out.writeInt(rules.length);
+	for (int i = 0; i < rules.length; i++) {
+		out.writeReference(rules[i]);
+	}
+	out.writeInt(tests.length);
+	for (int i = 0; i < tests.length; i++) {
+		out.writeReference(tests[i]);
+		out.writeInt(ifTrue[i]);
+		out.writeInt(ifFalse[i]);
+	}
+	out.writeInt(root);
+}
+
+}
@@ -0,0 +1,173 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A binary snapshot of the loaded and linked vocabulary and language rules.
+ *
+ * Loading the vocabulary and the rules of a language means parsing thousands of lines
+ * and then linking everything up, which takes most of the time of a short run of the
+ * generator. So running the generator with --compile-snapshot does all of that once and
+ * writes the result to data/snapshot.bin, and later runs read it back in instead.
+ *
+ * The snapshot starts with a header that records checksums of the vocabulary file and of
+ * the rules files it was made from. If any of them has changed since, or the snapshot was
+ * written by a different version of the generator, it is ignored, and the files are loaded
+ * as usual. After the header comes a table of all the strings in the snapshot, and then the
+ * meanings, fields, rule sets, rules and decision trees, which refer to strings and to each
+ * other by number. See SnapshotOutput.
+ *
+ * Remember:
+ * LanguageServer contains LanguageRuleServers contains MeaningRuleSets contains MeaningRules.
+*/
+public class Snapshot {
+
+	/*
+	The version of the snapshot format. Change this whenever what is written changes,
+	in the header or in any of the writeSnapshot() methods.
+	*/
+	private static final int FORMAT = 3;
+
+	/**
+	 * Returns the snapshot file, which is found relative to the jar file, at data/snapshot.bin.
+	 *
+	 * @return the file
+	*/
+	public static File snapshotFile() {
+		return new File(VocabularyServer.vocabularyFile().getParentFile(), "snapshot.bin");
+	}
+
+	/**
+	 * Writes a snapshot of the vocabulary and of the rules of the given languages, which are
+	 * loaded first if necessary. The vocabulary must have been loaded and linked from its file.
+	 *
+	 * @param languageNames the codes of the languages
+	 * @throws IOException if the snapshot cannot be written
+	*/
+	public static void write(List languageNames) throws IOException {
+		List languages = new ArrayList(new LinkedHashSet(languageNames));
+		File file = snapshotFile();
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		/*
+		Work out the checksums and the contents before opening the file, so that nothing is
+		left behind if loading the rules fails.
+		*/
+		long vocabularyChecksum = CompiledGrammar.checksum(VocabularyServer.vocabularyFile());
+		long rulesChecksums[] = new long[languages.size()];
+		for (int i = 0; i < rulesChecksums.length; i++) {
+			rulesChecksums[i] = CompiledGrammar.checksum(LanguageRuleServer.rulesFile((String) languages.get(i)));
+		}
+		SnapshotOutput snapshot = new SnapshotOutput();
+		Engine.getDefault().writeSnapshot(snapshot, languages);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FORMAT);
+			out.writeBoolean(LanguageServer.compileDecisionTrees());
+			out.writeLong(vocabularyChecksum);
+			out.writeInt(languages.size());
+			for (int i = 0; i < rulesChecksums.length; i++) {
+				out.writeUTF((String) languages.get(i));
+				out.writeLong(rulesChecksums[i]);
+			}
+			snapshot.writeTo(out);
+		}
+		finally {
+			out.close();
+		}
+
+		/*
+		Only replace the old snapshot once the new one is complete.
+		*/
+		file.delete();
+		if (tempFile.renameTo(file) == false) {
+			throw new IOException("Could not rename " + tempFile.getPath() + " to " + file.getPath());
+		}
+	}
+
+	/**
+	 * Reads the vocabulary and language rules back in from the snapshot into a new default
+	 * Engine, if there is a snapshot and it is up to date. Otherwise, nothing is read in, and
+	 * the vocabulary must be loaded from its file as usual.
+	 *
+	 * @return whether the snapshot was read in
+	*/
+	public static boolean read() {
+		File file = snapshotFile();
+		if (file.exists() == false) {
+			return false;
+		}
+
+		try {
+			byte data[] = new byte[(int) file.length()];
+			FileInputStream fileIn = new FileInputStream(file);
+			try {
+				int read = 0;
+				while (read < data.length) {
+					int count = fileIn.read(data, read, data.length - read);
+					if (count < 0) {
+						throw new IOException("The snapshot got shorter while it was being read.");
+					}
+					read += count;
+				}
+			}
+			finally {
+				fileIn.close();
+			}
+
+			/*
+			Check the header before reading anything else.
+			*/
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			if (in.readInt() != FORMAT) {
+				return outOfDate();
+			}
+			if (in.readBoolean() != LanguageServer.compileDecisionTrees()) {
+				return false;
+			}
+			if (in.readLong() != CompiledGrammar.checksum(VocabularyServer.vocabularyFile())) {
+				return outOfDate();
+			}
+			int languageCount = in.readInt();
+			for (int i = 0; i < languageCount; i++) {
+				File rulesFile = LanguageRuleServer.rulesFile(in.readUTF());
+				long checksum = in.readLong();
+				if ((rulesFile.exists() == false) || (checksum != CompiledGrammar.checksum(rulesFile))) {
+					return outOfDate();
+				}
+			}
+
+			SnapshotInput snapshot = new SnapshotInput(data, data.length - in.available());
+			Engine engine = Engine.readSnapshot(snapshot, VocabularyServer.vocabularyFile(), LanguageServer.compileDecisionTrees(), LanguageServer.useCompiledGrammars());
+			if (snapshot.atEnd() == false) {
+				throw new IOException("The snapshot has data left over at its end.");
+			}
+			Engine.setDefault(engine);
+		}
+		catch (Exception e) {
+			System.err.println("The snapshot could not be read, so the vocabulary and rules are loaded from their files instead: " + e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reports that the snapshot is out of date.
+	 *
+	 * @return false
+	*/
+	private static boolean outOfDate() {
+		System.err.println("The snapshot is out of date, so the vocabulary and rules are loaded from their files instead. Run with --compile-snapshot to update it.");
+		return false;
+	}
+}
@@ -0,0 +1,157 @@
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the vocabulary and rules back in from a snapshot written by a SnapshotOutput.
+ * See Snapshot and SnapshotOutput.
+ *
+ * The whole snapshot is in memory, and is decoded straight from the array. A snapshot that
+ * has been damaged may make this throw any RuntimeException, which Snapshot.read() reports
+ * before it loads the vocabulary and rules from their files instead.
+*/
+public class SnapshotInput {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte data[];
+	private int position;
+
+	/*
+	The table of strings at the start of the snapshot.
+	*/
+	private String strings[];
+
+	/*
+	The objects registered so far, by their number.
+	*/
+	private ArrayList objects;
+
+	/**
+	 * The constructor. Reads the table of strings.
+	 *
+	 * @param data the bytes of the snapshot
+	 * @param offset where the table of strings starts
+	*/
+	public SnapshotInput(byte data[], int offset) {
+		this.data = data;
+		position = offset;
+		objects = new ArrayList();
+		register(MeaningField.IS_STRING);
+		register(MeaningField.IS_INT);
+		register(MeaningField.IS_ANY);
+
+		strings = new String[readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			int length = readInt();
+			strings[i] = new String(data, position, length, UTF8);
+			position += length;
+		}
+	}
+
+	/**
+	 * Reads a number.
+	 *
+	 * @return the number
+	*/
+	public int readInt() {
+		return (int) readLong();
+	}
+
+	/**
+	 * Reads a long number.
+	 *
+	 * @return the number
+	*/
+	public long readLong() {
+		long bits = 0;
+		int shift = 0;
+		byte b = data[position++];
+		while (b < 0) {
+			bits |= (long) (b & 0x7F) << shift;
+			shift += 7;
+			b = data[position++];
+		}
+		bits |= (long) b << shift;
+		return (bits >>> 1) ^ -(bits & 1);
+	}
+
+	/**
+	 * Reads a boolean.
+	 *
+	 * @return the boolean
+	*/
+	public boolean readBoolean() {
+		return (data[position++] != 0);
+	}
+
+	/**
+	 * Reads a string, which may be null.
+	 *
+	 * @return the string
+	*/
+	public String readString() {
+		int index = readInt();
+		if (index == 0) {
+			return null;
+		}
+		return strings[index - 1];
+	}
+
+	/**
+	 * Reads a map from strings to strings.
+	 *
+	 * @return the map
+	*/
+	public HashMap readStringMap() {
+		HashMap map = new HashMap();
+		int size = readInt();
+		for (int i = 0; i < size; i++) {
+			map.put(readString(), readString());
+		}
+		return map;
+	}
+
+	/**
+	 * Reads a BitSet.
+	 *
+	 * @return the BitSet
+	*/
+	public BitSet readBitSet() {
+		long words[] = new long[readInt()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = readLong();
+		}
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * Gives the given object the next number, as SnapshotOutput.register() did when it was written.
+	 *
+	 * @param object the object
+	*/
+	public void register(Object object) {
+		objects.add(object);
+	}
+
+	/**
+	 * Reads a reference to an object that has been registered, or null.
+	 *
+	 * @return the object
+	*/
+	public Object readReference() {
+		int number = readInt();
+		if (number == 0) {
+			return null;
+		}
+		return objects.get(number - 1);
+	}
+
+	/**
+	 * Returns whether the whole snapshot has been read.
+	*/
+	public boolean atEnd() {
+		return (position == data.length);
+	}
+}
@@ -0,0 +1,203 @@
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Iterator;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the loaded and linked vocabulary and rules into a snapshot, in a compact binary form.
+ * See Snapshot. The classes written into the snapshot write themselves with a writeSnapshot()
+ * method, and are read back in by a constructor that takes a SnapshotInput, which reads
+ * everything in the same order it was written.
+ *
+ * Every string is written only once, into a table at the start, and after that it is written
+ * as its index in the table. Objects that other objects refer to, such as meanings, fields,
+ * rule sets, rules, paths and decision trees, are numbered in the order they are registered,
+ * and references to them are written as their number. Numbers are written in as few bytes
+ * as they need, seven bits to a byte, so most of them take a single byte.
+*/
+public class SnapshotOutput {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	Everything written so far, apart from the strings.
+	*/
+	private ByteArrayOutputStream body;
+
+	/*
+	The strings written so far, in the order they were first written, and their indexes.
+	*/
+	private ArrayList strings;
+	private HashMap stringToIndex;
+
+	/*
+	The number of each object registered so far.
+	*/
+	private IdentityHashMap objectToNumber;
+
+	/**
+	 * The constructor. The special types of MeaningField are registered up front, as they
+	 * are not part of the vocabulary, but fields refer to them.
+	*/
+	public SnapshotOutput() {
+		body = new ByteArrayOutputStream();
+		strings = new ArrayList();
+		stringToIndex = new HashMap();
+		objectToNumber = new IdentityHashMap();
+		register(MeaningField.IS_STRING);
+		register(MeaningField.IS_INT);
+		register(MeaningField.IS_ANY);
+	}
+
+	/**
+	 * Writes a number. Small numbers, including -1, take a single byte.
+	 *
+	 * @param value the number
+	*/
+	public void writeInt(int value) {
+		writeLong(value);
+	}
+
+	/**
+	 * Writes a long number. Small numbers, including -1, take a single byte.
+	 *
+	 * @param value the number
+	*/
+	public void writeLong(long value) {
+		writeNumber(body, value);
+	}
+
+	/**
+	 * Writes a number to the given stream, seven bits to a byte. The sign is moved to the lowest
+	 * bit first, so that small negative numbers are short too.
+	*/
+	private static void writeNumber(ByteArrayOutputStream out, long value) {
+		long bits = (value << 1) ^ (value >> 63);
+		while ((bits & ~0x7FL) != 0) {
+			out.write((int) ((bits & 0x7F) | 0x80));
+			bits = bits >>> 7;
+		}
+		out.write((int) bits);
+	}
+
+	/**
+	 * Writes a boolean.
+	 *
+	 * @param value the boolean
+	*/
+	public void writeBoolean(boolean value) {
+		body.write(value ? 1 : 0);
+	}
+
+	/**
+	 * Writes a string, which may be null.
+	 *
+	 * @param value the string
+	*/
+	public void writeString(String value) {
+		if (value == null) {
+			writeInt(0);
+			return;
+		}
+		Integer index = (Integer) stringToIndex.get(value);
+		if (index == null) {
+			index = Integer.valueOf(strings.size());
+			strings.add(value);
+			stringToIndex.put(value, index);
+		}
+		writeInt(index.intValue() + 1);
+	}
+
+	/**
+	 * Writes a map from strings to strings.
+	 *
+	 * @param map the map
+	*/
+	public void writeStringMap(Map map) {
+		writeInt(map.size());
+		Iterator iter = map.keySet().iterator();
+		while (iter.hasNext()) {
+			String key = (String) iter.next();
+			writeString(key);
+			writeString((String) map.get(key));
+		}
+	}
+
+	/**
+	 * Writes a BitSet.
+	 *
+	 * @param bits the BitSet
+	*/
+	public void writeBitSet(BitSet bits) {
+		long words[] = bits.toLongArray();
+		writeInt(words.length);
+		for (int i = 0; i < words.length; i++) {
+			writeLong(words[i]);
+		}
+	}
+
+	/**
+	 * Gives the given object the next number, so that it can be referred to from now on.
+	 * The object must be registered at the same point when it is read back in.
+	 *
+	 * @param object the object
+	*/
+	public void register(Object object) {
+		objectToNumber.put(object, Integer.valueOf(objectToNumber.size()));
+	}
+
+	/**
+	 * Writes a reference to an object that has been registered, or null.
+	 *
+	 * @param object the object
+	 * @throws IllegalArgumentException if the object has not been registered
+	*/
+	public void writeReference(Object object) {
+		if (object == null) {
+			writeInt(0);
+			return;
+		}
+		Integer number = (Integer) objectToNumber.get(object);
+		if (number == null) {
+			throw new IllegalArgumentException("The snapshot refers to an object that is not in it: " + object);
+		}
+		writeInt(number.intValue() + 1);
+	}
+
+	/**
+	 * Writes a LogicNode tree, which may be null. See LogicNode.writeSnapshot().
+	 *
+	 * @param node the node at the top of the tree
+	*/
+	public void writeLogicNode(LogicNode node) {
+		if (node == null) {
+			writeInt(LogicNode.SNAPSHOT_NONE);
+		} else {
+			node.writeSnapshot(this);
+		}
+	}
+
+	/**
+	 * Writes the table of strings, and then everything else that has been written.
+	 *
+	 * @param out the stream to write to
+	 * @throws IOException if writing fails
+	*/
+	public void writeTo(OutputStream out) throws IOException {
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		writeNumber(table, strings.size());
+		for (int i = 0; i < strings.size(); i++) {
+			byte bytes[] = ((String) strings.get(i)).getBytes(UTF8);
+			writeNumber(table, bytes.length);
+			table.write(bytes, 0, bytes.length);
+		}
+		table.writeTo(out);
+		body.writeTo(out);
+	}
+}
@@ -0,0 +1,336 @@
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.IOException;
+
+/**
+ * Generates a stream of MRs, such as stdin, in several languages, one MR at a time, for as
+ * long as the stream lasts.
+ *
+ * The MRs in the stream are separated by empty lines, or by lines that are just "%%". Each MR
+ * is parsed, generated and written by a stage of its own, each on its own thread, so while one
+ * MR is being generated the next one is already being parsed, and the one before is being
+ * written. The stages hand the MRs on through short queues, so a stage that gets ahead waits
+ * for the next one, and a stream of any length takes little memory.
+ *
+ * The results of each MR are written like those of the BatchGenerator: one line for each
+ * language, or "?" if the MR could not be generated in it, with the error reported on stderr.
+ * The output is flushed after each MR, so whoever is feeding the stream gets the results of
+ * an MR as soon as they are ready. Rules that recurse without end fail just the result they
+ * are generating, with a StackOverflowError. Any other Error stops the stream, and is thrown
+ * by generate() once the MRs before it have been written.
+ *
+ * If asked to, the MRs are interned as they are parsed, so that they share the subtrees
+ * they have in common. See MRInterner. The interner is built for the rules loaded when the
+ * StreamGenerator is made, so the rules must not be reloaded while it is in use.
+*/
+public class StreamGenerator {
+
+	/**
+	 * A line that ends an MR, like an empty line does.
+	*/
+	public static final String SEPARATOR = "%%";
+
+	/*
+	How many MRs may be waiting between two stages.
+	*/
+	private static final int QUEUE_SIZE = 16;
+
+	/*
+	Put into the queues after the last MR, to tell the next stage to stop.
+	*/
+	private static final Record END = new Record(0, null);
+
+	private List languages;
+	private boolean trace;
+
+	/*
+	The interner the MRs are interned with, or null if they are not.
+	*/
+	private MRInterner interner;
+
+	private BlockingQueue parsed;
+	private BlockingQueue generated;
+
+	/*
+	The number of results that could not be generated, and the error the writer stopped with,
+	if any. Set by the writer thread and read once it is done.
+	*/
+	private int failures;
+	private volatile IOException writeError;
+
+	/*
+	The error the generator thread stopped with, if any.
+	*/
+	private volatile Error generateError;
+
+	/**
+	 * Constructor. The vocabulary must have been loaded and linked first.
+	 *
+	 * @param languages the codes of the languages to generate each MR in
+	 * @param trace whether to write a debug trace before each result
+	 * @param intern whether to intern the MRs, which loads the rules of the languages first
+	*/
+	public StreamGenerator(List languages, boolean trace, boolean intern) {
+		this.languages = languages;
+		this.trace = trace;
+		if (intern) {
+			interner = new MRInterner(languages);
+		}
+	}
+
+	/**
+	 * Generates the MRs read from the given input in all languages, and writes the results to
+	 * the given output, in order. Returns when the input has run out and all results have
+	 * been written. The MRs are parsed on the calling thread.
+	 *
+	 * @param in the input to read the MRs from
+	 * @param out the output to write to
+	 * @return the number of results that could not be generated
+	 * @throws IOException if reading the input or writing the output fails
+	*/
+	public int generate(BufferedReader in, final Writer out) throws IOException {
+		parsed = new ArrayBlockingQueue(QUEUE_SIZE);
+		generated = new ArrayBlockingQueue(QUEUE_SIZE);
+		failures = 0;
+		writeError = null;
+		generateError = null;
+
+		Thread generator = new Thread("Stream generator") {
+			public void run() {
+				generateRecords();
+			}
+		};
+		Thread writer = new Thread("Stream writer") {
+			public void run() {
+				writeRecords(out);
+			}
+		};
+		generator.start();
+		writer.start();
+
+		try {
+			parseRecords(in);
+		}
+		finally {
+			put(parsed, END);
+			join(generator);
+			join(writer);
+		}
+
+		if (generateError != null) {
+			throw generateError;
+		}
+		if (writeError != null) {
+			throw writeError;
+		}
+		return failures;
+	}
+
+	/**
+	 * The first stage: reads the MRs, parses them and hands them on. Stops at the end of the
+	 * input, or when the generator or the writer has failed.
+	*/
+	private void parseRecords(BufferedReader in) throws IOException {
+		int number = 0;
+		StringBuilder text = new StringBuilder();
+		String line = in.readLine();
+		while ((line != null) && (writeError == null) && (generateError == null)) {
+			if ((line.trim().length() == 0) || line.equals(SEPARATOR)) {
+				if (text.length() > 0) {
+					number++;
+					put(parsed, parse(number, text.toString()));
+					text.setLength(0);
+				}
+			} else {
+				text.append(line).append('\n');
+			}
+			line = in.readLine();
+		}
+		if ((text.length() > 0) && (writeError == null) && (generateError == null)) {
+			number++;
+			put(parsed, parse(number, text.toString()));
+		}
+	}
+
+	/**
+	 * Parses the text of an MR.
+	*/
+	private Record parse(int number, String text) {
+		Record record = new Record(number, languages);
+		try {
+			LineTokenizer r = new LineTokenizer(new BufferedReader(new StringReader(text)), false, false);
+			record.mr = new MeaningRepresentation(r, "MR " + number);
+			if (interner != null) {
+				interner.intern(record.mr);
+			}
+		}
+		catch (RuntimeException e) {
+			for (int i = 0; i < record.errors.length; i++) {
+				record.errors[i] = e.toString();
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * The second stage: generates the parsed MRs in all languages and hands them on. If it
+	 * stops with an Error, the rest of the MRs are taken off the queue without being generated,
+	 * so that the parser does not wait for it, and the writer is told to stop all the same.
+	*/
+	private void generateRecords() {
+		try {
+			Record record = (Record) take(parsed);
+			while (record != END) {
+				generate(record);
+				put(generated, record);
+				record = (Record) take(parsed);
+			}
+		}
+		catch (Error e) {
+			generateError = e;
+			while (take(parsed) != END) {
+				//drop it
+			}
+		}
+		finally {
+			put(generated, END);
+		}
+	}
+
+	/**
+	 * Generates a parsed MR in all languages.
+	*/
+	private void generate(Record record) {
+		if (record.mr != null) {
+			/*
+			The engine is taken afresh for each MR, so that rules reloaded by --watch are used from
+			the next MR on, but all languages of an MR are generated with the same one.
+			*/
+			Engine engine = Engine.getDefault();
+			for (int i = 0; i < record.results.length; i++) {
+				StringWriter traceText = null;
+				DebugTracer tracer = null;
+				if (trace) {
+					traceText = new StringWriter();
+					tracer = new DebugTracer(new PrintWriter(traceText));
+				}
+				StringBuilder text = new StringBuilder();
+				try {
+					record.mr.generate((String) languages.get(i), new GenerationContext(engine, tracer), text);
+					record.results[i] = text.toString();
+				}
+				catch (RuntimeException e) {
+					record.errors[i] = e.toString();
+				}
+				catch (StackOverflowError e) {
+					record.errors[i] = e.toString();
+				}
+				if (trace) {
+					record.traces[i] = traceText.toString();
+				}
+			}
+			record.mr = null;
+		}
+	}
+
+	/**
+	 * The last stage: writes the results of each MR and flushes them. If writing fails, the
+	 * rest of the MRs are taken off the queue without being written, so that the other stages
+	 * do not wait for it.
+	*/
+	private void writeRecords(Writer out) {
+		Record record = (Record) take(generated);
+		while (record != END) {
+			if (writeError == null) {
+				try {
+					for (int i = 0; i < record.results.length; i++) {
+						if (record.traces[i] != null) {
+							out.write(record.traces[i]);
+						}
+						if (record.results[i] == null) {
+							System.err.println("MR " + record.number + ", " + languages.get(i) + ": " + record.errors[i]);
+							out.write("?");
+							failures++;
+						} else {
+							out.write(record.results[i]);
+						}
+						out.write("\n");
+					}
+					out.flush();
+				}
+				catch (IOException e) {
+					writeError = e;
+				}
+			}
+			record = (Record) take(generated);
+		}
+	}
+
+	/*
+	The stages are never interrupted, so these just keep waiting if they are.
+	*/
+
+	private static void put(BlockingQueue queue, Record record) {
+		while (true) {
+			try {
+				queue.put(record);
+				return;
+			}
+			catch (InterruptedException e) {
+				//keep waiting
+			}
+		}
+	}
+
+	private static Object take(BlockingQueue queue) {
+		while (true) {
+			try {
+				return queue.take();
+			}
+			catch (InterruptedException e) {
+				//keep waiting
+			}
+		}
+	}
+
+	private static void join(Thread thread) {
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				//keep waiting
+			}
+		}
+	}
+
+	/**
+	 * An MR on its way through the stages, with its results.
+	*/
+	private static class Record {
+		private int number;
+		private MeaningRepresentation mr;
+
+		/*
+		For each language: the text generated, or null if it failed, the error if it failed,
+		and the debug trace if one is wanted.
+		*/
+		private String results[];
+		private String errors[];
+		private String traces[];
+
+		private Record(int number, List languages) {
+			this.number = number;
+			int count = (languages == null) ? 0 : languages.size();
+			results = new String[count];
+			errors = new String[count];
+			traces = new String[count];
+		}
+	}
+}
@@ -1,3 +1,6 @@
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * Represents an AND operator for use in a LogicNode tree.
 */
@@ -40,8 +43,60 @@ public String display() {
  *
  * @return contentA AND contentB
 */
-public boolean evaluate(MRNode startNode) {
-	return ((contentA.evaluate(startNode)) && (contentB.evaluate(startNode)));
+public boolean evaluate(MRNode startNode, GenerationContext context) {
+	return ((contentA.evaluate(startNode, context)) && (contentB.evaluate(startNode, context)));
+}
+
+/**
+ * Links the contents of this AND.
+*/
+public void link() {
+	if (contentA != null) {
+		contentA.link();
+	}
+	if (contentB != null) {
+		contentB.link();
+	}
+}
+
+/**
+ * Adds the patterns in this node and its sub-nodes to the given list.
+*/
+public void collectPatterns(List patterns) {
+	if (contentA != null) {
+		contentA.collectPatterns(patterns);
+	}
+	if (contentB != null) {
+		contentB.collectPatterns(patterns);
+	}
+}
+
+/**
+ * Evaluates this AND as far as the known results allow.
+ * If contentA is false, contentB is never looked at, just like in evaluate().
+*/
+public Object evaluateKnown(HashMap knownResults) {
+	Object resultA = contentA.evaluateKnown(knownResults);
+	if (resultA == Boolean.TRUE) {
+		return contentB.evaluateKnown(knownResults);
+	}
+	return resultA;
+}
+
+/**
+ * Compiles this AND into a Java expression.
+*/
+public String compile(GrammarCompiler compiler) {
+	return "(" + contentA.compile(compiler) + " && " + contentB.compile(compiler) + ")";
+}
+
+/**
+ * Writes this AND and its contents to a snapshot.
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeInt(SNAPSHOT_AND);
+	out.writeLogicNode(contentA);
+	out.writeLogicNode(contentB);
 }
 
 }
@@ -1,8 +1,11 @@
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * The head of a LogicNode tree.
  * A LogicNode tree is a tree structure made from LogicNodes
  * that represents a boolean logic expression of TreePatterns.
- * Calling evaluate(MRNode) on it evaluates its logic in terms
+ * Calling evaluate(MRNode, GenerationContext) on it evaluates its logic in terms
  * of the results of evaluating the TreePatterns for the given
  * MRNode.
 */
@@ -39,10 +42,51 @@ public String display() {
  * It recurses down its boolean logic, and evaluates the TreePatterns for its node.
  *
  * @param startNode the MR node for which the tree should be evaluated
+ * @param context the generation request this is part of. May be null.
  * @return whether this tree evaluates to true
 */
-public boolean evaluate(MRNode startNode) {
-	return content.evaluate(startNode);
+public boolean evaluate(MRNode startNode, GenerationContext context) {
+	return content.evaluate(startNode, context);
+}
+
+/**
+ * Links the patterns of the entire tree.
+*/
+public void link() {
+	if (content != null) {
+		content.link();
+	}
+}
+
+/**
+ * Adds the patterns in this node and its sub-nodes to the given list.
+*/
+public void collectPatterns(List patterns) {
+	if (content != null) {
+		content.collectPatterns(patterns);
+	}
+}
+
+/**
+ * Evaluates the entire logic tree as far as the known results allow.
+*/
+public Object evaluateKnown(HashMap knownResults) {
+	return content.evaluateKnown(knownResults);
+}
+
+/**
+ * Compiles the entire logic tree into a Java expression.
+*/
+public String compile(GrammarCompiler compiler) {
+	return content.compile(compiler);
+}
+
+/**
+ * Writes the entire logic tree to a snapshot.
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeInt(SNAPSHOT_HEAD);
+	out.writeLogicNode(content);
 }
 
 }
\ No newline at end of file
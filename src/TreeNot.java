@@ -1,3 +1,6 @@
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * Represents a NOT operator for use in a LogicNode tree.
 */
@@ -34,8 +37,55 @@ public String display() {
  *
  * @return NOT(content)
 */
-public boolean evaluate(MRNode startNode) {
-	return !(content.evaluate(startNode));
+public boolean evaluate(MRNode startNode, GenerationContext context) {
+	return !(content.evaluate(startNode, context));
+}
+
+/**
+ * Links the contents of this NOT.
+*/
+public void link() {
+	if (content != null) {
+		content.link();
+	}
+}
+
+/**
+ * Adds the patterns in this node and its sub-nodes to the given list.
+*/
+public void collectPatterns(List patterns) {
+	if (content != null) {
+		content.collectPatterns(patterns);
+	}
+}
+
+/**
+ * Evaluates this NOT as far as the known results allow.
+*/
+public Object evaluateKnown(HashMap knownResults) {
+	Object result = content.evaluateKnown(knownResults);
+	if (result == Boolean.TRUE) {
+		return Boolean.FALSE;
+	}
+	if (result == Boolean.FALSE) {
+		return Boolean.TRUE;
+	}
+	return result;
+}
+
+/**
+ * Compiles this NOT into a Java expression.
+*/
+public String compile(GrammarCompiler compiler) {
+	return "!" + content.compile(compiler);
+}
+
+/**
+ * Writes this NOT and its content to a snapshot.
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeInt(SNAPSHOT_NOT);
+	out.writeLogicNode(content);
 }
 
 }
@@ -1,3 +1,6 @@
+import java.util.HashMap;
+import java.util.List;
+
 /**
  * Represents an OR operator for use in a TreePattern.
 */
@@ -40,8 +43,60 @@ public String display() {
  *
  * @return contentA OR contentB
 */
-public boolean evaluate(MRNode startNode) {
-	return ((contentA.evaluate(startNode)) || (contentB.evaluate(startNode)));
+public boolean evaluate(MRNode startNode, GenerationContext context) {
+	return ((contentA.evaluate(startNode, context)) || (contentB.evaluate(startNode, context)));
+}
+
+/**
+ * Links the contents of this OR.
+*/
+public void link() {
+	if (contentA != null) {
+		contentA.link();
+	}
+	if (contentB != null) {
+		contentB.link();
+	}
+}
+
+/**
+ * Adds the patterns in this node and its sub-nodes to the given list.
+*/
+public void collectPatterns(List patterns) {
+	if (contentA != null) {
+		contentA.collectPatterns(patterns);
+	}
+	if (contentB != null) {
+		contentB.collectPatterns(patterns);
+	}
+}
+
+/**
+ * Evaluates this OR as far as the known results allow.
+ * If contentA is true, contentB is never looked at, just like in evaluate().
+*/
+public Object evaluateKnown(HashMap knownResults) {
+	Object resultA = contentA.evaluateKnown(knownResults);
+	if (resultA == Boolean.FALSE) {
+		return contentB.evaluateKnown(knownResults);
+	}
+	return resultA;
+}
+
+/**
+ * Compiles this OR into a Java expression.
+*/
+public String compile(GrammarCompiler compiler) {
+	return "(" + contentA.compile(compiler) + " || " + contentB.compile(compiler) + ")";
+}
+
+/**
+ * Writes this OR and its contents to a snapshot.
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeInt(SNAPSHOT_OR);
+	out.writeLogicNode(contentA);
+	out.writeLogicNode(contentB);
 }
 
 }
@@ -1,5 +1,8 @@
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Collections;
 
 /**
  * A path through a meaning representation tree.
@@ -33,6 +36,12 @@ private LanguageRuleServer myLanguageRuleServer;
 */
 private String myFileAndLine;
 
+/**
+ * The ID the language rule server assigned to this pattern when it was linked,
+ * used for caching its results. -1 if it has not been linked.
+*/
+private int patternID = -1;
+
 /**
  * Constructor.
  *
@@ -237,6 +246,26 @@ public TreePattern(String pattern, String language, LanguageRuleServer languageR
 	}
 }
 
+/**
+ * Reads a path back in from a snapshot, as written by writeSnapshot(), once its kind has been read.
+ *
+ * @param in the snapshot
+ * @param languageRuleServer the language rule server for the path's language
+*/
+public TreePattern(SnapshotInput in, LanguageRuleServer languageRuleServer) {
+	in.register(this);
+	myLanguageRuleServer = languageRuleServer;
+	myLanguage = languageRuleServer.languageName;
+	patternString = in.readString();
+	myFileAndLine = in.readString();
+	patternID = in.readInt();
+	instructions = new ArrayList();
+	int count = in.readInt();
+	for (int i = 0; i < count; i++) {
+		instructions.add(new PatternInstruction(in, languageRuleServer));
+	}
+}
+
 /**
  * Fill function. Should NEVER EVER BE CALLED.
  * Hence, immediately throws exception if called.
@@ -249,14 +278,110 @@ public void fill(LogicNode node) {
 	throw new ConditionLogicParserException("Cannot fill a tree pattern!");
 }
 
+/**
+ * Links the instructions of this path against the vocabulary, so that following
+ * them no longer needs to look up fields by name.
+*/
+public void link() {
+	patternID = myLanguageRuleServer.patternID();
+	Iterator iter = instructions.iterator();
+	while (iter.hasNext()) {
+		((PatternInstruction) iter.next()).link();
+	}
+}
+
+/**
+ * Adds this pattern to the given list.
+*/
+public void collectPatterns(List patterns) {
+	patterns.add(this);
+}
+
 /**
  * Returns true if the pattern matches.
+ * If a context is given and this pattern has been linked, the result is looked up
+ * in, or stored into, the context's cache. Paths of a single step are quicker to
+ * follow than to look up, so they are never cached.
 */
-public boolean evaluate(MRNode node) {
+public boolean evaluate(MRNode node, GenerationContext context) {
 	if (instructions.size() == 0) {
 		return true;
 	}
 	
+	DebugTracer tracer = (context == null) ? null : context.getTracer();
+	if ((context == null) || (patternID < 0) || (instructions.size() < 2)) {
+		return evaluate(node, tracer);
+	}
+	Boolean cached = context.cachedResult(patternID, node);
+	if (cached != null) {
+		return cached.booleanValue();
+	}
+	boolean result = evaluate(node, tracer);
+	context.cacheResult(patternID, node, result);
+	return result;
+}
+
+/**
+ * Returns the known result of this pattern, or the pattern itself if it is not known.
+ * A pattern without instructions always matches.
+*/
+public Object evaluateKnown(HashMap knownResults) {
+	if (instructions.size() == 0) {
+		return Boolean.TRUE;
+	}
+	Object result = knownResults.get(patternString);
+	if (result == null) {
+		return this;
+	}
+	return result;
+}
+
+/**
+ * Returns the string that defines this path. Two patterns of the same language with the
+ * same pattern string always have the same result.
+*/
+public String getPatternString() {
+	return patternString;
+}
+
+/**
+ * Compiles this pattern into a Java expression that is true if the pattern matches.
+*/
+public String compile(GrammarCompiler compiler) {
+	return compiler.compileCondition(this);
+}
+
+/**
+ * Writes this pattern and its instructions to a snapshot. Decision trees refer to it after that.
+*/
+public void writeSnapshot(SnapshotOutput out) {
+	out.writeInt(SNAPSHOT_PATTERN);
+	out.register(this);
+	out.writeString(patternString);
+	out.writeString(myFileAndLine);
+	out.writeInt(patternID);
+	out.writeInt(instructions.size());
+	Iterator iter = instructions.iterator();
+	while (iter.hasNext()) {
+		((PatternInstruction) iter.next()).writeSnapshot(out);
+	}
+}
+
+/**
+ * Returns the instructions of this path. The list cannot be modified.
+*/
+public List getInstructions() {
+	return Collections.unmodifiableList(instructions);
+}
+
+/**
+ * Returns true if the pattern matches, without using any cache.
+ *
+ * @param node the node to start from
+ * @param tracer the tracer of the generation request, or null if it is not traced
+*/
+private boolean evaluate(MRNode node, DebugTracer tracer) {
+	
 	/*
 	This works by invoking the instructions in sequence, feeding the result of one
 	into the next. If an instruction returns null (meaning that it could not be followed),
@@ -266,7 +391,7 @@ public boolean evaluate(MRNode node) {
 	MRNode currentNode = node;
 	Iterator iter = instructions.iterator();
 	while (iter.hasNext()) {
-		currentNode = ((PatternInstruction) iter.next()).follow(currentNode);
+		currentNode = ((PatternInstruction) iter.next()).follow(currentNode, tracer);
 		if (currentNode == null) {
 			return false;
 		}
@@ -277,26 +402,29 @@ public boolean evaluate(MRNode node) {
 
 /**
  * Follows the path of the pattern. 
+ *
+ * @param node the node to start from
+ * @param tracer the tracer of the generation request, or null if it is not traced
 */
-public MRNode follow(MRNode node) {
+public MRNode follow(MRNode node, DebugTracer tracer) {
 	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
-		System.out.println(DebugTracer.getIndent() + "Evaluating path '" + patternString + "' for node '" + node.getType().getName("en") + "'");
-		DebugTracer.incRL();
+	if (tracer != null) {
+		tracer.trace("Evaluating path '" + patternString + "' for node '" + node.getType().getName("en") + "'");
+		tracer.incRL();
 	}
 
 	MRNode currentNode = node;
 	Iterator iter = instructions.iterator();
 	while (iter.hasNext()) {
-		currentNode = ((PatternInstruction) iter.next()).follow(currentNode);
+		currentNode = ((PatternInstruction) iter.next()).follow(currentNode, tracer);
 		if (currentNode == null) {
 			throw new ProductionPatternCannotBeResolvedException(patternString, myFileAndLine);
 		}
 	}
 	
 	/* DebugTrace */
-	if (DebugTracer.doDebug()) {
-		DebugTracer.decRL();
+	if (tracer != null) {
+		tracer.decRL();
 	}
 		
 	return currentNode;
@@ -0,0 +1,892 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.Collections;
+
+/**
+ * The loaded and linked vocabulary: all VocabularyMeanings, and lookup of them by their
+ * names in each language.
+ *
+ * A Vocabulary is loaded and linked by its constructor, and is never changed after that,
+ * so it can be used by several threads at once. The VocabularyServer gives access to the
+ * vocabulary of the default Engine.
+*/
+public class Vocabulary {
+
+	private HashMap languageMap;
+	private HashSet allMeanings;
+	private HashMap languageToFieldIndex;
+	private ArrayList concreteMeanings;
+	private ArrayList rootTypes;
+	
+	/*
+	The languages listed in the header of the vocabulary file, and the ones of them that are
+	actually loaded. A null activeLanguages means all of them.
+	*/
+	private HashSet listedLanguages;
+	private HashSet activeLanguages;
+	
+	/*
+	The fewest meanings worth giving a thread of their own when linking.
+	*/
+	private static final int MIN_LINK_CHUNK = 512;
+
+	/**
+	 * The constructor. Loads the vocabulary from the given file and links its meanings.
+	 *
+	 * Only the given languages are loaded. The names, field labels and info strings of other
+	 * languages are skipped, and the vocabulary acts as if they were not implemented. Only if
+	 * the vocabulary file names supertypes or field types in one of them are the type names
+	 * in that language loaded, as linking needs them.
+	 *
+	 * @param vocabularyFile the vocabulary file
+	 * @param languages the codes of the languages to load, or null for all languages
+	 * @throws VocabularyFileNotFoundException
+	*/
+	public Vocabulary(File vocabularyFile, Collection languages) {
+		/*
+		The Plan:
+		1. load in the header to determine supported languages
+		2. set up a hashmap for each language, and a hashmap from language codes to the language maps
+		3. loop through the file, inserting new meanings into the hashmap and then having them define themselves
+		4. loop through the meanings in any hashmap and have them link themselves
+		*/
+		
+		if (languages != null) {
+			activeLanguages = new HashSet(languages);
+		}
+		
+		//attach a tokenizer to the file
+		LineTokenizer r = null;
+		try {
+			r = new LineTokenizer(vocabularyFile, true);
+		}
+		catch (java.io.FileNotFoundException e) {
+			throw new VocabularyFileNotFoundException();
+		}
+		
+		/*
+		The purpose of this hashmap is to map language codes such as "en" to hashmaps
+		mapping from names to VocabularyMeanings. it is then filled with hashmaps
+		for each language.
+		*/
+		languageMap = new HashMap();
+		listedLanguages = new HashSet();
+		
+		
+		//throw an exception if the header is malformed
+		if (r.lineStartsWith("language") == false) {
+			throw new NoLanguagesDefinedInVocabularyException();
+		}
+		
+		//create a hashMap for each active language
+		while(r.lineStartsWith("language")) {
+			String language = r.getRest();
+			listedLanguages.add(language);
+			if ((activeLanguages == null) || activeLanguages.contains(language)) {
+				languageMap.put(language, new HashMap());
+			}
+			r.next();
+		}
+		
+		/*
+		The names in inactive languages are put aside, as the definitions read in later may
+		turn out to need them. For each language, this is a list of meanings and their names
+		in that language.
+		*/
+		HashMap inactiveNames = new HashMap();
+		
+		/*
+		Create a hashset for catching all meanings. This is needed for
+		calling "link" on them later.
+		*/
+		allMeanings = new HashSet();
+		ArrayList definedMeanings = new ArrayList();
+		
+		/*
+		Now, loop through each line in the MR. The way this works is that
+		the outer loop goes over each meaning, and contains an inner loop
+		that reads in the lines that define that meaning.
+		*/
+		while(r.hasLine()) {
+			/*
+			Check if the line is "abstract" or "meaning", denoting the start of a new meaning definition.
+			If not, something's gone wrong.
+			*/
+			boolean isAbstract = r.lineEquals("abstract");
+			if ((isAbstract == false) && (r.lineEquals("meaning") == false)) {
+				throw new UnexpectedLineInVocabularyException(r.getLine(), "'abstract' or 'meaning'", r.getLineNumber());
+			}
+			r.next();
+			
+			/*
+			Check if the meaning is a root one.
+			*/
+			boolean isRoot = r.lineStartsWith("root");
+			
+			if (isRoot) {
+				r.next(); //consume that line
+			}
+			
+			/*
+			Create a new VocabularyMeaning and add it to the pool of all meanings.
+			*/
+			VocabularyMeaning newMeaning = new VocabularyMeaning(isAbstract, isRoot);
+			allMeanings.add(newMeaning);
+			definedMeanings.add(newMeaning);
+			
+			/*
+			Process info Strings.
+			*/
+			while (r.keywordEndsWith("_info")) {
+				InfoString info = new InfoString(r, vocabularyFile);
+				if (languageMap.containsKey(info.getLanguage())) {
+					newMeaning.setInfoString(info);
+				}
+				r.next();
+			}
+			
+			/*
+			Create a HashMap for the meaning to map languages to type names 
+			*/
+			HashMap nameMap = new HashMap();
+			
+			/*
+			Here we now loop through the lines specifying what the meaning is called in each language.
+			Any line that does not start with a keyword (abstract, meaning, super, field) is assumed
+			to be a language/meaning name combination.
+			*/
+			while(r.hasLine() && (r.lineStartsWith("abstract") == false) && (r.lineStartsWith("meaning") == false) && (r.lineStartsWith("super") == false) && (r.lineStartsWith("field") == false)) {
+				//the keyword should be the language code, giving us the name-to-meaning map for that language
+				String language = r.getKeyword();
+				if (listedLanguages.contains(language) == false) {
+					String currentLineNumber = Integer.toString(r.getLineNumber());
+					throw new VocabularyFileException("Vocabulary file, line " + currentLineNumber + ":\nThe language " + language + " is not listed in the header.");
+				}
+				String name = r.getRest();
+				HashMap lMap = (HashMap) languageMap.get(language);
+				if (lMap == null) {
+					//an inactive language, so put the name aside
+					ArrayList names = (ArrayList) inactiveNames.get(language);
+					if (names == null) {
+						names = new ArrayList();
+						inactiveNames.put(language, names);
+					}
+					names.add(new Object[] {newMeaning, name});
+				} else {
+					//put this meaning into the name-to-meaning map for the language
+					lMap.put(name, newMeaning);
+					//put the name of this meaning into the language-to-name map for this meaning
+					nameMap.put(language, name);
+				}
+				r.next();
+			}
+			
+			//give the meaning its language to name map
+			newMeaning.setLanguageToNameMap(nameMap);
+			
+			//if the meaning has extra data, it is given the tokenizer
+			if (r.lineStartsWith("super") || r.lineStartsWith("field")) {
+				newMeaning.define(r, vocabularyFile);
+			}
+		}
+		
+		/*
+		Load the type names of the inactive languages the definitions need after all, then link the meanings.
+		The languages stay inactive otherwise: they have no field labels, and are not available.
+		*/
+		Iterator neededIter = languagesNeededForLinking(definedMeanings).iterator();
+		while (neededIter.hasNext()) {
+			String language = (String) neededIter.next();
+			HashMap lMap = new HashMap();
+			languageMap.put(language, lMap);
+			ArrayList names = (ArrayList) inactiveNames.get(language);
+			for (int i = 0; (names != null) && (i < names.size()); i++) {
+				Object entry[] = (Object[]) names.get(i);
+				lMap.put(entry[1], entry[0]);
+			}
+		}
+		linkMeanings(definedMeanings);
+		
+		//index the fields by label for each language, for use by the language rules
+		languageToFieldIndex = new HashMap();
+		Iterator languageIter = languageMap.keySet().iterator();
+		while (languageIter.hasNext()) {
+			String language = (String) languageIter.next();
+			if (languageAvailable(language)) {
+				languageToFieldIndex.put(language, buildFieldIndex(language));
+			}
+		}
+		
+		numberTypes();
+	}
+	
+	/**
+	 * Reads a vocabulary back in from a snapshot, as written by writeSnapshot(), instead of
+	 * loading it from the vocabulary file. It is already linked.
+	 *
+	 * @param in the snapshot
+	 * @param vocabularyFile the vocabulary file the snapshot was made from, which the info strings are read from
+	*/
+	public Vocabulary(SnapshotInput in, File vocabularyFile) {
+		listedLanguages = new HashSet();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			listedLanguages.add(in.readString());
+		}
+		if (in.readBoolean()) {
+			activeLanguages = new HashSet();
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				activeLanguages.add(in.readString());
+			}
+		}
+		
+		/*
+		All meanings and their fields come first, so that the links between them can refer to any of them.
+		*/
+		VocabularyMeaning meanings[] = new VocabularyMeaning[in.readInt()];
+		allMeanings = new HashSet();
+		for (int i = 0; i < meanings.length; i++) {
+			meanings[i] = new VocabularyMeaning(in);
+			allMeanings.add(meanings[i]);
+		}
+		for (int i = 0; i < meanings.length; i++) {
+			meanings[i].readSnapshotLinks(in, vocabularyFile);
+		}
+		
+		languageMap = new HashMap();
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String language = in.readString();
+			HashMap lMap = new HashMap();
+			int names = in.readInt();
+			for (int j = 0; j < names; j++) {
+				lMap.put(in.readString(), in.readReference());
+			}
+			languageMap.put(language, lMap);
+		}
+		
+		languageToFieldIndex = new HashMap();
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String language = in.readString();
+			HashMap index = new HashMap();
+			int labels = in.readInt();
+			for (int j = 0; j < labels; j++) {
+				String label = in.readString();
+				IdentityHashMap typeToField = new IdentityHashMap();
+				int types = in.readInt();
+				for (int k = 0; k < types; k++) {
+					typeToField.put(in.readReference(), in.readReference());
+				}
+				index.put(label, typeToField);
+			}
+			languageToFieldIndex.put(language, index);
+		}
+		
+		concreteMeanings = new ArrayList();
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			concreteMeanings.add(in.readReference());
+		}
+		rootTypes = new ArrayList();
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			rootTypes.add(in.readReference());
+		}
+	}
+	
+	/**
+	 * Writes this vocabulary to a snapshot: its languages, meanings and fields, and the maps
+	 * worked out when it was linked.
+	 *
+	 * @param out the snapshot
+	*/
+	public void writeSnapshot(SnapshotOutput out) {
+		out.writeInt(listedLanguages.size());
+		Iterator iter = listedLanguages.iterator();
+		while (iter.hasNext()) {
+			out.writeString((String) iter.next());
+		}
+		out.writeBoolean(activeLanguages != null);
+		if (activeLanguages != null) {
+			out.writeInt(activeLanguages.size());
+			iter = activeLanguages.iterator();
+			while (iter.hasNext()) {
+				out.writeString((String) iter.next());
+			}
+		}
+		
+		out.writeInt(allMeanings.size());
+		iter = allMeanings.iterator();
+		while (iter.hasNext()) {
+			((VocabularyMeaning) iter.next()).writeSnapshot(out);
+		}
+		iter = allMeanings.iterator();
+		while (iter.hasNext()) {
+			((VocabularyMeaning) iter.next()).writeSnapshotLinks(out);
+		}
+		
+		out.writeInt(languageMap.size());
+		iter = languageMap.keySet().iterator();
+		while (iter.hasNext()) {
+			String language = (String) iter.next();
+			HashMap lMap = (HashMap) languageMap.get(language);
+			out.writeString(language);
+			out.writeInt(lMap.size());
+			Iterator nameIter = lMap.keySet().iterator();
+			while (nameIter.hasNext()) {
+				String name = (String) nameIter.next();
+				out.writeString(name);
+				out.writeReference(lMap.get(name));
+			}
+		}
+		
+		out.writeInt(languageToFieldIndex.size());
+		iter = languageToFieldIndex.keySet().iterator();
+		while (iter.hasNext()) {
+			String language = (String) iter.next();
+			HashMap index = (HashMap) languageToFieldIndex.get(language);
+			out.writeString(language);
+			out.writeInt(index.size());
+			Iterator labelIter = index.keySet().iterator();
+			while (labelIter.hasNext()) {
+				String label = (String) labelIter.next();
+				IdentityHashMap typeToField = (IdentityHashMap) index.get(label);
+				out.writeString(label);
+				out.writeInt(typeToField.size());
+				Iterator typeIter = typeToField.keySet().iterator();
+				while (typeIter.hasNext()) {
+					Object type = typeIter.next();
+					out.writeReference(type);
+					out.writeReference(typeToField.get(type));
+				}
+			}
+		}
+		
+		out.writeInt(concreteMeanings.size());
+		iter = concreteMeanings.iterator();
+		while (iter.hasNext()) {
+			out.writeReference(iter.next());
+		}
+		out.writeInt(rootTypes.size());
+		iter = rootTypes.iterator();
+		while (iter.hasNext()) {
+			out.writeReference(iter.next());
+		}
+	}
+	
+	/**
+	 * Returns the inactive languages that the definitions of the given meanings use to name
+	 * supertypes or field types. Their names are needed to link the meanings.
+	 *
+	 * @param meanings the meanings
+	 * @return a set of language codes
+	*/
+	private Set languagesNeededForLinking(List meanings) {
+		HashSet needed = new HashSet();
+		Iterator meaningIter = meanings.iterator();
+		while (meaningIter.hasNext()) {
+			Iterator lineIter = ((VocabularyMeaning) meaningIter.next()).getDefinitionEntries().iterator();
+			boolean inSuper = false;
+			while (lineIter.hasNext()) {
+				Object entry = lineIter.next();
+				if (entry instanceof InfoString) {
+					continue;
+				}
+				String line = (String) entry;
+				String language = null;
+				if (line.equals("super") || line.equals("field")) {
+					inSuper = line.equals("super");
+				} else {
+					String lineParts[] = StringFunctions.splitLineAlongSpace(line);
+					if (inSuper) {
+						language = lineParts[0];
+					} else {
+						if (lineParts[0].endsWith("_type")) {
+							language = lineParts[0].substring(0, lineParts[0].length() - 5);
+						}
+					}
+				}
+				if ((language != null) && (languageMap.containsKey(language) == false) && listedLanguages.contains(language)) {
+					needed.add(language);
+				}
+			}
+		}
+		return needed;
+	}
+	
+	/**
+	 * Links the given meanings, several at once if there are enough of them. Linking a meaning
+	 * only reads the name maps, which are complete by now, and only changes the meaning itself.
+	 *
+	 * The meanings are split into consecutive chunks, one per thread. Each thread links its chunk
+	 * in order and stops at the first meaning that fails. Once all threads are done, the error of
+	 * the earliest meaning that failed is thrown, so the error is the same one linking them one by
+	 * one in order would throw, however the threads are scheduled.
+	 *
+	 * @param meanings the meanings, in the order they are defined in the vocabulary file
+	*/
+	private void linkMeanings(final List meanings) {
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), meanings.size() / MIN_LINK_CHUNK);
+		if (threads < 2) {
+			Iterator meaningIter = meanings.iterator();
+			while (meaningIter.hasNext()) {
+				((VocabularyMeaning) meaningIter.next()).link(this);
+			}
+			return;
+		}
+		
+		final int failedAt[] = new int[threads];
+		final RuntimeException errors[] = new RuntimeException[threads];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList futures = new ArrayList();
+		try {
+			for (int t = 0; t < threads; t++) {
+				final int chunk = t;
+				final int from = (int) ((long) meanings.size() * t / threads);
+				final int to = (int) ((long) meanings.size() * (t + 1) / threads);
+				failedAt[t] = Integer.MAX_VALUE;
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						for (int i = from; i < to; i++) {
+							try {
+								((VocabularyMeaning) meanings.get(i)).link(Vocabulary.this);
+							}
+							catch (RuntimeException e) {
+								failedAt[chunk] = i;
+								errors[chunk] = e;
+								return;
+							}
+						}
+					}
+				}));
+			}
+			
+			//wait for all of them, which also makes what they linked visible to this thread
+			for (int t = 0; t < threads; t++) {
+				try {
+					((Future) futures.get(t)).get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VocabularyFileException("Interrupted while linking the vocabulary.");
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw new VocabularyFileException("While linking the vocabulary:\n" + e.getCause().toString());
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		
+		int earliest = 0;
+		for (int t = 1; t < threads; t++) {
+			if (failedAt[t] < failedAt[earliest]) {
+				earliest = t;
+			}
+		}
+		if (errors[earliest] != null) {
+			throw errors[earliest];
+		}
+	}
+	
+	/**
+	 * Numbers the type hierarchy depth-first, so that subtype checks become a comparison
+	 * of intervals, and works out the lists of subtypes and root types up front, so that
+	 * getAllSubtypes() and getRootTypes() do not need to go through all meanings each time.
+	 * Also gives each type's fields their positions in the nodes of that type, supertypes first.
+	*/
+	private void numberTypes() {
+		//collect the direct subtypes of each type, and the types at the top of the hierarchy
+		HashMap directSubtypes = new HashMap();
+		ArrayList topTypes = new ArrayList();
+		Iterator mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			if (m.supertype() == null) {
+				topTypes.add(m);
+			} else {
+				ArrayList subtypes = (ArrayList) directSubtypes.get(m.supertype());
+				if (subtypes == null) {
+					subtypes = new ArrayList();
+					directSubtypes.put(m.supertype(), subtypes);
+				}
+				subtypes.add(m);
+			}
+		}
+		
+		//number each tree of the hierarchy. Types whose supertypes loop are never reached, and stay unnumbered.
+		int nextNumber = 0;
+		Iterator topIter = topTypes.iterator();
+		while (topIter.hasNext()) {
+			nextNumber = numberSubtree((VocabularyMeaning) topIter.next(), directSubtypes, nextNumber);
+		}
+		
+		//the types that were not reached still need positions for their own fields
+		mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			if (m.getSlotCount() == 0) {
+				m.assignSlots();
+			}
+		}
+		
+		/*
+		Now fill in the lists. We go through the meanings in the same order as getAllSubtypes() and
+		getRootTypes() used to, so the lists come out in the same order.
+		*/
+		concreteMeanings = new ArrayList();
+		rootTypes = new ArrayList();
+		mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			m.setConcreteSubtypes(new ArrayList());
+		}
+		mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			if (m.isAbstract() == false) {
+				concreteMeanings.add(m);
+				if (m.isRoot()) {
+					rootTypes.add(m);
+				}
+				//add it to the list of itself and each of its supertypes, but stop if the supertypes loop
+				VocabularyMeaning t = m;
+				int steps = 0;
+				while ((t != null) && (steps <= allMeanings.size())) {
+					t.getConcreteSubtypes().add(m);
+					t = t.supertype();
+					steps++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Numbers the given type and its subtypes depth-first, and gives their fields positions.
+	 *
+	 * @param type the type at the top of the subtree
+	 * @param directSubtypes a map from types to lists of their direct subtypes
+	 * @param nextNumber the first number to hand out
+	 * @return the next number to hand out after this subtree
+	*/
+	private int numberSubtree(VocabularyMeaning type, HashMap directSubtypes, int nextNumber) {
+		type.assignSlots();
+		int firstNumber = nextNumber;
+		nextNumber++;
+		ArrayList subtypes = (ArrayList) directSubtypes.get(type);
+		if (subtypes != null) {
+			Iterator subIter = subtypes.iterator();
+			while (subIter.hasNext()) {
+				nextNumber = numberSubtree((VocabularyMeaning) subIter.next(), directSubtypes, nextNumber);
+			}
+		}
+		type.setTypeInterval(firstNumber, nextNumber - 1);
+		return nextNumber;
+	}
+	
+	/**
+	 * Builds a map from each field label in the given language to a map from
+	 * types to the field they have under that label. A type has the fields of
+	 * its supertypes too, but its own fields take precedence, just like in
+	 * VocabularyMeaning.getFieldNullOnFail().
+	 *
+	 * @param language the language of the labels
+	 * @return a hashmap of labels to identity hashmaps of types to fields
+	*/
+	private HashMap buildFieldIndex(String language) {
+		HashMap index = new HashMap();
+		Iterator mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			VocabularyMeaning t = m;
+			HashSet visited = new HashSet();
+			while ((t != null) && visited.add(t)) {
+				HashMap labelToField = t.fieldsMap(language);
+				if (labelToField != null) {
+					Iterator labelIter = labelToField.keySet().iterator();
+					while (labelIter.hasNext()) {
+						String label = (String) labelIter.next();
+						IdentityHashMap typeToField = (IdentityHashMap) index.get(label);
+						if (typeToField == null) {
+							typeToField = new IdentityHashMap();
+							index.put(label, typeToField);
+						}
+						if (typeToField.containsKey(m) == false) {
+							typeToField.put(m, labelToField.get(label));
+						}
+					}
+				}
+				t = t.supertype();
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns a map from every type that has a field with the given label to that field.
+	 * Types without such a field are not in the map. The map must not be modified.
+	 * Like VocabularyMeaning.getFieldNullOnFail(), returns null if the language is not found.
+	 *
+	 * @param label the label of the field
+	 * @param language the language the label is in
+	 * @return an identity map of types to fields, or null
+	*/
+	public Map getFieldsLabelled(String label, String language) {
+		HashMap index = (HashMap) languageToFieldIndex.get(language);
+		if (index == null) {
+			return null;
+		}
+		Map result = (Map) index.get(label);
+		if (result == null) {
+			return Collections.EMPTY_MAP;
+		}
+		return result;
+	}
+	
+	/**
+	 * This method looks up a term in a given language.
+	 *
+	 * @param term The term to look up.
+	 * @param language The language the term is in.
+	 * @return The requested Meaning.
+	 * @throws VocabularyServerException
+	*/
+	public VocabularyMeaning lookupMeaning(String term, String language, String errorLocation) {
+		/*
+		First we get the map for the given language, which maps from names in that language to vocabulary meanings.
+		We then ask it for the meaning, and if there is none, throw an exception.
+		*/
+		HashMap meaningMap = (HashMap) languageMap.get(language);
+		if (meaningMap == null) {
+			throw new VocabularyServerException(errorLocation + "Language '" + language + "' not found!");
+		}
+		VocabularyMeaning result = (VocabularyMeaning) meaningMap.get(term);
+		if (result == null) {
+			throw new VocabularyServerException(errorLocation + "The type '" + term + "' could not be found in the language '" + language + "'.");
+		}
+		return result;
+	}
+	
+	/**
+	 * Looks up a meaning and simply returns null if not found.
+	 *
+	 * @param term The term to look up.
+	 * @param language The language the term is in.
+	 * @return The requested Meaning or null if none found.
+	 * @throws VocabularyServerException
+	*/
+	public VocabularyMeaning lookupMeaningNullOnFail(String term, String language) {
+		HashMap meaningMap = (HashMap) languageMap.get(language);
+		if (meaningMap == null) {
+			throw new VocabularyServerException("Language " + language + " not found!");
+		}
+		return (VocabularyMeaning) meaningMap.get(term);
+	}
+	
+	/**
+	 * Tests whether the given language is listed in the header of the vocabulary file,
+	 * whether or not it is loaded.
+	 *
+	 * @param language the name of the language
+	 * @return whether the language is listed
+	*/
+	public boolean languageListed(String language) {
+		return listedLanguages.contains(language);
+	}
+	
+	/**
+	 * Tests whether the given language exists and is loaded.
+	 *
+	 * @param language the name of the language
+	 * @return whether the language is available
+	*/
+	public boolean languageAvailable(String language) {
+		if ((activeLanguages != null) && (activeLanguages.contains(language) == false)) {
+			return false;
+		}
+		return (languageMap.get(language) != null);
+	}
+	
+	/**
+	 * Returns all meanings in the vocabulary. The set must not be modified.
+	 *
+	 * @return a set of all VocabularyMeanings
+	*/
+	public Set getAllMeanings() {
+		return Collections.unmodifiableSet(allMeanings);
+	}
+	
+	/**
+	 * Gets all non-abstract subtypes of a type.
+	*/
+	public ArrayList getAllSubtypes(VocabularyMeaning type) {
+		if (type == MeaningField.IS_ANY) {
+			return new ArrayList(concreteMeanings);
+		}
+		if (type.getConcreteSubtypes() != null) {
+			return new ArrayList(type.getConcreteSubtypes());
+		}
+		
+		//types that are not part of the vocabulary, such as IS_STRING, have to be checked against every meaning
+		ArrayList result = new ArrayList();
+		Iterator mIter = allMeanings.iterator();
+		while (mIter.hasNext()) {
+			VocabularyMeaning m = (VocabularyMeaning) mIter.next();
+			if ((m.isAbstract() == false) && (m.isMeOrSuper(type))) {
+				result.add(m);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets all root types.
+	*/
+	public ArrayList getRootTypes() {
+		return new ArrayList(rootTypes);
+	}
+	
+	
+	
+
+	//PRETTYPRINTING:	
+	
+	/**
+	 * Generates a graph of the typing, displayed in a given language.
+	 *
+	 * @param language the language to display the graph in
+	 * @return a .dot file of the graph
+	*/
+	public String typingGraph(String language) {
+		String result = "digraph \"TYPING-" + language + "\" {\n";
+		
+		HashMap meaningMap = (HashMap) languageMap.get(language);
+		
+		//create the nodes
+		Iterator i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			String ID = new Integer(((VocabularyMeaning) meaningMap.get(key)).iD).toString();
+			result = result + "\"" + ID + "\" [label=\"" + key + "\"];\n";
+		}
+		
+		//create the links
+		i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			VocabularyMeaning m = (VocabularyMeaning) meaningMap.get(key);
+			VocabularyMeaning superMeaning = m.supertype();
+			if (superMeaning != null) {
+				String ID = new Integer(m.iD).toString();
+				String superID = new Integer(superMeaning.iD).toString();
+				result = result + "\"" + ID + "\" -> \"" + superID + "\";\n";
+			}
+		}
+		
+		return result + "}";
+	}
+	
+	/**
+	 * Generates a graph of what meanings have what fields.
+	 *
+	 * @param language the language to display the graph in
+	 * @return a .dot file of the graph
+	*/
+	public String fieldGraph(String language) {
+		String result = "digraph \"FIELDS-" + language + "\" {\n";
+		
+		HashMap meaningMap = (HashMap) languageMap.get(language);
+		
+		//create the nodes
+		Iterator i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			String ID = new Integer(meaningMap.get(key).hashCode()).toString();
+			result = result + "\"" + ID + "\" [label=\"" + key + "\"];\n";
+		}
+		
+		//create the links
+		i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			VocabularyMeaning m = (VocabularyMeaning) meaningMap.get(key);
+			String ID = new Integer(m.hashCode()).toString();
+			//acquire the children and loop through them
+			HashMap children = m.fieldsMap(language);
+			if (children != null) {
+				Iterator childrenIter = children.keySet().iterator();
+				while (childrenIter.hasNext()) {
+					String fieldLabel = (String) childrenIter.next();
+					String childID = new Integer(((MeaningField) children.get(fieldLabel)).getType().hashCode()).toString();
+					result = result + "\"" + childID + "\" -> \"" + ID + "\" [label=\"" + fieldLabel + "\"];\n";
+				}
+			}
+		}
+		
+		return result + "}";
+	}
+	
+	/**
+	 * Generates a graph of what meanings have what fields, and of the typing.
+	 *
+	 * @param language the language to display the graph in
+	 * @return a .dot file of the graph
+	*/
+	public String fieldAndTypingGraph(String language) {
+		String result = "digraph \"FIELDSANDTYPING-" + language + "\" {\n";
+		
+		HashMap meaningMap = (HashMap) languageMap.get(language);
+		
+		//create the nodes
+		Iterator i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			String ID = new Integer(meaningMap.get(key).hashCode()).toString();
+			result = result + "\"" + ID + "\" [label=\"" + key + "\"];\n";
+		}
+		
+		//create the links
+		i = meaningMap.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String) i.next();
+			VocabularyMeaning m = (VocabularyMeaning) meaningMap.get(key);
+			String ID = new Integer(m.hashCode()).toString();
+			VocabularyMeaning superMeaning = m.supertype();
+			//display typing
+			if (superMeaning != null) {
+				String superID = new Integer(superMeaning.iD).toString();
+				result = result + "\"" + ID + "\" -> \"" + superID + "\" [style=\"dotted\"];\n";
+			}
+			//acquire the children and loop through them
+			HashMap children = m.fieldsMap(language);
+			if (children != null) {
+				Iterator childrenIter = children.keySet().iterator();
+				while (childrenIter.hasNext()) {
+					String fieldLabel = (String) childrenIter.next();
+					String childID = new Integer(((MeaningField) children.get(fieldLabel)).getType().hashCode()).toString();
+					result = result + "\"" + childID + "\" -> \"" + ID + "\" [label=\"" + fieldLabel + "\"];\n";
+				}
+			}
+		}
+		
+		return result + "}";
+	}
+}
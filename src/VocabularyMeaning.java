@@ -2,6 +2,9 @@ import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Collections;
+import java.io.File;
 
 /**
  * Objects of this class describe a type in the vocabulary.
@@ -33,6 +36,28 @@ public class VocabularyMeaning {
 	private static int iDcounter = 0; //for unique IDs.
 	public int iD;
 	
+	/*
+	The position of this type in a depth-first numbering of the type hierarchy, as assigned
+	by the Vocabulary after linking. A type is a subtype of another exactly if its
+	interval lies within the other's. -1 if the type has not been numbered.
+	*/
+	private int firstNumber = -1;
+	private int lastNumber = -1;
+	
+	/*
+	All non-abstract types that are this type or one of its subtypes. Filled in by the
+	Vocabulary after linking.
+	*/
+	private ArrayList concreteSubtypes;
+	
+	/*
+	The fields defined by this type itself, in the order they are defined in, and all fields of
+	this type, including those of its supertypes, by their position in the nodes of this type.
+	The positions are assigned by assignSlots(), and slotFields is null until then.
+	*/
+	private ArrayList ownFields = new ArrayList();
+	private MeaningField slotFields[];
+	
 	/**
 	For error tracking. This int defines which line of the vocabulary file
 	the definition of this VM started at. This is then reported in exceptions
@@ -56,8 +81,173 @@ public class VocabularyMeaning {
 		definitionEntries = new ArrayList();
 		languageToLabelToFieldMapMap = new HashMap();
 		
-		iD = iDcounter;
+		iD = nextID();
+	}
+	
+	/**
+	 * Hands out the next unique ID. Meanings may be created by several threads at once.
+	*/
+	private static synchronized int nextID() {
 		iDcounter++;
+		return iDcounter - 1;
+	}
+	
+	/**
+	 * Makes sure meanings created from now on get higher IDs than the given one.
+	 *
+	 * @param iD the ID of a meaning that exists
+	*/
+	private static synchronized void reserveID(int iD) {
+		if (iDcounter <= iD) {
+			iDcounter = iD + 1;
+		}
+	}
+	
+	/**
+	 * Reads a meaning back in from a snapshot, as written by writeSnapshot(), keeping its ID and
+	 * making sure meanings created from now on do not get it. Its fields are created, but they
+	 * and the links of the meaning are only read in by readSnapshotLinks().
+	 *
+	 * @param in the snapshot
+	*/
+	public VocabularyMeaning(SnapshotInput in) {
+		in.register(this);
+		iD = in.readInt();
+		reserveID(iD);
+		isAbstract = in.readBoolean();
+		isRoot = in.readBoolean();
+		startOfDefinitionLine = in.readInt();
+		definitionEntries = new ArrayList();
+		int fieldCount = in.readInt();
+		for (int i = 0; i < fieldCount; i++) {
+			MeaningField field = new MeaningField();
+			in.register(field);
+			ownFields.add(field);
+		}
+	}
+	
+	/**
+	 * Writes this meaning to a snapshot, and registers its fields with it. The links of the
+	 * meaning are written by writeSnapshotLinks(), once all meanings have been written.
+	 * The definition lines are not written, as they are only needed for linking.
+	 *
+	 * @param out the snapshot
+	*/
+	public void writeSnapshot(SnapshotOutput out) {
+		out.register(this);
+		out.writeInt(iD);
+		out.writeBoolean(isAbstract);
+		out.writeBoolean(isRoot);
+		out.writeInt(startOfDefinitionLine);
+		out.writeInt(ownFields.size());
+		Iterator fieldIter = ownFields.iterator();
+		while (fieldIter.hasNext()) {
+			out.register(fieldIter.next());
+		}
+	}
+	
+	/**
+	 * Writes the links of this meaning to a snapshot: its supertype, names, info strings, fields,
+	 * and what the Vocabulary worked out about it after linking.
+	 *
+	 * @param out the snapshot
+	*/
+	public void writeSnapshotLinks(SnapshotOutput out) {
+		out.writeReference(superType);
+		out.writeStringMap(languageToNameMap);
+		if (languageToInfoMap == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(languageToInfoMap.size());
+			Iterator infoIter = languageToInfoMap.values().iterator();
+			while (infoIter.hasNext()) {
+				((InfoString) infoIter.next()).writeSnapshot(out);
+			}
+		}
+		
+		Iterator fieldIter = ownFields.iterator();
+		while (fieldIter.hasNext()) {
+			((MeaningField) fieldIter.next()).writeSnapshot(out);
+		}
+		out.writeInt(languageToLabelToFieldMapMap.size());
+		Iterator languageIter = languageToLabelToFieldMapMap.keySet().iterator();
+		while (languageIter.hasNext()) {
+			String language = (String) languageIter.next();
+			HashMap labelToField = (HashMap) languageToLabelToFieldMapMap.get(language);
+			out.writeString(language);
+			out.writeInt(labelToField.size());
+			Iterator labelIter = labelToField.keySet().iterator();
+			while (labelIter.hasNext()) {
+				String label = (String) labelIter.next();
+				out.writeString(label);
+				out.writeReference(labelToField.get(label));
+			}
+		}
+		
+		out.writeInt(firstNumber);
+		out.writeInt(lastNumber);
+		out.writeBoolean(concreteSubtypes != null);
+		if (concreteSubtypes != null) {
+			out.writeInt(concreteSubtypes.size());
+			Iterator subIter = concreteSubtypes.iterator();
+			while (subIter.hasNext()) {
+				out.writeReference(subIter.next());
+			}
+		}
+		out.writeBoolean(slotFields != null);
+		if (slotFields != null) {
+			out.writeInt(slotFields.length);
+			for (int i = 0; i < slotFields.length; i++) {
+				out.writeReference(slotFields[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the links of this meaning back in from a snapshot, as written by writeSnapshotLinks().
+	 *
+	 * @param in the snapshot
+	 * @param vocabularyFile the vocabulary file the snapshot was made from
+	*/
+	public void readSnapshotLinks(SnapshotInput in, File vocabularyFile) {
+		superType = (VocabularyMeaning) in.readReference();
+		languageToNameMap = in.readStringMap();
+		int infoCount = in.readInt();
+		for (int i = 0; i < infoCount; i++) {
+			setInfoString(new InfoString(in, vocabularyFile));
+		}
+		
+		Iterator fieldIter = ownFields.iterator();
+		while (fieldIter.hasNext()) {
+			((MeaningField) fieldIter.next()).readSnapshot(in, vocabularyFile);
+		}
+		languageToLabelToFieldMapMap = new HashMap();
+		int languageCount = in.readInt();
+		for (int i = 0; i < languageCount; i++) {
+			String language = in.readString();
+			HashMap labelToField = new HashMap();
+			int labelCount = in.readInt();
+			for (int j = 0; j < labelCount; j++) {
+				labelToField.put(in.readString(), in.readReference());
+			}
+			languageToLabelToFieldMapMap.put(language, labelToField);
+		}
+		
+		firstNumber = in.readInt();
+		lastNumber = in.readInt();
+		if (in.readBoolean()) {
+			int subtypeCount = in.readInt();
+			concreteSubtypes = new ArrayList(subtypeCount);
+			for (int i = 0; i < subtypeCount; i++) {
+				concreteSubtypes.add(in.readReference());
+			}
+		}
+		if (in.readBoolean()) {
+			slotFields = new MeaningField[in.readInt()];
+			for (int i = 0; i < slotFields.length; i++) {
+				slotFields[i] = (MeaningField) in.readReference();
+			}
+		}
 	}
 	
 	/**
@@ -86,6 +276,16 @@ public class VocabularyMeaning {
 		}
 	}
 	
+	/**
+	 * Returns whether this type / VocabularyMeaning has a name in the given language.
+	 *
+	 * @param language the language
+	 * @return whether there is a name in that language
+	*/
+	public boolean hasName(String language) {
+		return languageToNameMap.containsKey(language);
+	}
+	
 	/**
 	 * Returns an unique HashCode. Used for drawing field and typing graphs.
 	*/
@@ -94,26 +294,49 @@ public class VocabularyMeaning {
 	}
 
 	/**
-	 * Uses the given peeking line reader to read off the data
+	 * Uses the given tokenizer to read off the data
 	 * about itself. Not a constructor since the meaning needs
 	 * to exist before this so it can be inserted appropriately.
 	 * The definition lines are just read in, but not processed
 	 * until link() is called.
 	 *
-	 * @param input the reader from which to read its definition
+	 * The info strings of fields are kept as InfoStrings rather than lines.
+	 *
+	 * @param input the tokenizer from which to read its definition
+	 * @param file the file the tokenizer is reading
 	*/
-	public void define(PeekingLineReader input) {
-		startOfDefinitionLine = input.getLineNumber() + 1;
-		while ((input.peek() != null) && (input.peek().equals("meaning") == false) && (input.peek().equals("abstract") == false)) {
-			definitionEntries.add(input.readLine());
+	public void define(LineTokenizer input, File file) {
+		startOfDefinitionLine = input.getLineNumber();
+		boolean inField = false;
+		while (input.hasLine() && (input.lineEquals("meaning") == false) && (input.lineEquals("abstract") == false)) {
+			if (inField && input.keywordEndsWith("_info")) {
+				definitionEntries.add(new InfoString(input, file));
+			} else {
+				inField = inField || input.lineEquals("field");
+				definitionEntries.add(input.getLine());
+			}
+			input.next();
 		}
 	}
 	
+	/**
+	 * Returns the definition lines of this type / VM, as read in by define(),
+	 * with InfoStrings in place of the info strings of fields.
+	 * The list must not be modified.
+	 *
+	 * @return a list of lines and InfoStrings
+	*/
+	public List getDefinitionEntries() {
+		return Collections.unmodifiableList(definitionEntries);
+	}
+	
 	/**
 	 * Tells this type / VM to read its definition lines, instantiating
 	 * its fields and linking itself to its supertype.
+	 *
+	 * @param vocabulary the vocabulary this meaning is in, whose name maps are complete
 	*/
-	public void link() {
+	public void link(Vocabulary vocabulary) {
 		/*
 		The plan:
 		First off, split the lines given into smaller chunks.
@@ -128,6 +351,8 @@ public class VocabularyMeaning {
 				if it's a type, set the field to it
 			set the field's name map
 		.
+		The results are only stored in this meaning once all of it has been linked. Linking only
+		reads the name maps of the vocabulary, so several meanings can be linked at once.
 		*/
 	
 	
@@ -143,7 +368,7 @@ public class VocabularyMeaning {
 			//check if the first line is "super"
 			if (firstLine.equals("super")) {
 				while (defIter.hasNext()) {
-					String entry = (String) defIter.next();
+					Object entry = defIter.next();
 					if (entry.equals("field")) {
 						break; //finished with defining super
 					} else {
@@ -158,7 +383,7 @@ public class VocabularyMeaning {
 				ArrayList currentFieldDefinition = new ArrayList();
 				fieldDefinitions.add(currentFieldDefinition);
 				while(defIter.hasNext()) {
-					String entry = (String) defIter.next();
+					Object entry = defIter.next();
 					if (entry.equals("field")) {
 						currentFieldDefinition = new ArrayList();
 						fieldDefinitions.add(currentFieldDefinition);
@@ -168,53 +393,69 @@ public class VocabularyMeaning {
 				} //end looping through field def lines
 			} //end checking for field defs
 			
-			//now process the blocks
+			//now process the blocks, into local variables first
+			VocabularyMeaning linkedSuperType = null;
+			HashMap linkedFieldMaps = new HashMap();
+			ArrayList linkedFields = new ArrayList();
+			
 			//first, define the supertype
 			Iterator superIter = superTypeDefinition.iterator();
 			while (superIter.hasNext()) {
 				String lineParts[] = StringFunctions.splitLineAlongSpace((String) superIter.next());
-				VocabularyMeaning aSuperType = VocabularyServer.lookupMeaning(lineParts[1], lineParts[0], "Vocabulary file, after line " + Integer.toString(startOfDefinitionLine) + ":\n");
-				if ((superType != null) && (superType != aSuperType)) {
+				VocabularyMeaning aSuperType = vocabulary.lookupMeaning(lineParts[1], lineParts[0], "Vocabulary file, after line " + Integer.toString(startOfDefinitionLine) + ":\n");
+				if ((linkedSuperType != null) && (linkedSuperType != aSuperType)) {
 					throw new VocabularyFileException("Vocabulary file, after line " + Integer.toString(startOfDefinitionLine) + ":\nThe supertype " + lineParts[1] + " in " + lineParts[0] + " does not match with previous supertype values.");
 				}
-				superType = aSuperType;
+				linkedSuperType = aSuperType;
 			}
 			
 			//now, loop through the field definitions
 			Iterator fieldDefIter = fieldDefinitions.iterator();
 			while (fieldDefIter.hasNext()) {
 				MeaningField currentMF = new MeaningField();
+				linkedFields.add(currentMF);
 				HashMap languageToName = new HashMap();
 				currentMF.setLanguageToNameMap(languageToName);
 				ArrayList currentFieldDef = (ArrayList) fieldDefIter.next();
 				Iterator lineIter = currentFieldDef.iterator();
 				while (lineIter.hasNext()) {
-					//read in the line and split it right away.
-					String lineParts[] = StringFunctions.splitLineAlongSpace((String) lineIter.next());
-					if (lineParts[0].endsWith("_info")) {
-						currentMF.setInfoString(lineParts[1], lineParts[0].substring(0, lineParts[0].length() - 5));
+					Object entry = lineIter.next();
+					if (entry instanceof InfoString) {
+						if (vocabulary.languageAvailable(((InfoString) entry).getLanguage())) {
+							currentMF.setInfoString((InfoString) entry);
+						}
 					} else {
+						//read in the line and split it right away.
+						String lineParts[] = StringFunctions.splitLineAlongSpace((String) entry);
 						if (lineParts[0].endsWith("_type")) {
-							currentMF.setType(lineParts[1], lineParts[0].substring(0, lineParts[0].length() - 5), startOfDefinitionLine);
+							currentMF.setType(lineParts[1], lineParts[0].substring(0, lineParts[0].length() - 5), startOfDefinitionLine, vocabulary);
 						} else {
 							//part 0 is the language of the field label, part 1 is the field label
-							if (VocabularyServer.languageAvailable(lineParts[0]) == false) {
+							if (vocabulary.languageListed(lineParts[0]) == false) {
 								throw new VocabularyFileException("Vocabulary file, after line " + Integer.toString(startOfDefinitionLine) + ":\nThe language '" + lineParts[0] + "' is not listed as one of the implemented languages.");
 							}
-							languageToName.put(lineParts[0], lineParts[1]);
-							//now add it to our local hashmap
-							if (languageToLabelToFieldMapMap.containsKey(lineParts[0])) {
-								((HashMap) languageToLabelToFieldMapMap.get(lineParts[0])).put(lineParts[1], currentMF);
-							} else {
-								//we don't have a hashmap for that language yet, so let's create it.
-								HashMap newLabelToFieldMap = new HashMap();
-								newLabelToFieldMap.put(lineParts[1], currentMF);
-								languageToLabelToFieldMapMap.put(lineParts[0], newLabelToFieldMap);
+							//labels in languages that are not loaded are skipped
+							if (vocabulary.languageAvailable(lineParts[0])) {
+								languageToName.put(lineParts[0], lineParts[1]);
+								//now add it to our local hashmap
+								if (linkedFieldMaps.containsKey(lineParts[0])) {
+									((HashMap) linkedFieldMaps.get(lineParts[0])).put(lineParts[1], currentMF);
+								} else {
+									//we don't have a hashmap for that language yet, so let's create it.
+									HashMap newLabelToFieldMap = new HashMap();
+									newLabelToFieldMap.put(lineParts[1], currentMF);
+									linkedFieldMaps.put(lineParts[0], newLabelToFieldMap);
+								}
 							}
 						}
 					}
 				}
 			}
+			
+			//then store them
+			superType = linkedSuperType;
+			languageToLabelToFieldMapMap = linkedFieldMaps;
+			ownFields = linkedFields;
 		} //end checking for entries
 	} //end function
 
@@ -375,12 +616,84 @@ public class VocabularyMeaning {
 		if (this == type) {
 			return true;
 		}
+		//if both types have been numbered, compare the intervals instead of walking up the supertypes
+		if ((firstNumber > -1) && (type.firstNumber > -1)) {
+			return ((type.firstNumber <= firstNumber) && (lastNumber <= type.lastNumber));
+		}
 		if (superType != null) {
 			return superType.isMeOrSuper(type);
 		}
 		return false;
 	}
 	
+	/**
+	 * Sets the interval of this type in the numbering of the type hierarchy.
+	 * The intervals of its subtypes must lie within it, and those of all other types outside it.
+	 *
+	 * @param firstNumber the number given to this type
+	 * @param lastNumber the highest number given to this type or any of its subtypes
+	*/
+	public void setTypeInterval(int firstNumber, int lastNumber) {
+		this.firstNumber = firstNumber;
+		this.lastNumber = lastNumber;
+	}
+	
+	/**
+	 * Sets the list of all non-abstract types that are this type or one of its subtypes.
+	 *
+	 * @param subtypes the list
+	*/
+	public void setConcreteSubtypes(ArrayList subtypes) {
+		concreteSubtypes = subtypes;
+	}
+	
+	/**
+	 * Returns all non-abstract types that are this type or one of its subtypes,
+	 * or null if these have not been worked out. The list must not be modified.
+	*/
+	public ArrayList getConcreteSubtypes() {
+		return concreteSubtypes;
+	}
+	
+	/**
+	 * Gives the fields of this type their positions in the nodes of this type, after those of
+	 * the fields of the supertype, which must have been given theirs already. That way, a field
+	 * has the same position in the nodes of all the types that have it.
+	 * If the supertype has no positions, as happens when the supertypes loop, only the fields
+	 * of this type itself get positions.
+	*/
+	public void assignSlots() {
+		MeaningField inherited[] = new MeaningField[0];
+		if ((superType != null) && (superType.slotFields != null)) {
+			inherited = superType.slotFields;
+		}
+		MeaningField slots[] = new MeaningField[inherited.length + ownFields.size()];
+		System.arraycopy(inherited, 0, slots, 0, inherited.length);
+		for (int i = 0; i < ownFields.size(); i++) {
+			MeaningField field = (MeaningField) ownFields.get(i);
+			field.setSlot(inherited.length + i);
+			slots[inherited.length + i] = field;
+		}
+		slotFields = slots;
+	}
+	
+	/**
+	 * Returns the number of positions for fields in the nodes of this type.
+	*/
+	public int getSlotCount() {
+		return (slotFields == null) ? 0 : slotFields.length;
+	}
+	
+	/**
+	 * Returns the field at the given position in the nodes of this type.
+	 *
+	 * @param slot the position, which must be less than getSlotCount()
+	 * @return the field
+	*/
+	public MeaningField getSlotField(int slot) {
+		return slotFields[slot];
+	}
+	
 	/**
 	 * Returns whether this meaning is abstract.
 	*/
@@ -402,13 +715,13 @@ public class VocabularyMeaning {
 	}
 	
 	/**
-	 * Sets the information string in the given language.
+	 * Sets the information string in the language it is in.
 	*/
-	public void setInfoString(String info, String language) {
+	public void setInfoString(InfoString info) {
 		if (languageToInfoMap == null) {
 			languageToInfoMap = new HashMap();
 		}
-		languageToInfoMap.put(language, info);
+		languageToInfoMap.put(info.getLanguage(), info);
 	}
 	
 	/**
@@ -421,7 +734,7 @@ public class VocabularyMeaning {
 		if (languageToInfoMap.get(language) == null) {
 			return "";
 		}
-		return (String) languageToInfoMap.get(language);
+		return ((InfoString) languageToInfoMap.get(language)).getText();
 	}
 	
 